@@ -29,18 +29,24 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("maxconn", true, "-maxconn 1024");
+        options.addOption("backlog", true, "-backlog 128");
+        options.addOption("idle", true, "-idle 600 (seconds, 0 for no timeout)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")),
+                parseInt(cmd.getOptionValue("maxconn"), Server.DEFAULT_MAX_CONNECTIONS),
+                parseInt(cmd.getOptionValue("backlog"), Server.DEFAULT_BACKLOG),
+                parseInt(cmd.getOptionValue("idle"), Server.DEFAULT_IDLE_TIMEOUT));
             return;
         }
         if(cmd.hasOption("create")) {
             createDB(cmd.getOptionValue("create"));
             return;
         }
-        System.out.println("Usage: launcher (open|create) DBPath");
+        System.out.println("Usage: launcher (open|create) DBPath [-mem 64MB] [-maxconn n] [-backlog n] [-idle seconds]");
     }
 
     private static void createDB(String path) {
@@ -52,12 +58,19 @@ public class Launcher {
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, int maxConnections, int backlog, int idleTimeout) {
         TransactionManager tm = TransactionManager.open(path);
         DataManager dm = DataManager.open(path, mem, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
-        new Server(port, tbm).start();
+        new Server(port, tbm, maxConnections, backlog, idleTimeout).start();
+    }
+
+    private static int parseInt(String str, int defaultValue) {
+        if(str == null || "".equals(str)) {
+            return defaultValue;
+        }
+        return Integer.parseInt(str);
     }
 
     private static long parseMem(String memStr) {
@@ -3,6 +3,7 @@ package com.ye.mydb.backend.common;
 import com.ye.mydb.common.Error;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -119,7 +120,8 @@ public abstract class AbstractCache<T> {
     protected void close(){
         lock.lock();
         try{
-            Set<Long> keys = cache.keySet();
+            //遍历键的副本，释放时会从 cache 中删除
+            Set<Long> keys = new HashSet<>(cache.keySet());
             for(long key : keys){
                 //对所有缓存进行释放
                 T obj = cache.get(key);
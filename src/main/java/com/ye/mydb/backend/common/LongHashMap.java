@@ -0,0 +1,76 @@
+package com.ye.mydb.backend.common;
+
+/**
+ * 以 long 为键的哈希表，开放寻址、线性探测，键不装箱
+ * 只支持插入和查找，装载因子超过 1/2 时容量翻倍
+ */
+public class LongHashMap<V> {
+    private long[] keys;
+    private Object[] values;    //为 null 的位置为空
+    private int size;
+    private int mask;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    public LongHashMap(int capacity) {
+        int n = Integer.highestOneBit(Math.max(4, capacity - 1)) << 1;
+        keys = new long[n];
+        values = new Object[n];
+        mask = n - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        for(int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                return (V)values[i];
+            }
+        }
+        return null;
+    }
+
+    //value 不能为 null
+    public void put(long key, V value) {
+        int i = slot(key);
+        while(values[i] != null) {
+            if(keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if(++ size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for(int i = 0; i < oldKeys.length; i ++) {
+            if(oldValues[i] == null) continue;
+            int j = slot(oldKeys[i]);
+            while(values[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.ye.mydb.backend.common;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按顺序逐个产生 UID，用于把索引查找、全表扫描的结果以流的形式交给上层
+ * UID 0 不会指向任何数据，用来表示迭代结束
+ */
+public interface UidIterator {
+    long next() throws Exception;
+
+    //不再迭代时释放资源，例如顺序扫描的预读暂存区
+    default void close() {}
+
+    //先迭代完 first，再迭代 second
+    public static UidIterator concat(UidIterator first, UidIterator second) {
+        return new UidIterator() {
+            private boolean firstDone;
+
+            @Override
+            public long next() throws Exception {
+                if(!firstDone) {
+                    long uid = first.next();
+                    if(uid != 0) {
+                        return uid;
+                    }
+                    firstDone = true;
+                }
+                return second.next();
+            }
+
+            @Override
+            public void close() {
+                first.close();
+                second.close();
+            }
+        };
+    }
+
+    //依次返回 uids 中前 size 个 UID
+    public static UidIterator of(long[] uids, int size) {
+        return new UidIterator() {
+            private int pos;
+
+            @Override
+            public long next() {
+                return pos < size ? uids[pos ++] : 0;
+            }
+        };
+    }
+
+    //多个迭代器的并集，每个 UID 只返回一次。先全部取出后排序去重，结果按 UID 升序
+    public static UidIterator union(List<UidIterator> its) throws Exception {
+        long[] uids = new long[64];
+        int size = 0;
+        for(UidIterator it : its) {
+            long uid;
+            while((uid = it.next()) != 0) {
+                if(size == uids.length) {
+                    uids = Arrays.copyOf(uids, size*2);
+                }
+                uids[size ++] = uid;
+            }
+        }
+        Arrays.sort(uids, 0, size);
+        int n = 0;
+        for(int i = 0; i < size; i ++) {
+            if(n == 0 || uids[i] != uids[n-1]) {
+                uids[n ++] = uids[i];
+            }
+        }
+        return of(uids, n);
+    }
+
+    //first 和 second 的交集，先取出 first 中的所有 UID 排序，再逐个判断 second 中的 UID 是否在其中
+    public static UidIterator intersect(UidIterator first, UidIterator second) throws Exception {
+        long[] uids = new long[64];
+        int size = 0;
+        long uid;
+        while((uid = first.next()) != 0) {
+            if(size == uids.length) {
+                uids = Arrays.copyOf(uids, size*2);
+            }
+            uids[size ++] = uid;
+        }
+        Arrays.sort(uids, 0, size);
+        long[] sorted = uids;
+        int n = size;
+        return new UidIterator() {
+            @Override
+            public long next() throws Exception {
+                while(true) {
+                    long uid = second.next();
+                    if(uid == 0 || Arrays.binarySearch(sorted, 0, n, uid) >= 0) {
+                        return uid;
+                    }
+                }
+            }
+
+            @Override
+            public void close() {
+                second.close();
+            }
+        };
+    }
+}
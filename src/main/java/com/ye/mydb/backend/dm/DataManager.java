@@ -7,17 +7,24 @@ import com.ye.mydb.backend.dm.page.PageOne;
 import com.ye.mydb.backend.dm.pageCache.PageCache;
 import com.ye.mydb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface DataManager {
 
     DataItem read(long uid) throws Exception;
     long insert(long xid,byte[] data) throws Exception;
+    long insert(long xid,long owner,byte[] data) throws Exception;
+    long[] insert(long xid,long owner,List<byte[]> datas) throws Exception;
+    HeapScanner scan(long owner, HeapScanner.Filter filter);
+    HeapScanner scan(long owner, HeapScanner.Filter filter, int from, int to);
+    int getPageNumber();
     void close();
 
     public static DataManager create(String path, long mem, TransactionManager tm){
         PageCache pc = PageCache.create(path,mem);
         Logger lg = Logger.create(path);
 
-        DataManagerImpl dm = new DataManagerImpl(tm,pc,lg);
+        DataManagerImpl dm = new DataManagerImpl(tm,path,pc,lg);
         dm.initPageOne();
         return dm;
     }
@@ -25,11 +32,12 @@ public interface DataManager {
     public static DataManager open(String path,long mem,TransactionManager tm){
         PageCache pc = PageCache.open(path,mem);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(tm,pc,lg);
-        if(!dm.loadCheckPageOne()){
+        DataManagerImpl dm = new DataManagerImpl(tm,path,pc,lg);
+        boolean clean = dm.loadCheckPageOne();
+        if(!clean){
             Recover.recover(tm,lg,pc);
         }
-        dm.fillPageIndex();
+        dm.fillPageIndex(clean);
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
 
@@ -15,20 +15,53 @@ import com.ye.mydb.backend.utils.Panic;
 import com.ye.mydb.backend.utils.Types;
 import com.ye.mydb.common.Error;
 
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
 
     TransactionManager tm;
+    String path;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
 
-    public DataManagerImpl(TransactionManager tm, PageCache pc, Logger logger) {
+    //DataItem 的读写锁按 UID 分条共享，不再每个 DataItem 创建一个。
+    //上层同一时刻最多持有一个 DataItem 的锁，不同 DataItem 共用一把锁只会互相等待，不会死锁
+    private static final int ITEM_LOCKS = 1024;
+    private ReadWriteLock[] itemLocks;
+
+    //后台初始化 pIndex 的线程，完成之前 pIndex 只包含已经统计过的页
+    private static final int FILL_READ_AHEAD_PAGES = 16;
+    private Thread indexFiller;
+    private volatile boolean indexReady = true;
+    private volatile boolean closing;
+
+    public DataManagerImpl(TransactionManager tm, String path, PageCache pc, Logger logger) {
         super(0);
         this.tm = tm;
+        this.path = path;
         this.pc = pc;
         this.logger = logger;
         this.pIndex = new PageIndex();
+        this.itemLocks = new ReadWriteLock[ITEM_LOCKS];
+        for(int i = 0; i < ITEM_LOCKS; i ++) {
+            itemLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * 返回 uid 对应的 DataItem 读写锁，多个 DataItem 共用同一把
+     * 规则：一个线程同一时刻最多持有一个 DataItem 的锁（before/lock/rLock 到对应的释放之间不能再获取另一个），
+     * 否则两个线程各持有一把、再去等待对方那把时会死锁，即使它们访问的 DataItem 并不相同。
+     * 开启断言时 DataItemImpl 会检查这条规则，嵌套获取会直接抛出 AssertionError 而不是挂起
+     */
+    public ReadWriteLock itemLock(long uid) {
+        long h = uid * 0x9e3779b97f4a7c15L;
+        return itemLocks[(int)(h >>> 54)];
     }
 
     @Override
@@ -43,51 +76,137 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, PageIndex.SHARED, data);
+    }
+
+    //插入到属于 owner 的页中，owner 为 PageIndex.SHARED 时插入到共享的页中
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
         if(raw.length > PageX.MAX_FREE_SPACE){
             throw Error.DataTooLargeException;
         }
-        //尝试获取可用页
-        PageInfo pi = null;
-        for(int i = 0;i < 5;i++){
-            pi = pIndex.select(raw.length);
-            if(pi != null){
-                break;
-            }else{
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno,PageX.MAX_FREE_SPACE);
-            }
-        }
-        if(pi == null){
-            throw Error.DatabaseBusyException;
-        }
-
-        Page pg = null;
-        int freeSpace = 0;
+        Page pg = selectPage(owner, raw.length);
         try{
-            pg = pc.getPage(pi.pgno);
             //首先做日志
             byte[] log = Recover.insertLog(xid,pg,raw);
             logger.log(log);
             //再执行插入操作
             short offset = PageX.insert(pg,raw);
-
-            pg.release();
-            return Types.addressToUid(pi.pgno,offset);
+            return Types.addressToUid(pg.getPageNumber(),offset);
         }finally {
             //将取出的pg重新插入pIndex
-            if(pg != null){
-                pIndex.add(pi.pgno,PageX.getFreeSpace(pg));
-            }else{
-                pIndex.add(pi.pgno,freeSpace);
+            pIndex.add(pg.getPageNumber(),PageX.getFreeSpace(pg));
+            pg.release();
+        }
+    }
+
+    /**
+     * 批量插入，连续的多条数据尽量放进同一页，每页只做一条插入日志
+     * 这条日志的 raw 是在该页中连续存放的多个 DataItem，恢复时逐个处理
+     */
+    @Override
+    public long[] insert(long xid, long owner, List<byte[]> datas) throws Exception {
+        byte[][] raws = new byte[datas.size()][];
+        for(int i = 0;i < raws.length;i++){
+            raws[i] = DataItem.wrapDataItemRaw(datas.get(i));
+            if(raws[i].length > PageX.MAX_FREE_SPACE){
+                throw Error.DataTooLargeException;
+            }
+        }
+        long[] uids = new long[raws.length];
+        int pos = 0;
+        while(pos < raws.length){
+            Page pg = selectPage(owner, raws[pos].length);
+            try{
+                //取出能放进这一页的连续若干条数据
+                int freeSpace = PageX.getFreeSpace(pg);
+                int end = pos;
+                int size = 0;
+                while(end < raws.length && size + raws[end].length <= freeSpace){
+                    size += raws[end].length;
+                    end++;
+                }
+                byte[] batch = new byte[size];
+                for(int i = pos, off = 0;i < end;off += raws[i].length, i++){
+                    System.arraycopy(raws[i],0,batch,off,raws[i].length);
+                }
+                byte[] log = Recover.insertLog(xid,pg,batch);
+                logger.log(log);
+                short offset = PageX.insert(pg,batch);
+                for(int i = pos;i < end;i++){
+                    uids[i] = Types.addressToUid(pg.getPageNumber(),offset);
+                    offset += raws[i].length;
+                }
+                pos = end;
+            }finally {
+                pIndex.add(pg.getPageNumber(),PageX.getFreeSpace(pg));
+                pg.release();
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 尝试获取一个属于 owner、空闲空间足够的页并取出，用完后由调用方放回 pIndex 并释放
+     * 没有时为 owner 分配一个新的 extent，新页的页头中记录了属主
+     */
+    private Page selectPage(long owner, int spaceSize) throws Exception {
+        int created = 0;
+        while(true){
+            PageInfo pi = pIndex.select(owner, spaceSize);
+            if(pi == null){
+                if(created++ == 5){
+                    throw Error.DatabaseBusyException;
+                }
+                int pages = pIndex.extentPages(owner);
+                int first = pc.newPages(PageX.initRaw(owner), pages);
+                pIndex.addExtent(owner, first, pages, PageX.MAX_FREE_SPACE);
+                continue;
+            }
+            //索引中的空闲空间可能来自 .fsm 文件，以页面实际的 FSO 为准，不够时按实际值放回后重新选择
+            Page pg = pc.getPage(pi.pgno);
+            int freeSpace = PageX.getFreeSpace(pg);
+            if(freeSpace >= spaceSize){
+                return pg;
             }
+            pIndex.add(pi.pgno,freeSpace);
+            pg.release();
         }
     }
 
+    //只扫描属于 owner 的页，owner 为 PageIndex.SHARED 时扫描所有页
+    @Override
+    public HeapScanner scan(long owner, HeapScanner.Filter filter) {
+        return new HeapScanner(pc, pIndex, owner, filter);
+    }
+
+    @Override
+    public HeapScanner scan(long owner, HeapScanner.Filter filter, int from, int to) {
+        return new HeapScanner(pc, pIndex, owner, filter, from, to);
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pc.getPageNumber();
+    }
+
     @Override
     public void close() {
+        closing = true;
+        if(indexFiller != null) {
+            try {
+                indexFiller.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
         logger.close();
+        //pIndex 没有统计完时不保存，下次打开重新统计
+        if(indexReady) {
+            pIndex.save(path, pc.getPageNumber());
+        }
         //设置第一页的字节校验
         PageOne.setVcClose(pageOne);
         pageOne.release();
@@ -143,18 +262,42 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return PageOne.checkVc(pageOne);
     }
 
-    // 初始化pageIndex
-    void fillPageIndex() {
+    /**
+     * 初始化pageIndex，在后台线程中进行，打开数据库不必等待：上次正常关闭时读取 .fsm 文件，否则逐页统计打开时已有的页，属主从页头中读取
+     * 完成之前插入在 pIndex 中找不到合适的页时直接创建新页，新页由插入自己加入 pIndex
+     */
+    void fillPageIndex(boolean clean) {
         int pageNumber = pc.getPageNumber();
-        for(int i = 2; i <= pageNumber; i ++) {
-            Page pg = null;
-            try {
-                pg = pc.getPage(i);
-            } catch (Exception e) {
-                Panic.panic(e);
-            }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
-            pg.release();
+        indexReady = false;
+        //非正常关闭时遗留的 .fsm 文件记录的是更早的状态，必须在开始统计、接受插入之前删除，不能留到下次打开时误用
+        if(!clean) {
+            new File(path + PageIndex.FSM_SUFFIX).delete();
+            new File(path + PageIndex.FSM_TMP_SUFFIX).delete();
         }
+        indexFiller = new Thread(() -> {
+            if(clean && pIndex.load(path, pageNumber)) {
+                indexReady = true;
+                return;
+            }
+            PageCache.ReadAhead readAhead = pc.readAhead();
+            int i = 2;
+            for(; i <= pageNumber && !closing; i ++) {
+                if((i - 2) % FILL_READ_AHEAD_PAGES == 0) {
+                    readAhead.fetch(i, FILL_READ_AHEAD_PAGES);
+                }
+                Page pg = null;
+                try {
+                    pg = pc.getPage(i);
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                pIndex.addExtent(PageX.getOwner(pg), pg.getPageNumber(), 1, PageX.getFreeSpace(pg));
+                pg.release();
+            }
+            readAhead.close();
+            indexReady = i > pageNumber;
+        }, "mydb-page-index");
+        indexFiller.setDaemon(true);
+        indexFiller.start();
     }
 }
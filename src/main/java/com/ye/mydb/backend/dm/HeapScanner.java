@@ -0,0 +1,133 @@
+package com.ye.mydb.backend.dm;
+
+import com.ye.mydb.backend.common.UidIterator;
+import com.ye.mydb.backend.dm.dataItem.DataItem;
+import com.ye.mydb.backend.dm.page.Page;
+import com.ye.mydb.backend.dm.page.PageX;
+import com.ye.mydb.backend.dm.pageCache.PageCache;
+import com.ye.mydb.backend.dm.pageIndex.PageIndex;
+import com.ye.mydb.backend.utils.Types;
+
+/**
+ * HeapScanner 按页号顺序扫描数据库文件中的普通页，依次返回满足 Filter 的合法 DataItem 的 UID
+ * 扫描时每次预读后面 READ_AHEAD_PAGES 个页，尽量把全表扫描变成顺序 I/O；预读暂存区属于这次扫描，扫描结束或 close 时释放
+ * 同一时刻只持有一个页面的引用，当前页中命中的 UID 先存入 uids，页面释放后再逐个返回
+ * 扫描范围在创建时确定，之后新分配的页不会被扫描到；也可以只扫描其中一段页号，用于并行扫描
+ * 指定了属主时只读取页头中的属主与之相同的页；pIndex 中已经知道属于其他属主的页直接跳过，不必读取
+ */
+public class HeapScanner implements UidIterator {
+    private static final int READ_AHEAD_PAGES = 16;
+    public static final int FIRST_PAGE = 2;     //第一页是 PageOne
+
+    public interface Filter {
+        //raw[start, end) 为 DataItem 的数据部分
+        boolean accept(byte[] raw, int start, int end);
+    }
+
+    private PageCache pc;
+    private PageIndex pIndex;
+    private long owner;
+    private Filter filter;
+    private int pgno;               //下一个要扫描的页
+    private int maxPgno;
+    private int readAheadEnd;       //[.., readAheadEnd) 的页已经发起过预读
+    private PageCache.ReadAhead readAhead;
+    private long[] uids;
+    private int size, pos;
+
+    HeapScanner(PageCache pc, PageIndex pIndex, long owner, Filter filter) {
+        this(pc, pIndex, owner, filter, FIRST_PAGE, pc.getPageNumber());
+    }
+
+    //只扫描页号在 [from, to] 中的页
+    HeapScanner(PageCache pc, PageIndex pIndex, long owner, Filter filter, int from, int to) {
+        this.pc = pc;
+        this.pIndex = pIndex;
+        this.owner = owner;
+        this.filter = filter;
+        this.pgno = Math.max(from, FIRST_PAGE);
+        this.maxPgno = to;
+        this.readAheadEnd = pgno;
+        this.uids = new long[64];
+    }
+
+    //返回下一个满足条件的 UID，扫描结束时返回 0
+    @Override
+    public long next() throws Exception {
+        while(pos == size) {
+            if(pgno > maxPgno) {
+                close();
+                return 0;
+            }
+            int no = pgno ++;
+            if(skip(no)) {
+                continue;
+            }
+            scanPage(no);
+        }
+        return uids[pos ++];
+    }
+
+    private boolean skip(int no) {
+        if(owner == PageIndex.SHARED) {
+            return false;
+        }
+        long pageOwner = pIndex.owner(no);
+        return pageOwner != PageIndex.SHARED && pageOwner != owner;
+    }
+
+    private void scanPage(int no) throws Exception {
+        if(no >= readAheadEnd) {
+            //只预读之后连续的、不会被跳过的页，预读了却不读取的页会一直占用暂存区
+            int count = 1;
+            while(count < READ_AHEAD_PAGES && no + count <= maxPgno && !skip(no + count)) {
+                count ++;
+            }
+            if(readAhead == null) {
+                readAhead = pc.readAhead();
+            }
+            readAhead.fetch(no, count);
+            readAheadEnd = no + count;
+        }
+        pos = size = 0;
+        Page pg = pc.getPage(no);
+        try {
+            byte[] raw = pg.getData();
+            if(owner != PageIndex.SHARED && PageX.getOwner(pg) != owner) {
+                return;
+            }
+            //扫描不加页面锁，与 PageX.insert 并发执行。insert 先复制 DataItem 再以 release 写入新的 FSO，
+            //这里以 acquire 读取 FSO，[OF_DATA, fso) 中的 DataItem 头部和数据都已完整可见；之后追加的 DataItem 不会被读到
+            int fso = PageX.getFSO(pg);
+            int offset = PageX.OF_DATA;
+            while(offset < fso) {
+                int length = DataItem.getDataItemLength(raw, offset);
+                if(DataItem.isDataItemRawValid(raw, offset)
+                    && filter.accept(raw, DataItem.getDataItemDataStart(offset), offset + length)) {
+                    add(Types.addressToUid(no, (short)offset));
+                }
+                offset += length;
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    //丢弃还没有用到的预读数据，提前停止扫描时调用
+    @Override
+    public void close() {
+        if(readAhead != null) {
+            readAhead.close();
+            readAhead = null;
+        }
+    }
+
+    private void add(long uid) {
+        if(size == uids.length) {
+            long[] tmp = new long[uids.length * 2];
+            System.arraycopy(uids, 0, tmp, 0, size);
+            uids = tmp;
+        }
+        uids[size ++] = uid;
+    }
+}
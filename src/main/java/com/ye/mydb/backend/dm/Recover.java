@@ -232,8 +232,8 @@ public class Recover {
 
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = Parser.getLong(log, OF_XID);
+        long uid = Parser.getLong(log, OF_UPDATE_UID);
         //将 log 数组中从 OF_UPDATE_UID 到 OF_UPDATE_RAW 索引位置的子数组转换为长整型数值，
         // 并将该值的低16位赋给 li.offset 属性，将剩余32位的高位赋给 li.pgno 属性。
         li.offset = (short) (uid & ((1L << 16) - 1));
@@ -290,9 +290,9 @@ public class Recover {
 
     private static InsertLogInfo parseInsertLog(byte[] log){
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log,OF_XID,OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log,OF_INSERT_PGNO,OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log,OF_INSERT_OFFSET,OF_INSERT_RAW));
+        li.xid = Parser.getLong(log,OF_XID);
+        li.pgno = Parser.getInt(log,OF_INSERT_PGNO);
+        li.offset = Parser.getShort(log,OF_INSERT_OFFSET);
         li.raw = Arrays.copyOfRange(log,OF_INSERT_RAW,log.length);
         return li;
     }
@@ -308,7 +308,10 @@ public class Recover {
         try{
             if(flag == UNDO){
                 //就是将该条 DataItem 的有效位设置为无效，来进行逻辑删除。
-                DataItem.setDataItemRawInvalid(li.raw);
+                //批量插入的日志中 raw 是连续存放的多个 DataItem，需要逐个设置
+                for(int pos = 0; pos < li.raw.length; pos += DataItem.getDataItemLength(li.raw, pos)){
+                    DataItem.setDataItemRawInvalid(li.raw, pos);
+                }
             }
             PageX.recoverInsert(pg,li.raw,li.offset);
         }finally {
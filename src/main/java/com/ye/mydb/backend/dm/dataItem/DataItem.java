@@ -7,8 +7,6 @@ import com.ye.mydb.backend.dm.page.Page;
 import com.ye.mydb.backend.utils.Parser;
 import com.ye.mydb.backend.utils.Types;
 
-import java.lang.reflect.Type;
-import java.util.Arrays;
 
 public interface DataItem {
     SubArray data();
@@ -32,16 +30,33 @@ public interface DataItem {
         return Bytes.concat(valid,size,raw);
     }
 
-    //从页面的offset处解析出dataitem
+    //从页面的offset处解析出dataitem，直接引用页面的数据，oldRaw 到第一次修改时才分配
     public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm){
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw,offset + DataItemImpl.OF_SIZE,offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
+        int length = getDataItemLength(raw, offset);
         long uid = Types.addressToUid(pg.getPageNumber(),offset);
-        return new DataItemImpl(new SubArray(raw,offset,offset + length),new byte[length],dm,uid,pg);
+        return new DataItemImpl(new SubArray(raw,offset,offset + length),dm,uid,pg);
+    }
+
+    //页面 offset 处 DataItem 的总长度（头部 + 数据），直接在页面上解析 DataSize，不拷贝
+    public static int getDataItemLength(byte[] raw, int offset){
+        return Parser.getShort(raw, offset + DataItemImpl.OF_SIZE) + DataItemImpl.OF_DATA;
+    }
+
+    public static boolean isDataItemRawValid(byte[] raw, int offset){
+        return raw[offset + DataItemImpl.OF_VALID] == (byte) 0;
+    }
+
+    //页面 offset 处 DataItem 的数据部分起始位置
+    public static int getDataItemDataStart(int offset){
+        return offset + DataItemImpl.OF_DATA;
     }
 
     public static void setDataItemRawInvalid(byte[] raw){
-        raw[DataItemImpl.OF_VALID] = (byte) 1;
+        setDataItemRawInvalid(raw, 0);
+    }
+
+    public static void setDataItemRawInvalid(byte[] raw, int offset){
+        raw[offset + DataItemImpl.OF_VALID] = (byte) 1;
     }
 }
@@ -6,7 +6,6 @@ import com.ye.mydb.backend.dm.page.Page;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * DataItem是DM层向上层提供的数据的抽象，上层模块通过地址，向DM请求到对应的DataItem，再获取到其中的数据。
@@ -24,18 +23,22 @@ public class DataItemImpl implements DataItem{
     static final int OF_DATA = 3;
 
     private SubArray raw;
-    private byte[] oldRaw;
+    private SubArray data;      //raw 中的 Data 部分，只创建一次
+    private byte[] oldRaw;      //修改前的备份，第一次 before 时才分配，只读的 DataItem 不分配
     private Lock rLock;
     private Lock wLock;
     private DataManagerImpl dm;
     private long uid;
     private Page pg;
 
-    public DataItemImpl(SubArray raw, byte[] oldRaw,DataManagerImpl dm, long uid, Page pg) {
+    //当前线程持有锁的 DataItem，只在开启断言时记录，用于检查同一时刻最多持有一个 DataItem 的锁
+    private static final ThreadLocal<DataItemImpl> held = new ThreadLocal<>();
+
+    public DataItemImpl(SubArray raw, DataManagerImpl dm, long uid, Page pg) {
         this.raw = raw;
-        this.oldRaw = oldRaw;
-        //读写锁
-        ReadWriteLock lock = new ReentrantReadWriteLock();
+        this.data = new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
+        //读写锁，由 DataManager 按 UID 分条共享
+        ReadWriteLock lock = dm.itemLock(uid);
         this.rLock = lock.readLock();
         this.wLock = lock.writeLock();
         this.dm = dm;
@@ -49,13 +52,17 @@ public class DataItemImpl implements DataItem{
 
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw,raw.start + OF_DATA, raw.end);
+        return data;
     }
 
     @Override
     public void before() {
+        assert latch() : nestedLatch();
         wLock.lock();
         pg.setDirty(true);
+        if(oldRaw == null) {
+            oldRaw = new byte[raw.end - raw.start];
+        }
         //把原始数据复制到一个备份数组 oldRaw 中（System.arraycopy(raw.raw,raw.start,oldRaw,0,oldRaw.length)）。
         // 这么做是因为如果在事务执行期间出现了错误或者需要回滚事务，就需要用到这个备份数据。
         System.arraycopy(raw.raw,raw.start,oldRaw,0,oldRaw.length);
@@ -66,12 +73,14 @@ public class DataItemImpl implements DataItem{
         //把备份数据 oldRaw 复制回原始数据中（System.arraycopy(oldRaw,0,raw.raw,raw.start,oldRaw.length)），撤销本次写操作；
         System.arraycopy(oldRaw,0,raw.raw,raw.start,oldRaw.length);
         wLock.unlock();
+        assert unlatch();
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid,this);
         wLock.unlock();
+        assert unlatch();
     }
 
     @Override
@@ -81,22 +90,44 @@ public class DataItemImpl implements DataItem{
 
     @Override
     public void lock() {
+        assert latch() : nestedLatch();
         wLock.lock();
     }
 
     @Override
     public void unlock() {
         wLock.unlock();
+        assert unlatch();
     }
 
     @Override
     public void rLock() {
+        assert latch() : nestedLatch();
         rLock.lock();
     }
 
     @Override
     public void rUnLock() {
         rLock.unlock();
+        assert unlatch();
+    }
+
+    //DataItem 的锁按 UID 分条共享，同时持有两个 DataItem 的锁可能死锁，见 DataManagerImpl.itemLock
+    private boolean latch() {
+        if(held.get() != null) {
+            return false;
+        }
+        held.set(this);
+        return true;
+    }
+
+    private boolean unlatch() {
+        held.remove();
+        return true;
+    }
+
+    private String nestedLatch() {
+        return "Nested DataItem latch: holding " + held.get().uid + ", acquiring " + uid;
     }
 
     @Override
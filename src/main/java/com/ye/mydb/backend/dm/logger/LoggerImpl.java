@@ -121,7 +121,7 @@ public class LoggerImpl implements Logger{
         byte[] log = buf.array();
 
         int checkSum1 = calChecksum(0, Arrays.copyOfRange(log,OF_DATA,log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log,OF_CHECKSUM,OF_DATA));
+        int checkSum2 = Parser.getInt(log,OF_CHECKSUM);
         if(checkSum1 != checkSum2){
             return null;
         }
@@ -3,38 +3,46 @@ package com.ye.mydb.backend.dm.page;
 import com.ye.mydb.backend.dm.pageCache.PageCache;
 import com.ye.mydb.backend.utils.Parser;
 
-import java.util.Arrays;
 
 /**
  * PageX管理普通页
  * 普通页结构
  * 一个页面以一个2字节无符号数起始，表示这一页的空闲位置的偏移。
+ * 接着是8字节的属主（见 PageIndex），在创建页面时写入并刷回磁盘，之后不再改变，非正常关闭后也能从页面中得到属主
  * 剩下的部分都是实际存储的数据
  * 对普通页的管理，基本都是围绕着对 FSO（Free Space Offset）
  */
 public class PageX {
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_OWNER = 2;
+    public static final short OF_DATA = 10;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE- OF_DATA;
 
-    public static byte[] initRaw(){
+    public static byte[] initRaw(long owner){
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setFSO(raw,OF_DATA);
+        Parser.putLong(raw,OF_OWNER,owner);
         return raw;
     }
 
+    //获取pg的属主
+    public static long getOwner(Page pg){
+        return Parser.getLong(pg.getData(),OF_OWNER);
+    }
+
+    //FSO 以 release 写入：写入数据在前、更新 FSO 在后，读到新 FSO 的线程一定能看到 FSO 之前的全部数据
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData),0,raw,OF_FREE,OF_DATA);
+        Parser.putShortRelease(raw,OF_FREE,ofData);
     }
 
-    //获取pg的FSO
+    //获取pg的FSO，以 acquire 读取，供不持有页面锁的读者（HeapScanner）使用
     public static short getFSO(Page pg){
-        return getFSO(pg.getData());
+        return Parser.getShortAcquire(pg.getData(),OF_FREE);
     }
 
     private static short getFSO(byte[] raw){
         //byte的0-2中存储着该页的偏移量
-        return Parser.parseShort(Arrays.copyOfRange(raw,0,2));
+        return Parser.getShort(raw,OF_FREE);
     }
 
     //将raw插入pg中，返回插入位置
@@ -14,6 +14,7 @@ public interface PageCache {
     public static final int PAGE_SIZE = 1 << 13;
 
     int newPage(byte[] initData);
+    int newPages(byte[] initData, int count);
     Page getPage(int pgno) throws Exception;
     void close();
     void release(Page page);
@@ -21,6 +22,17 @@ public interface PageCache {
     void truncateByBgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page pg);
+    ReadAhead readAhead();
+
+    /**
+     * 预读暂存区，由一次顺序扫描持有
+     * fetch 把 [pgno, pgno+count) 一次读入暂存区，这些页第一次进入缓存时直接使用暂存的数据；
+     * 扫描结束或提前停止时必须 close，丢弃还没有被使用的页
+     */
+    interface ReadAhead {
+        void fetch(int pgno, int count);
+        void close();
+    }
 
     //创建页面的方法
     public static PageCacheImpl create(String path,long memory){
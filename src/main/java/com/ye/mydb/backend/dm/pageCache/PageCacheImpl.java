@@ -10,6 +10,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -18,6 +21,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
+    private static final int MAX_READ_AHEAD_PAGES = 256;     //预读暂存区最多容纳的页数
 
     private RandomAccessFile file;
     private FileChannel fc;
@@ -25,8 +29,27 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     private AtomicInteger pageNumbers;         //用于记录当前打开的数据库文件有多少页
 
+    /**
+     * 预读进来、尚未被getForCache取走的页数据，按放入的先后排列，由 readAheadLock 保护
+     * 暂存区的页数计入内存限制：最多占 maxResource 的四分之一，缓存本身只使用剩下的部分
+     * 暂存区满时丢弃最早放入的页；每一页属于发起预读的 ReadAhead，ReadAhead 关闭时丢弃自己还没有被使用的页
+     */
+    private LinkedHashMap<Integer, Staged> readAheadPages;
+    private Lock readAheadLock;
+    private int readAheadLimit;
+
+    private static class Staged {
+        final ReadAheadImpl owner;
+        final byte[] data;
+
+        Staged(ReadAheadImpl owner, byte[] data) {
+            this.owner = owner;
+            this.data = data;
+        }
+    }
+
     PageCacheImpl(RandomAccessFile file, FileChannel fc,int maxResource) {
-        super(maxResource);
+        super(maxResource - readAheadLimit(maxResource));
         if(maxResource < MEM_MIN_LIM){
             Panic.panic(Error.MemTooSmallException);
         }
@@ -41,14 +64,57 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         this.fileLock = new ReentrantLock();
         //当前存储文件长度除以页面大小即可知道页码是多少
         this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.readAheadPages = new LinkedHashMap<>();
+        this.readAheadLock = new ReentrantLock();
+        this.readAheadLimit = readAheadLimit(maxResource);
+    }
+
+    private static int readAheadLimit(int maxResource) {
+        return Math.min(MAX_READ_AHEAD_PAGES, maxResource / 4);
     }
 
+    /**
+     * 新页先写入并落盘，再增加页数：扫描按 getPageNumber() 读到的页都已经在文件中，不会读到文件末尾之外、缓存一个全零的页
+     * 分配新页都在 fileLock 内进行，页号不会重复
+     */
     @Override
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet();
-        //pageCache 引用设置为null
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);      //新创建的页面需要立刻被写入外存之中
+        fileLock.lock();
+        try {
+            int pgno = pageNumbers.get() + 1;
+            //pageCache 引用设置为null
+            Page pg = new PageImpl(pgno, initData, null);
+            flush(pg);      //新创建的页面需要立刻被写入外存之中
+            pageNumbers.set(pgno);
+            return pgno;
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    //一次创建 count 个页号连续的新页，内容都是 initData，用一次写入落盘，返回第一页的页号
+    @Override
+    public int newPages(byte[] initData, int count) {
+        ByteBuffer buf = ByteBuffer.allocate(count * PAGE_SIZE);
+        for(int i = 0; i < count; i ++) {
+            buf.put(initData);
+        }
+        buf.flip();
+        int pgno = 0;
+        fileLock.lock();
+        try {
+            pgno = pageNumbers.get() + 1;
+            fc.position(pageOffset(pgno));
+            while(buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            fc.force(false);
+            pageNumbers.set(pgno + count - 1);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.unlock();
+        }
         return pgno;
     }
 
@@ -56,7 +122,10 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     public Page getPage(int pgno) throws Exception {
 
         //调用缓存策略的get方法
-        return get((long) pgno);
+        Page pg = get((long) pgno);
+        //页面已在缓存中时，预读的数据不会再被用到
+        removeStaged(pgno);
+        return pg;
     }
 
     @Override
@@ -81,6 +150,10 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
+        Staged staged = removeStaged(pgno);
+        if(staged != null) {
+            return new PageImpl(pgno, staged.data, this);
+        }
         long offset = PageCacheImpl.pageOffset(pgno);
 
         ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
@@ -124,6 +197,8 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
             fc.position(offset);
             fc.write(buf);
             fc.force(false);
+            //磁盘上的内容已更新，之前预读的数据失效
+            removeStaged(pgno);
         }catch (IOException e){
             Panic.panic(e);
         }finally {
@@ -146,6 +221,12 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
             Panic.panic(e);
         }
         pageNumbers.set(maxPgno);
+        readAheadLock.lock();
+        try {
+            readAheadPages.clear();
+        } finally {
+            readAheadLock.unlock();
+        }
     }
 
     @Override
@@ -157,4 +238,93 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     public void flushPage(Page pg) {
         flush(pg);
     }
+
+    private Staged removeStaged(int pgno) {
+        readAheadLock.lock();
+        try {
+            return readAheadPages.remove(pgno);
+        } finally {
+            readAheadLock.unlock();
+        }
+    }
+
+    @Override
+    public ReadAhead readAhead() {
+        return new ReadAheadImpl();
+    }
+
+    /**
+     * 顺序扫描时的预读：用一次 scatter read 把 [pgno, pgno+count) 读入暂存区，
+     * 之后这些页第一次进入缓存时直接使用暂存的数据，不再逐页读文件
+     */
+    private class ReadAheadImpl implements ReadAhead {
+        private ArrayDeque<Integer> pages = new ArrayDeque<>();     //放入过暂存区、可能还没有被取走的页
+
+        @Override
+        public void fetch(int pgno, int count) {
+            count = Math.min(Math.min(count, readAheadLimit), pageNumbers.get() - pgno + 1);
+            if(count <= 0) {
+                return;
+            }
+            ByteBuffer[] bufs = new ByteBuffer[count];
+            for(int i = 0; i < count; i ++) {
+                bufs[i] = ByteBuffer.allocate(PAGE_SIZE);
+            }
+            fileLock.lock();
+            try {
+                fc.position(pageOffset(pgno));
+                long total = (long)count * PAGE_SIZE, read = 0;
+                while(read < total) {
+                    long n = fc.read(bufs);
+                    if(n < 0) break;
+                    read += n;
+                }
+                //在 fileLock 内放入暂存区，保证不会覆盖 flush 之后的新数据
+                readAheadLock.lock();
+                try {
+                    //顺序扫描时前面的页已经被取走或丢弃，不必再记录
+                    while(!pages.isEmpty() && !isMine(pages.peekFirst())) {
+                        pages.pollFirst();
+                    }
+                    for(int i = 0; i < count; i ++) {
+                        if(!bufs[i].hasRemaining() && !readAheadPages.containsKey(pgno + i)) {
+                            readAheadPages.put(pgno + i, new Staged(this, bufs[i].array()));
+                            pages.add(pgno + i);
+                        }
+                    }
+                    Iterator<Integer> it = readAheadPages.keySet().iterator();
+                    while(readAheadPages.size() > readAheadLimit) {
+                        it.next();
+                        it.remove();
+                    }
+                } finally {
+                    readAheadLock.unlock();
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            } finally {
+                fileLock.unlock();
+            }
+        }
+
+        private boolean isMine(int pgno) {
+            Staged staged = readAheadPages.get(pgno);
+            return staged != null && staged.owner == this;
+        }
+
+        @Override
+        public void close() {
+            readAheadLock.lock();
+            try {
+                for(int pgno : pages) {
+                    if(isMine(pgno)) {
+                        readAheadPages.remove(pgno);
+                    }
+                }
+            } finally {
+                readAheadLock.unlock();
+            }
+            pages.clear();
+        }
+    }
 }
@@ -1,66 +1,300 @@
 package com.ye.mydb.backend.dm.pageIndex;
 
 import com.ye.mydb.backend.dm.pageCache.PageCache;
+import com.ye.mydb.backend.utils.Panic;
+import com.ye.mydb.backend.utils.Parser;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 页面索引
  * 缓存了每一页的空闲空间，用于在上一层模块进行插入操作时，能够快速找到一个合适空间的页面，而无序从磁盘或者缓存中检查每一个页面的信息
+ *
+ * 每个页面有一个属主：表的行所在的页属于该表（属主为表的 UID），索引节点所在的页属于该索引（属主为 B+ 树的 boot UID），
+ * 目录、B+ 树的 boot 等其他数据所在的页为 SHARED。属主在创建页面时写入页头（见 PageX），属主不同的页分开记录，插入时只在属主自己的页中选择，
+ * 没有合适的页时由上层一次分配一段页号连续的新页（extent）给该属主，extent 的大小随属主已有的页数翻倍，最多 MAX_EXTENT_PAGES 页，
+ * 这样同一张表的行、同一个索引的节点大多落在连续的页中，顺序扫描时预读和顺序 I/O 更有效
+ * 属于某个属主的页中只有该属主的数据，扫描一张表时只会读到这张表的行
+ *
+ * 每个属主的页按页号分到 SHARDS 个分片中，每个分片有自己的锁和 INTERVALS_NO + 1 个桶，用一个位图记录哪些桶非空，
+ * 找到合适的桶、从桶中取出和放回都是 O(1)。select 先在当前线程对应的分片中找，找不到再依次找其他分片，
+ * 同一个线程因此倾向于反复使用同一批页面，不同线程之间很少争用同一把锁
+ * 被选择的页仍会从索引中移除，直到使用者用 add 放回，同一页面不会被并发写入
+ *
+ * 关闭时可以把索引保存到 .fsm 文件：[PageNumber][Page2FreeSpace]...[PageNFreeSpace][ExtentCount][Extent]...，
+ * Extent 为 [FirstPgno][Pages][Owner]。下次正常打开时直接读取，不必逐页读取数据库文件。
+ * 读取后删除该文件，非正常关闭后文件不存在，需要重新逐页统计，属主从每一页的页头中读取
+ * 空闲空间不足 THRESHOLD 的页不会被选中，不在索引中，保存时和被取出的页一样记为没有空闲空间
  */
 public class PageIndex {
+    public static final String FSM_SUFFIX = ".fsm";
+    public static final String FSM_TMP_SUFFIX = ".fsm_tmp";
+    public static final long SHARED = 0;
+
     //将一页划成40个区间
     private static final int INTERVALS_NO = 40;
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    private static final int SHARDS = 8;
+    private static final int MAX_EXTENT_PAGES = 64;
+
+    private Map<Long, Space> spaces;
+    private NavigableMap<Integer, Extent> extents;      //第一页的页号 -> extent，不在任何 extent 中的页为 SHARED 或者还没有统计到
+    private Lock extentLock;                            //修改 extents 时持有，查询不加锁
+
+    //一个属主的所有页
+    private static class Space {
+        Shard[] shards;
+        AtomicInteger pages = new AtomicInteger();      //分配给该属主的页数
+
+        Space() {
+            shards = new Shard[SHARDS];
+            for(int i = 0;i < SHARDS;i++){
+                shards[i] = new Shard();
+            }
+        }
+    }
 
-    private List<PageInfo>[] lists;
-    private Lock lock;
+    private static class Shard {
+        Lock lock = new ReentrantLock();
+        ArrayDeque<PageInfo>[] buckets;
+        long nonEmpty;      //第 i 位为 1 表示 buckets[i] 非空
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Shard() {
+            //桶在第一次放入页面时创建，属主很多时也不会占用太多内存
+            buckets = new ArrayDeque[INTERVALS_NO + 1];
+        }
+    }
+
+    private static class Extent {
+        final int pages;
+        final long owner;
+
+        Extent(int pages, long owner) {
+            this.pages = pages;
+            this.owner = owner;
+        }
+    }
 
-    @SuppressWarnings("unchecked")
     public PageIndex(){
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO + 1];
-        for(int i = 0;i < INTERVALS_NO + 1;i++){
-            lists[i] = new ArrayList<>();
+        spaces = new ConcurrentHashMap<>();
+        extents = new ConcurrentSkipListMap<>();
+        extentLock = new ReentrantLock();
+    }
+
+    private Space space(long owner){
+        return spaces.computeIfAbsent(owner, k -> new Space());
+    }
+
+    //页面的属主，逐页统计完成之前还没有统计到的页返回 SHARED
+    public long owner(int pgno){
+        Map.Entry<Integer, Extent> e = extents.floorEntry(pgno);
+        if(e == null || pgno >= e.getKey() + e.getValue().pages){
+            return SHARED;
+        }
+        return e.getValue().owner;
+    }
+
+    //属主下一次分配的 extent 的页数：1, 1, 2, 4, ...，最多 MAX_EXTENT_PAGES
+    public int extentPages(long owner){
+        if(owner == SHARED){
+            return 1;
+        }
+        int pages = space(owner).pages.get();
+        return Math.min(MAX_EXTENT_PAGES, Integer.highestOneBit(Math.max(1, pages)));
+    }
+
+    /**
+     * 把 [pgno, pgno+pages) 记为 owner 的页，都以 freeSpace 的空闲空间加入索引
+     * 和前一个 extent 相邻且属主相同时合并
+     */
+    public void addExtent(long owner,int pgno,int pages,int freeSpace){
+        if(owner != SHARED){
+            extentLock.lock();
+            try{
+                setExtent(owner, pgno, pages);
+            }finally {
+                extentLock.unlock();
+            }
+            space(owner).pages.addAndGet(pages);
+        }
+        for(int i = 0;i < pages;i++){
+            add(pgno + i, freeSpace);
+        }
+    }
+
+    private void setExtent(long owner,int pgno,int pages){
+        Map.Entry<Integer, Extent> prev = extents.lowerEntry(pgno);
+        if(prev != null && prev.getValue().owner == owner && prev.getKey() + prev.getValue().pages == pgno){
+            extents.put(prev.getKey(), new Extent(prev.getValue().pages + pages, owner));
+        }else{
+            extents.put(pgno, new Extent(pages, owner));
         }
     }
 
     public void add(int pgno,int freeSpace){
-        lock.lock();
+        Shard shard = space(owner(pgno)).shards[pgno % SHARDS];
+        //select 至少从 1 号桶开始找，空闲空间不足 THRESHOLD 的页永远不会被选中，不必记录
+        if(freeSpace < THRESHOLD){
+            return;
+        }
+        shard.lock.lock();
         try{
             int number = freeSpace / THRESHOLD;
             //上层模块使用完这个页面后，需要将其重新插入PageIndex
             //给空闲分页添加信息
-            lists[number].add(new PageInfo(pgno,freeSpace));
+            if(shard.buckets[number] == null){
+                shard.buckets[number] = new ArrayDeque<>();
+            }
+            shard.buckets[number].addLast(new PageInfo(pgno,freeSpace));
+            shard.nonEmpty |= 1L << number;
         }finally {
-            lock.unlock();
+            shard.lock.unlock();
+        }
+    }
+
+    //在 owner 的页中选择空闲空间不小于 spaceSize 的页，没有时返回 null
+    public PageInfo select(long owner,int spaceSize){
+        int number = spaceSize / THRESHOLD;
+        //这是因为在计算需要查找的数据所占页面数量时，可能会存在一个精度问题，导致计算结果比实际需要的页面数量少1。
+        // 因此，在number小于预设的区间数量时，为避免漏掉最后一页的数据，需要将number自增1。
+        //举个例子，假设THRESHOLD为10，spaceSize为99，那么计算出的number为9（99/10=9.9），
+        // 但实际上需要10页才能存储全部数据。因此，在这种情况下，需要将number自增1，才能保证访问到所有数据。
+        if(number < INTERVALS_NO) number++;
+        Space space = spaces.get(owner);
+        if(space == null){
+            return null;
         }
+        int home = (int)(Thread.currentThread().getId() % SHARDS);
+        for(int i = 0;i < SHARDS;i++){
+            PageInfo pi = select(space.shards[(home + i) % SHARDS], number);
+            if(pi != null){
+                return pi;
+            }
+        }
+        return null;
     }
 
-    public PageInfo select(int spaceSize){
-        lock.lock();
+    //在分片中取出第一个不小于 number 的非空桶中最后放回的页面
+    private PageInfo select(Shard shard,int number){
+        shard.lock.lock();
         try{
-            int number = spaceSize / THRESHOLD;
-            //这是因为在计算需要查找的数据所占页面数量时，可能会存在一个精度问题，导致计算结果比实际需要的页面数量少1。
-            // 因此，在number小于预设的区间数量时，为避免漏掉最后一页的数据，需要将number自增1。
-            //举个例子，假设THRESHOLD为10，spaceSize为99，那么计算出的number为9（99/10=9.9），
-            // 但实际上需要10页才能存储全部数据。因此，在这种情况下，需要将number自增1，才能保证访问到所有数据。
-            if(number < INTERVALS_NO) number++;
-            while(number <= INTERVALS_NO){
-                if(lists[number].size() == 0){
-                    number++;
-                    continue;
-                }
-                //如果number小于等于预先设定的区间数量INTERVALS_NO，则在这些区间中选择一个非空的页面列表并返回其中的第一个页面（从列表中移除并返回）
-                //被选择的页，会直接从PageIndex中移除，意味着，同一个页面是不允许并发写的
-                return lists[number].remove(0);
+            long candidates = shard.nonEmpty & (-1L << number);
+            if(candidates == 0){
+                return null;
             }
-            return null;
+            int bucket = Long.numberOfTrailingZeros(candidates);
+            //被选择的页，会直接从PageIndex中移除，意味着，同一个页面是不允许并发写的
+            PageInfo pi = shard.buckets[bucket].pollLast();
+            if(shard.buckets[bucket].isEmpty()){
+                shard.nonEmpty &= ~(1L << bucket);
+            }
+            return pi;
         }finally {
-            lock.unlock();
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * 把索引保存到 path 对应的 .fsm 文件，pageNumber 为数据库文件当前的页数
+     * 应在没有插入进行时调用；此时不在索引中的页面记为没有空闲空间
+     */
+    public void save(String path,int pageNumber){
+        int ofExtents = 4 + 2 * Math.max(0, pageNumber - 1);
+        byte[] raw = new byte[ofExtents + 4 + 16 * extents.size()];
+        Parser.putInt(raw,0,pageNumber);
+        for(Space space : spaces.values()){
+            for(Shard shard : space.shards){
+                shard.lock.lock();
+                try{
+                    for(ArrayDeque<PageInfo> bucket : shard.buckets){
+                        if(bucket == null) continue;
+                        for(PageInfo pi : bucket){
+                            if(pi.pgno >= 2 && pi.pgno <= pageNumber){
+                                Parser.putShort(raw,4 + 2 * (pi.pgno - 2),(short)pi.freeSpace);
+                            }
+                        }
+                    }
+                }finally {
+                    shard.lock.unlock();
+                }
+            }
+        }
+        int count = 0;
+        int pos = ofExtents + 4;
+        for(Map.Entry<Integer, Extent> e : extents.entrySet()){
+            int pages = Math.min(e.getValue().pages, pageNumber - e.getKey() + 1);
+            if(pages <= 0) continue;
+            Parser.putInt(raw,pos,e.getKey());
+            Parser.putInt(raw,pos + 4,pages);
+            Parser.putLong(raw,pos + 8,e.getValue().owner);
+            pos += 16;
+            count++;
+        }
+        Parser.putInt(raw,ofExtents,count);
+        File tmp = new File(path + FSM_TMP_SUFFIX);
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(raw,0,pos);
+            out.flush();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path + FSM_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 从 .fsm 文件读入索引并删除该文件，文件不存在或记录的页数与 pageNumber 不同时返回 false，
+     * 此时需要逐页统计
+     */
+    public boolean load(String path,int pageNumber){
+        new File(path + FSM_TMP_SUFFIX).delete();
+        File f = new File(path + FSM_SUFFIX);
+        if(!f.exists()){
+            return false;
+        }
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(f.toPath());
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        f.delete();
+        int ofExtents = 4 + 2 * Math.max(0, pageNumber - 1);
+        if(raw.length < ofExtents + 4 || Parser.getInt(raw,0) != pageNumber
+            || raw.length != ofExtents + 4 + 16 * Parser.getInt(raw,ofExtents)){
+            return false;
+        }
+        //先恢复属主，页面才会加入各自属主的索引
+        for(int pos = ofExtents + 4;pos < raw.length;pos += 16){
+            long owner = Parser.getLong(raw,pos + 8);
+            int pages = Parser.getInt(raw,pos + 4);
+            extentLock.lock();
+            try{
+                setExtent(owner, Parser.getInt(raw,pos), pages);
+            }finally {
+                extentLock.unlock();
+            }
+            space(owner).pages.addAndGet(pages);
+        }
+        for(int pgno = 2;pgno <= pageNumber;pgno++){
+            add(pgno,Parser.getShort(raw,4 + 2 * (pgno - 2)));
         }
+        return true;
     }
 }
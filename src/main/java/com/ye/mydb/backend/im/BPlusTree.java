@@ -1,29 +1,57 @@
 package com.ye.mydb.backend.im;
 
+import com.google.common.primitives.Bytes;
 import com.ye.mydb.backend.common.SubArray;
 import com.ye.mydb.backend.dm.DataManager;
 import com.ye.mydb.backend.dm.dataItem.DataItem;
 import com.ye.mydb.backend.tm.TransactionManagerImpl;
 import com.ye.mydb.backend.utils.Parser;
+import com.ye.mydb.common.Error;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-//MYDB 只支持基于索引查找数据，不支持全表扫描
+//索引用于按 key 查找数据，没有可用索引的条件由 HeapScanner 顺序扫描表的页（见 Table.parseWhere）
 //IM 直接基于 DM，而没有基于 VM。索引的数据被直接插入数据库文件中，而不需要经过版本管理。
+//boot 中存放 [RootUid][KeyWidth]，只有 RootUid 的旧 boot 视为 KeyWidth 为 1
+//分裂出的节点和新的根节点插入到属于这棵树（属主为 bootUid）的页中，创建时的第一个根节点和 boot 在共享页中
 public class BPlusTree {
+    //单棵树的 key 最多由多少个 long 组成，保证节点能放进一页
+    public static final int MAX_KEY_WIDTH = 8;
+    //估算统计信息和取样时最多读取的叶子数
+    static final int PROBES = 64;
+    //唯一索引插入的锁按键前缀的哈希分成的份数
+    static final int UNIQUE_STRIPES = 64;
+
     DataManager dm;
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
+    Lock[] uniqueLocks;     //前缀相同的唯一索引插入需要串行执行检查和插入，按前缀的哈希选择其中一个锁
+    int keyWidth;
+    //统计信息：条目数和不同 key 的个数，用于估算查询代价
+    //插入时维护，打开已有的树后在第一次读取时得出：不超过 PROBES 个叶子的树逐个读取叶子，否则按比例下探 PROBES 次估算，
+    //代价与树的大小无关；并发插入时只是近似值
+    private volatile AtomicLong entries, distinct;
+    private Lock statsLock;
+
+    //唯一索引插入时，判断 key 前缀相同的已有条目 uid 是否仍占用该键
+    public interface UniqueCheck {
+        boolean conflicts(long uid) throws Exception;
+    }
 
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        return create(dm, 1);
+    }
+
+    public static long create(DataManager dm, int keyWidth) throws Exception {
+        byte[] rawRoot = Node.newNilRootRaw(keyWidth);
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Bytes.concat(Parser.long2Byte(rootUid), Parser.int2Byte(keyWidth)));
     }
 
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
@@ -34,6 +62,13 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.uniqueLocks = new Lock[UNIQUE_STRIPES];
+        for(int i = 0; i < UNIQUE_STRIPES; i ++) {
+            t.uniqueLocks[i] = new ReentrantLock();
+        }
+        t.statsLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        t.keyWidth = sa.end - sa.start >= 12 ? Parser.getInt(sa.raw, sa.start+8) : 1;
         return t;
     }
 
@@ -41,27 +76,181 @@ public class BPlusTree {
         bootLock.lock();
         try {
             SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            return Parser.getLong(sa.raw, sa.start);
         } finally {
             bootLock.unlock();
         }
     }
 
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    private void updateRootUid(long left, long right, long[] rightKey) throws Exception {
         bootLock.lock();
         try {
             byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, bootUid, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            Parser.putLong(diRaw.raw, diRaw.start, newRootUid);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
         } finally {
             bootLock.unlock();
         }
     }
 
-    private long searchLeaf(long nodeUid, long key) throws Exception {
+    public int getKeyWidth() {
+        return keyWidth;
+    }
+
+    public long getEntries() throws Exception {
+        loadStats();
+        return entries.get();
+    }
+
+    public long getDistinct() throws Exception {
+        loadStats();
+        return distinct.get();
+    }
+
+    private void loadStats() throws Exception {
+        if(entries != null) {
+            return;
+        }
+        statsLock.lock();
+        try {
+            if(entries != null) {
+                return;
+            }
+            long rootUid = rootUid();
+            long[] minKey = new long[keyWidth];
+            Arrays.fill(minKey, Long.MIN_VALUE);
+            long leafUid = searchLeaf(rootUid, minKey);
+            long e = 0, d = 0;
+            long[] lastKey = null;
+            for(int i = 0; leafUid != 0 && i < PROBES; i ++) {
+                Node leaf = Node.loadNode(this, leafUid);
+                Node.LeafStatsRes res = leaf.leafStats(lastKey);
+                leaf.release();
+                e += res.entries;
+                d += res.distinct;
+                lastKey = res.lastKey;
+                leafUid = res.siblingUid;
+            }
+            if(leafUid != 0) {
+                long[] est = estimateStats(rootUid);
+                e = est[0];
+                d = est[1];
+            }
+            distinct = new AtomicLong(d);
+            entries = new AtomicLong(e);
+        } finally {
+            statsLock.unlock();
+        }
+    }
+
+    /**
+     * 按均匀分布的比例下探 PROBES 个叶子，返回 {条目数, 不同 key 的个数} 的估计
+     * 条目数为各叶子的条目数乘以路径估算的叶子数的平均；不同 key 的个数取两种估计中较大的一个：
+     * 叶子内部相邻条目 key 不同的比例乘以条目数（不同 key 很多时），以及下探到的叶子中一共出现的不同 key 的个数（不同 key 很少时）
+     */
+    private long[] estimateStats(long rootUid) throws Exception {
+        double e = 0;
+        long pairs = 0, changes = 0, seen = 0;
+        long prevUid = 0;
+        long[] prevKey = null;
+        for(int i = 0; i < PROBES; i ++) {
+            Descent p = descend(rootUid, (i + 0.5) / PROBES);
+            Node leaf = Node.loadNode(this, p.leafUid);
+            Node.LeafStatsRes res = leaf.leafStats(null);
+            //下探按 key 的顺序进行，与前一个叶子的最后一个 key 比较即可得出新出现的 key
+            Node.LeafStatsRes merged = p.leafUid == prevUid ? null : leaf.leafStats(prevKey);
+            leaf.release();
+            e += p.leaves * res.entries;
+            if(res.entries > 0) {
+                pairs += res.entries - 1;
+                changes += res.distinct - 1;
+            }
+            if(merged != null) {
+                seen += merged.distinct;
+                prevKey = merged.lastKey;
+                prevUid = p.leafUid;
+            }
+        }
+        long entries = Math.round(e / PROBES);
+        long distinct = pairs == 0 ? entries : Math.round(1 + (double)changes / pairs * Math.max(0, entries - 1));
+        return new long[]{entries, Math.min(entries, Math.max(distinct, seen))};
+    }
+
+    private static class Descent {
+        long leafUid;
+        double leaves = 1;      //按路径上各层的条目数之积估算的叶子数
+        long[] key;             //叶子中按比例选中的 key
+    }
+
+    //从根按比例 f 下探到一个叶子，每层选择第 floor(f*noKeys) 个子节点，f 取余下的比例
+    private Descent descend(long rootUid, double f) throws Exception {
+        Descent res = new Descent();
+        long uid = rootUid;
+        while(true) {
+            Node node = Node.loadNode(this, uid);
+            Node.ProbeRes p = node.probe(f);
+            node.release();
+            if(p.leaf || p.noKeys == 0) {
+                res.leafUid = uid;
+                res.key = p.key;
+                return res;
+            }
+            res.leaves *= p.noKeys;
+            f = p.rest;
+            uid = p.son;
+        }
+    }
+
+    /**
+     * 按 key 的顺序取出约 buckets+1 个 {位置, key}，key 只取第一个分量，第一个和最后一个条目总是取出，用于构造直方图
+     * 不超过 PROBES 个叶子的树逐个读取叶子按间隔取样；否则按均匀分布的比例下探，位置由条目数估算，代价与树的大小无关
+     */
+    public List<long[]> sample(int buckets) throws Exception {
+        long rootUid = rootUid();
+        long[] minKey = new long[keyWidth];
+        Arrays.fill(minKey, Long.MIN_VALUE);
+        long leafUid = searchLeaf(rootUid, minKey);
+        long[] keys = new long[PROBES * (Node.BALANCE_NUMBER*2+2)];
+        int size = 0;
+        for(int i = 0; leafUid != 0 && i < PROBES; i ++) {
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.LeafKeysRes res = leaf.leafKeys(keys, size);
+            leaf.release();
+            size += res.size;
+            leafUid = res.siblingUid;
+        }
+        List<long[]> samples = new ArrayList<>();
+        if(leafUid == 0) {
+            long stride = Math.max(1, size / buckets);
+            for(int i = 0; i < size; i ++) {
+                if(i % stride == 0 || i == size - 1) {
+                    samples.add(new long[]{i, keys[i]});
+                }
+            }
+            return samples;
+        }
+        long n = Math.max(1, getEntries());
+        for(int i = 0; i <= buckets; i ++) {
+            double f = i == buckets ? Math.nextDown(1.0) : (double)i / buckets;
+            Descent p = descend(rootUid, f);
+            if(p.key != null) {
+                samples.add(new long[]{Math.round(f * (n - 1)), p.key[0]});
+            }
+        }
+        return samples;
+    }
+
+    private void countInsert(long count, long newKeys) {
+        if(entries != null) {
+            entries.addAndGet(count);
+            distinct.addAndGet(newKeys);
+        }
+    }
+
+    private long searchLeaf(long nodeUid, long[] key) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
@@ -74,7 +263,7 @@ public class BPlusTree {
         }
     }
 
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, long[] key) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
             Node.SearchNextRes res = node.searchNext(key);
@@ -84,62 +273,198 @@ public class BPlusTree {
         }
     }
 
-    public List<Long> search(long key) throws Exception {
+    public RangeCursor search(long key) throws Exception {
         return searchRange(key, key);
     }
 
-    public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
+    public RangeCursor searchRange(long leftKey, long rightKey) throws Exception {
+        return searchRange(new long[]{leftKey}, new long[]{rightKey});
+    }
+
+    //返回 [leftKey, rightKey] 范围内 UID 的游标，叶子在迭代时才按需读取，key 按字典序比较
+    public RangeCursor searchRange(long[] leftKey, long[] rightKey) throws Exception {
         long rootUid = rootUid();
         long leafUid = searchLeaf(rootUid, leftKey);
-        List<Long> uids = new ArrayList<>();
-        while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if(res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
-            }
-        }
-        return uids;
+        return new RangeCursor(this, leafUid, leftKey, rightKey);
+    }
+
+    //整棵树按 key 升序的游标
+    public RangeCursor searchAll() throws Exception {
+        long[] minKey = new long[keyWidth];
+        Arrays.fill(minKey, Long.MIN_VALUE);
+        return searchRange(minKey, Node.maxKey(keyWidth));
+    }
+
+    //从最右边的叶子开始到末尾的游标，只读取最后一两个叶子，用于取最大的 key
+    public RangeCursor searchTail() throws Exception {
+        long[] minKey = new long[keyWidth];
+        Arrays.fill(minKey, Long.MIN_VALUE);
+        long[] maxKey = Node.maxKey(keyWidth);
+        long leafUid = searchLeaf(rootUid(), maxKey);
+        return new RangeCursor(this, leafUid, minKey, maxKey);
     }
 
     public void insert(long key, long uid) throws Exception {
+        insert(new long[]{key}, uid);
+    }
+
+    public void insert(long[] key, long uid) throws Exception {
         long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
+        InsertRes res = insert(rootUid, uid, key, null);
         assert res != null;
+        countInsert(1, res.newKeys);
         if(res.newNode != 0) {
             updateRootUid(rootUid, res.newNode, res.newKey);
         }
     }
 
+    /**
+     * 唯一索引的插入，key 的前 prefix 个 long 相同即视为同一个键
+     * 下降时使用该前缀下最小的 key，到达叶子后先向右检查前缀相同的已有条目，有冲突时抛出 DuplicateKeyException，
+     * 没有冲突再从这个叶子开始插入。只有前缀相同的插入之间互斥，不同的键与普通插入一样依靠节点的锁并发执行
+     */
+    public void insertUnique(long[] key, int prefix, long uid, UniqueCheck check) throws Exception {
+        Probe probe = new Probe();
+        probe.low = Arrays.copyOf(key, key.length);
+        probe.high = Arrays.copyOf(key, key.length);
+        Arrays.fill(probe.low, prefix, key.length, Long.MIN_VALUE);
+        Arrays.fill(probe.high, prefix, key.length, Long.MAX_VALUE);
+        probe.check = check;
+        Lock lock = uniqueLock(key, prefix);
+        lock.lock();
+        try {
+            long rootUid = rootUid();
+            InsertRes res = insert(rootUid, uid, key, probe);
+            countInsert(1, res.newKeys);
+            if(res.newNode != 0) {
+                updateRootUid(rootUid, res.newNode, res.newKey);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lock uniqueLock(long[] key, int prefix) {
+        int h = 1;
+        for(int i = 0; i < prefix; i ++) {
+            h = 31 * h + Long.hashCode(key[i]);
+        }
+        h ^= h >>> 16;
+        return uniqueLocks[(h & 0x7fffffff) % UNIQUE_STRIPES];
+    }
+
+    class Probe {
+        long[] low, high;
+        UniqueCheck check;
+    }
+
+    //从叶子 leafUid 开始检查 [low, high] 内的条目
+    private void checkUnique(long leafUid, Probe probe) throws Exception {
+        RangeCursor cursor = new RangeCursor(this, leafUid, probe.low, probe.high);
+        while(true) {
+            long uid = cursor.next();
+            if(uid == 0) {
+                return;
+            }
+            if(probe.check.conflicts(uid)) {
+                throw Error.DuplicateKeyException;
+            }
+        }
+    }
+
     class InsertRes {
-        long newNode, newKey;
+        long newNode;
+        long[] newKey;
+        int count;
+        int newKeys;
+    }
+
+    public void insertAll(long[] keys, long[] uids) throws Exception {
+        long[][] wideKeys = new long[keys.length][];
+        for(int i = 0; i < keys.length; i ++) {
+            wideKeys[i] = new long[]{keys[i]};
+        }
+        insertAll(wideKeys, uids);
+    }
+
+    //批量插入，keys 需为升序。落在同一叶子中的连续键一次写入该叶子，只产生一条日志
+    public void insertAll(long[][] keys, long[] uids) throws Exception {
+        int pos = 0;
+        while(pos < keys.length) {
+            long rootUid = rootUid();
+            InsertRes res = insertAll(rootUid, keys, uids, pos);
+            pos += res.count;
+            countInsert(res.count, res.newKeys);
+            if(res.newNode != 0) {
+                updateRootUid(rootUid, res.newNode, res.newKey);
+            }
+        }
     }
 
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAll(long nodeUid, long[][] keys, long[] uids, int from) throws Exception {
+        Node node = Node.loadNode(this, nodeUid);
+        boolean isLeaf = node.isLeaf();
+        node.release();
+
+        if(isLeaf) {
+            return leafInsertAllAndSplit(nodeUid, keys, uids, from);
+        }
+        long next = searchNext(nodeUid, keys[from]);
+        InsertRes ir = insertAll(next, keys, uids, from);
+        InsertRes res = null;
+        if(ir.newNode != 0) {
+            res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+        } else {
+            res = new InsertRes();
+        }
+        res.count = ir.count;
+        res.newKeys = ir.newKeys;
+        return res;
+    }
+
+    private InsertRes leafInsertAllAndSplit(long nodeUid, long[][] keys, long[] uids, int from) throws Exception {
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            Node.InsertAndSplitRes iasr = node.leafInsertAllAndSplit(keys, uids, from);
+            node.release();
+            if(iasr.count == 0) {
+                nodeUid = iasr.siblingUid;
+            } else {
+                InsertRes res = new InsertRes();
+                res.newNode = iasr.newSon;
+                res.newKey = iasr.newKey;
+                res.count = iasr.count;
+                res.newKeys = iasr.newKeys;
+                return res;
+            }
+        }
+    }
+
+    private InsertRes insert(long nodeUid, long uid, long[] key, Probe probe) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
 
         InsertRes res = null;
         if(isLeaf) {
+            if(probe != null) {
+                checkUnique(nodeUid, probe);
+            }
             res = insertAndSplit(nodeUid, uid, key);
         } else {
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
+            long next = searchNext(nodeUid, probe != null ? probe.low : key);
+            InsertRes ir = insert(next, uid, key, probe);
             if(ir.newNode != 0) {
                 res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
             } else {
                 res = new InsertRes();
             }
+            res.newKeys = ir.newKeys;
         }
         return res;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, long[] key) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
             Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
@@ -150,6 +475,7 @@ public class BPlusTree {
                 InsertRes res = new InsertRes();
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
+                res.newKeys = iasr.newKeys;
                 return res;
             }
         }
@@ -5,9 +5,7 @@ import com.ye.mydb.backend.dm.dataItem.DataItem;
 import com.ye.mydb.backend.tm.TransactionManagerImpl;
 import com.ye.mydb.backend.utils.Parser;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * Node结构如下：
@@ -18,6 +16,7 @@ import java.util.List;
  * KeyNumber为该节点中key的个数
  * SiblingUid是其兄弟节点存储在DM中的UID
  * 后序是穿插的子节点（SonN）和KeyN，最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。
+ * 每个 Key 由树的 keyWidth 个 long 组成，按字典序比较，单列索引的 keyWidth 为 1
  *
  * 持有了其 B+ 树结构的引用，DataItem 的引用和 SubArray 的引用，用于方便快速修改数据和释放数据
  */
@@ -28,13 +27,21 @@ public class Node {
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
     static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
 
     BPlusTree tree;
     DataItem dataItem;
     SubArray raw;
     long uid;
 
+    //一个 [Son][Key] 的字节数
+    static int entrySize(int keyWidth) {
+        return 8 + 8*keyWidth;
+    }
+
+    static int nodeSize(int keyWidth) {
+        return NODE_HEADER_SIZE + entrySize(keyWidth)*(BALANCE_NUMBER*2+2);
+    }
+
     //设置/获取节点是否为叶子节点
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
@@ -50,76 +57,107 @@ public class Node {
 
     //设置/获取该节点包含的key数量。
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        Parser.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)Parser.getShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     //设置/获取该节点的前驱/后继节点的 UID
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        Parser.putLong(raw.raw, raw.start+SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return Parser.getLong(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
     //设置/获取第 k 个儿子节点的 UID。
-    static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+    static void setRawKthSon(SubArray raw, long uid, int kth, int keyWidth) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*entrySize(keyWidth);
+        Parser.putLong(raw.raw, offset, uid);
     }
 
-    static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+    static long getRawKthSon(SubArray raw, int kth, int keyWidth) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*entrySize(keyWidth);
+        return Parser.getLong(raw.raw, offset);
     }
 
     //设置/获取第 k 个键值对的key。
-    static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+    static void setRawKthKey(SubArray raw, long[] key, int kth) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*entrySize(key.length)+8;
+        for(int i = 0; i < key.length; i ++) {
+            Parser.putLong(raw.raw, offset+i*8, key[i]);
+        }
     }
 
-    static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+    static long[] getRawKthKey(SubArray raw, int kth, int keyWidth) {
+        long[] key = new long[keyWidth];
+        readRawKthKey(raw, kth, key, 0, keyWidth);
+        return key;
+    }
+
+    //将第 k 个 key 读入 dst 中从 dstPos 开始的 keyWidth 个位置
+    static void readRawKthKey(SubArray raw, int kth, long[] dst, int dstPos, int keyWidth) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*entrySize(keyWidth)+8;
+        for(int i = 0; i < keyWidth; i ++) {
+            dst[dstPos+i] = Parser.getLong(raw.raw, offset+i*8);
+        }
+    }
+
+    //按字典序比较第 k 个 key 与 key，返回值的符号与 Long.compare 相同
+    static int compareRawKthKey(SubArray raw, int kth, long[] key) {
+        int offset = raw.start+NODE_HEADER_SIZE+kth*entrySize(key.length)+8;
+        for(int i = 0; i < key.length; i ++) {
+            long ik = Parser.getLong(raw.raw, offset+i*8);
+            if(ik != key[i]) {
+                return ik < key[i] ? -1 : 1;
+            }
+        }
+        return 0;
     }
 
     //将节点从第 k 个位置开始的数据拷贝到另一个节点中
-    static void copyRawFromKth(SubArray from, SubArray to, int kth) {
-        int offset = from.start+NODE_HEADER_SIZE+kth*(8*2);
+    static void copyRawFromKth(SubArray from, SubArray to, int kth, int keyWidth) {
+        int offset = from.start+NODE_HEADER_SIZE+kth*entrySize(keyWidth);
         System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
     }
 
-    //将第 k 个位置之后的数据向后移动 2 个 long 的大小。
-    static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
+    //将第 k 个位置之后的数据向后移动一个 [Son][Key] 的大小。
+    static void shiftRawKth(SubArray raw, int kth, int keyWidth) {
+        int entry = entrySize(keyWidth);
+        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*entry;
+        int end = raw.start+nodeSize(keyWidth)-1;
         for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
+            raw.raw[i] = raw.raw[i-entry];
         }
     }
 
+    static long[] maxKey(int keyWidth) {
+        long[] key = new long[keyWidth];
+        Arrays.fill(key, Long.MAX_VALUE);
+        return key;
+    }
+
     // 创建一个新的根节点，分别用于初始化一棵新树和创建一个空的 B+树 。
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(long left, long right, long[] key)  {
+        int keyWidth = key.length;
+        SubArray raw = new SubArray(new byte[nodeSize(keyWidth)], 0, nodeSize(keyWidth));
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
         setRawSibling(raw, 0);
-        setRawKthSon(raw, left, 0);
+        setRawKthSon(raw, left, 0, keyWidth);
         setRawKthKey(raw, key, 0);
-        setRawKthSon(raw, right, 1);
-        setRawKthKey(raw, Long.MAX_VALUE, 1);
+        setRawKthSon(raw, right, 1, keyWidth);
+        setRawKthKey(raw, maxKey(keyWidth), 1);
 
         return raw.raw;
     }
 
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int keyWidth)  {
+        SubArray raw = new SubArray(new byte[nodeSize(keyWidth)], 0, nodeSize(keyWidth));
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -161,16 +199,18 @@ public class Node {
         long siblingUid;
     }
 
-    //在该节点中查找下一个子节点
-    public SearchNextRes searchNext(long key) {
+    /**
+     * 在该节点中查找下一个子节点，取第一个 key 大于等于 key 的子节点
+     * 分裂可能把相同的 key 分到相邻的两个节点中，这样下降到的是最左边可能包含 key 的节点，之后沿兄弟向右即可
+     */
+    public SearchNextRes searchNext(long[] key) {
         dataItem.rLock();
         try {
             SearchNextRes res = new SearchNextRes();
             int noKeys = getRawNoKeys(raw);
             for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i);
-                if(key < ik) {
-                    res.uid = getRawKthSon(raw, i);
+                if(compareRawKthKey(raw, i, key) >= 0) {
+                    res.uid = getRawKthSon(raw, i, tree.keyWidth);
                     res.siblingUid = 0;
                     return res;
                 }
@@ -185,43 +225,126 @@ public class Node {
     }
 
     class LeafSearchRangeRes {
-        List<Long> uids;
+        int size;
         long siblingUid;
     }
-    //在该节点中查找键值对范围内的所有子节点 UID
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
+    /**
+     * 在该节点中查找键值对范围内的所有子节点 UID，依次写入 uids 中，个数记录在 size 里
+     * keys 不为 null 时，同时把命中的 key 依次写入 keys，每个 key 占 keyWidth 个位置
+     */
+    public LeafSearchRangeRes leafSearchRange(long[] leftKey, long[] rightKey, long[] uids, long[] keys) {
         dataItem.rLock();
         try {
+            int keyWidth = tree.keyWidth;
             //1.获取该节点的关键字数量 noKeys 和起始下标 kth，使得第 kth 个子节点对应的关键字刚好大于等于 leftKey。
             int noKeys = getRawNoKeys(raw);
             int kth = 0;
             while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
+                if(compareRawKthKey(raw, kth, leftKey) >= 0) {
                     break;
                 }
                 kth ++;
             }
-            //2.在该节点中从第 kth 个关键字开始遍历，如果某个关键字小于等于 rightKey，则将其对应的子节点添加到 uids 列表中。
-            List<Long> uids = new ArrayList<>();
+            //2.在该节点中从第 kth 个关键字开始遍历，如果某个关键字小于等于 rightKey，则将其对应的子节点写入 uids 中。
+            int size = 0;
             while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
+                if(compareRawKthKey(raw, kth, rightKey) <= 0) {
+                    if(keys != null) {
+                        readRawKthKey(raw, kth, keys, size*keyWidth, keyWidth);
+                    }
+                    uids[size ++] = getRawKthSon(raw, kth, keyWidth);
                     kth ++;
                 } else {
                     break;
                 }
             }
-            //如果 kth 等于 noKeys，说明该节点已经被遍历完毕且没有找到符合条件的子节点，因此需要返回该节点的右兄弟节点作为搜索结果。
+            //如果 kth 等于 noKeys，说明范围可能延续到右兄弟节点，因此需要返回该节点的右兄弟节点继续搜索。
             long siblingUid = 0;
             if(kth == noKeys) {
                 siblingUid = getRawSibling(raw);
             }
             LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
+            res.size = size;
             res.siblingUid = siblingUid;
-            //最终，方法返回一个 LeafSearchRangeRes 对象，其中包含了符合条件的子节点列表和下一个需要搜索的兄弟节点的 uid。
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class LeafStatsRes {
+        int entries, distinct;
+        long[] lastKey;
+        long siblingUid;
+    }
+
+    //统计叶子中的条目数和不同 key 的个数，prev 为前一个叶子的最后一个 key，与它相同的第一个 key 不计入
+    public LeafStatsRes leafStats(long[] prev) {
+        dataItem.rLock();
+        try {
+            LeafStatsRes res = new LeafStatsRes();
+            int noKeys = getRawNoKeys(raw);
+            res.entries = noKeys;
+            res.lastKey = prev;
+            for(int i = 0; i < noKeys; i ++) {
+                if(res.lastKey == null || compareRawKthKey(raw, i, res.lastKey) != 0) {
+                    res.distinct ++;
+                    res.lastKey = getRawKthKey(raw, i, tree.keyWidth);
+                }
+            }
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class ProbeRes {
+        boolean leaf;
+        int noKeys;
+        long son;           //内部节点中选中的子节点
+        long[] key;         //叶子中选中的 key，叶子为空时为 null
+        double rest;        //f 在选中的条目中余下的比例
+    }
+
+    //按比例 f（0 <= f < 1）选择第 floor(f*noKeys) 个条目，用于从根按比例下探到一个叶子
+    public ProbeRes probe(double f) {
+        dataItem.rLock();
+        try {
+            ProbeRes res = new ProbeRes();
+            res.leaf = getRawIfLeaf(raw);
+            res.noKeys = getRawNoKeys(raw);
+            if(res.noKeys == 0) {
+                return res;
+            }
+            int kth = Math.min(res.noKeys - 1, (int)(f * res.noKeys));
+            res.rest = Math.min(Math.nextDown(1.0), Math.max(0, f * res.noKeys - kth));
+            if(res.leaf) {
+                res.key = getRawKthKey(raw, kth, tree.keyWidth);
+            } else {
+                res.son = getRawKthSon(raw, kth, tree.keyWidth);
+            }
+            return res;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    class LeafKeysRes {
+        int size;
+        long siblingUid;
+    }
+
+    //把叶子中各 key 的第一个分量依次写入 keys 中 from 开始的位置
+    public LeafKeysRes leafKeys(long[] keys, int from) {
+        dataItem.rLock();
+        try {
+            LeafKeysRes res = new LeafKeysRes();
+            res.size = getRawNoKeys(raw);
+            for(int i = 0; i < res.size; i ++) {
+                keys[from + i] = getRawKthKey(raw, i, tree.keyWidth)[0];
+            }
+            res.siblingUid = getRawSibling(raw);
             return res;
         } finally {
             dataItem.rUnLock();
@@ -229,18 +352,61 @@ public class Node {
     }
 
     class InsertAndSplitRes {
-        long siblingUid, newSon, newKey;
+        long siblingUid, newSon;
+        long[] newKey;
+        int count;
+        int newKeys;        //插入叶子时，与叶子中已有 key 都不相同的个数
+    }
+
+    /**
+     * 在叶子节点中连续插入 keys[from] 开始的多个键值对（keys 升序），只记录一次日志
+     * 遇到应属于右兄弟的键或节点需要分裂时停止，count 为插入的个数，为 0 时 siblingUid 为应继续查找的兄弟节点
+     */
+    public InsertAndSplitRes leafInsertAllAndSplit(long[][] keys, long[] uids, int from) throws Exception {
+        Exception err = null;
+        InsertAndSplitRes res = new InsertAndSplitRes();
+
+        dataItem.before();
+        try {
+            while(from + res.count < keys.length && !needSplit()) {
+                if(!insert(uids[from + res.count], keys[from + res.count], res)) {
+                    break;
+                }
+                res.count ++;
+            }
+            if(res.count == 0) {
+                res.siblingUid = getRawSibling(raw);
+                return res;
+            }
+            if(needSplit()) {
+                try {
+                    SplitRes r = split();
+                    res.newSon = r.newSon;
+                    res.newKey = r.newKey;
+                } catch(Exception e) {
+                    err = e;
+                    throw e;
+                }
+            }
+            return res;
+        } finally {
+            if(err == null && res.count > 0) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
     }
 
     //在该节点中插入新的键值对，并在需要时进行分裂操作
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    public InsertAndSplitRes insertAndSplit(long uid, long[] key) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
         try {
-            success = insert(uid, key);
+            success = insert(uid, key, res);
             if(!success) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
@@ -267,13 +433,13 @@ public class Node {
         }
     }
 
-    private boolean insert(long uid, long key) {
+    private boolean insert(long uid, long[] key, InsertAndSplitRes res) {
+        int keyWidth = tree.keyWidth;
         //获取该节点的关键字数量 noKeys 和起始下标 kth，使得第 kth 个子节点对应的关键字刚好大于等于 childKey。
         int noKeys = getRawNoKeys(raw);
         int kth = 0;
         while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
+            if(compareRawKthKey(raw, kth, key) < 0) {
                 kth ++;
             } else {
                 break;
@@ -282,9 +448,12 @@ public class Node {
         if(kth == noKeys && getRawSibling(raw) != 0) return false;
         //如果当前节点还没有达到最大容量，则将 newChildUid 和 childKey 插入到该节点中，然后返回 null。
         if(getRawIfLeaf(raw)) {
-            shiftRawKth(raw, kth);
+            if(kth == noKeys || compareRawKthKey(raw, kth, key) != 0) {
+                res.newKeys ++;
+            }
+            shiftRawKth(raw, kth, keyWidth);
             setRawKthKey(raw, key, kth);
-            setRawKthSon(raw, uid, kth);
+            setRawKthSon(raw, uid, kth, keyWidth);
             setRawNoKeys(raw, noKeys+1);
         } else {
             //否则，需要对该节点进行拆分：
@@ -293,11 +462,11 @@ public class Node {
             //计算新的节点的 uid 和右兄弟节点的 uid，并更新原来节点的右兄弟节点的 uid；
             //如果该节点是根节点，则创建新的根节点；
             //返回新创建的节点和其对应的关键字。
-            long kk = getRawKthKey(raw, kth);
+            long[] kk = getRawKthKey(raw, kth, keyWidth);
             setRawKthKey(raw, key, kth);
-            shiftRawKth(raw, kth+1);
+            shiftRawKth(raw, kth+1, keyWidth);
             setRawKthKey(raw, kk, kth+1);
-            setRawKthSon(raw, uid, kth+1);
+            setRawKthSon(raw, uid, kth+1, keyWidth);
             setRawNoKeys(raw, noKeys+1);
         }
         return true;
@@ -308,35 +477,38 @@ public class Node {
     }
 
     class SplitRes {
-        long newSon, newKey;
+        long newSon;
+        long[] newKey;
     }
 
     //执行节点分裂操作
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int keyWidth = tree.keyWidth;
+        SubArray nodeRaw = new SubArray(new byte[nodeSize(keyWidth)], 0, nodeSize(keyWidth));
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
         setRawNoKeys(nodeRaw, BALANCE_NUMBER);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER, keyWidth);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, tree.bootUid, nodeRaw.raw);
         setRawNoKeys(raw, BALANCE_NUMBER);
         setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
         res.newSon = son;
-        res.newKey = getRawKthKey(nodeRaw, 0);
+        res.newKey = getRawKthKey(nodeRaw, 0, keyWidth);
         return res;
     }
 
     @Override
     public String toString() {
+        int keyWidth = tree.keyWidth;
         StringBuilder sb = new StringBuilder();
         sb.append("Is leaf: ").append(getRawIfLeaf(raw)).append("\n");
         int KeyNumber = getRawNoKeys(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
         for(int i = 0; i < KeyNumber; i ++) {
-            sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
+            sb.append("son: ").append(getRawKthSon(raw, i, keyWidth)).append(", key: ").append(Arrays.toString(getRawKthKey(raw, i, keyWidth))).append("\n");
         }
         return sb.toString();
     }
@@ -0,0 +1,54 @@
+package com.ye.mydb.backend.im;
+
+import com.ye.mydb.backend.common.UidIterator;
+
+/**
+ * B+ 树上 [leftKey, rightKey] 的范围查找游标
+ * 创建时只定位到第一个叶子，之后沿着叶子的兄弟指针按需向右读取：
+ * 每次只加载一个叶子，把其中命中的 UID 拷贝进基本类型数组后立即释放，
+ * 调用方提前停止时，后面的叶子不会被读取
+ * 需要 key 时（覆盖索引），命中的 key 也一起拷贝出来，通过 key 取得上一次 next 返回的 UID 对应的 key
+ */
+public class RangeCursor implements UidIterator {
+    private BPlusTree tree;
+    private long[] leftKey, rightKey;
+    private long leafUid;       //下一个要读取的叶子，0 表示已经读完
+    private long[] uids;
+    private long[] keys;        //为 null 时不拷贝 key
+    private int size, pos;
+
+    RangeCursor(BPlusTree tree, long leafUid, long[] leftKey, long[] rightKey) {
+        this.tree = tree;
+        this.leafUid = leafUid;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.uids = new long[Node.BALANCE_NUMBER*2+2];
+    }
+
+    //之后读取的叶子同时拷贝 key，需在第一次 next 之前调用
+    public RangeCursor withKeys() {
+        this.keys = new long[uids.length*tree.keyWidth];
+        return this;
+    }
+
+    //上一次 next 返回的 UID 对应的 key 的第 i 个 long
+    public long key(int i) {
+        return keys[(pos-1)*tree.keyWidth + i];
+    }
+
+    @Override
+    public long next() throws Exception {
+        while(pos == size) {
+            if(leafUid == 0) {
+                return 0;
+            }
+            Node leaf = Node.loadNode(tree, leafUid);
+            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey, uids, keys);
+            leaf.release();
+            size = res.size;
+            pos = 0;
+            leafUid = res.siblingUid;
+        }
+        return uids[pos ++];
+    }
+}
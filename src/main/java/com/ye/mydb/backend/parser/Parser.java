@@ -7,6 +7,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 
+/**
+ * 语句中的值可以是参数占位符 ?，占位符在解析结果中为 null，执行前需要绑定参数
+ */
 public class Parser {
     public static Object Parse(byte[] statement) throws Exception {
         Tokenizer tokenizer = new Tokenizer(statement);
@@ -71,9 +74,15 @@ public class Parser {
     }
 
     private static Show parseShow(Tokenizer tokenizer) throws Exception {
+        Show show = new Show();
         String tmp = tokenizer.peek();
+        if("stats".equals(tmp)) {
+            show.stats = true;
+            tokenizer.pop();
+            tmp = tokenizer.peek();
+        }
         if("".equals(tmp)) {
-            return new Show();
+            return show;
         }
         throw Error.InvalidCommandException;
     }
@@ -96,8 +105,7 @@ public class Parser {
         }
         tokenizer.pop();
 
-        update.value = tokenizer.peek();
-        tokenizer.pop();
+        update.value = parseValue(tokenizer);
 
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -146,19 +154,53 @@ public class Parser {
         if(!"values".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
+        tokenizer.pop();
+
+        if(!"(".equals(tokenizer.peek())) {
+            //insert into t values v1 v2 ...
+            List<String> values = new ArrayList<>();
+            while(true) {
+                String value = tokenizer.peek();
+                if("".equals(value)) {
+                    break;
+                }
+                values.add(tokenizer.isPlaceholder() ? null : value);
+                tokenizer.pop();
+            }
+            insert.values = new String[][]{values.toArray(new String[values.size()])};
+            return insert;
+        }
 
-        List<String> values = new ArrayList<>();
+        //insert into t values (v1, v2, ...), (v1, v2, ...), ...
+        List<String[]> rows = new ArrayList<>();
         while(true) {
+            if(!"(".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
             tokenizer.pop();
-            String value = tokenizer.peek();
-            if("".equals(value)) {
+            List<String> values = new ArrayList<>();
+            while(true) {
+                String value = tokenizer.peek();
+                if("".equals(value)) {
+                    throw Error.InvalidCommandException;
+                }
+                values.add(tokenizer.isPlaceholder() ? null : value);
+                tokenizer.pop();
+                String next = tokenizer.peek();
+                tokenizer.pop();
+                if(")".equals(next)) {
+                    break;
+                } else if(!",".equals(next)) {
+                    throw Error.InvalidCommandException;
+                }
+            }
+            rows.add(values.toArray(new String[values.size()]));
+            if(!",".equals(tokenizer.peek())) {
                 break;
-            } else {
-                values.add(value);
             }
+            tokenizer.pop();
         }
-        insert.values = values.toArray(new String[values.size()]);
-
+        insert.values = rows.toArray(new String[rows.size()][]);
         return insert;
     }
 
@@ -166,18 +208,19 @@ public class Parser {
         Select read = new Select();
 
         List<String> fields = new ArrayList<>();
+        List<String> aggregates = new ArrayList<>();
+        boolean aggregated = false;
         String asterisk = tokenizer.peek();
         if("*".equals(asterisk)) {
             fields.add(asterisk);
+            aggregates.add(null);
             tokenizer.pop();
         } else {
             while(true) {
-                String field = tokenizer.peek();
-                if(!isName(field)) {
-                    throw Error.InvalidCommandException;
-                }
-                fields.add(field);
-                tokenizer.pop();
+                String[] item = parseItem(tokenizer);
+                aggregates.add(item[0]);
+                fields.add(item[1]);
+                aggregated |= item[0] != null;
                 if(",".equals(tokenizer.peek())) {
                     tokenizer.pop();
                 } else {
@@ -186,6 +229,9 @@ public class Parser {
             }
         }
         read.fields = fields.toArray(new String[fields.size()]);
+        if(aggregated) {
+            read.aggregates = aggregates.toArray(new String[aggregates.size()]);
+        }
 
         if(!"from".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
@@ -199,48 +245,218 @@ public class Parser {
         read.tableName = tableName;
         tokenizer.pop();
 
-        String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
-            read.where = null;
-            return read;
+        if("join".equals(tokenizer.peek()) || "inner".equals(tokenizer.peek())) {
+            read.join = parseJoin(tokenizer);
+        }
+        if("where".equals(tokenizer.peek())) {
+            read.where = parseWhere(tokenizer);
+        }
+        if("group".equals(tokenizer.peek())) {
+            read.groupBy = parseGroupBy(tokenizer);
+        }
+        if("order".equals(tokenizer.peek())) {
+            parseOrderBy(tokenizer, read);
+        }
+        if("limit".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            read.limit = parseCount(tokenizer);
+            if("offset".equals(tokenizer.peek())) {
+                tokenizer.pop();
+                read.offset = parseCount(tokenizer);
+            }
         }
-
-        read.where = parseWhere(tokenizer);
         return read;
     }
 
-    private static Where parseWhere(Tokenizer tokenizer) throws Exception {
-        Where where = new Where();
+    //[inner] join table on field = field
+    private static Join parseJoin(Tokenizer tokenizer) throws Exception {
+        if("inner".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"join".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        tokenizer.pop();
+        Join join = new Join();
+        join.tableName = tokenizer.peek();
+        if(!isName(join.tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        join.leftField = tokenizer.peek();
+        if(!isName(join.leftField)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"=".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        join.rightField = tokenizer.peek();
+        if(!isName(join.rightField)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return join;
+    }
 
-        if(!"where".equals(tokenizer.peek())) {
+    /**
+     * select 列表和 order by 中的一项：字段名，或 count(*)、count(f)、sum(f)、avg(f)、min(f)、max(f)
+     * 返回 {聚合函数, 字段}，字段名的聚合函数为 null，count(*) 的字段为 *
+     */
+    private static String[] parseItem(Tokenizer tokenizer) throws Exception {
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"(".equals(tokenizer.peek())) {
+            return new String[]{null, name};
+        }
+        if(!isAggregate(name)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String field = tokenizer.peek();
+        if(!isName(field) && !("*".equals(field) && "count".equals(name))) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!")".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
         tokenizer.pop();
+        return new String[]{name, field};
+    }
 
-        SingleExpression exp1 = parseSingleExp(tokenizer);
-        where.singleExp1 = exp1;
+    private static boolean isAggregate(String name) {
+        return "count".equals(name) || "sum".equals(name) || "avg".equals(name) ||
+                "min".equals(name) || "max".equals(name);
+    }
 
-        String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
-            return where;
-        }
-        if(!isLogicOp(logicOp)) {
+    //group by field (, field)*
+    private static String[] parseGroupBy(Tokenizer tokenizer) throws Exception {
+        tokenizer.pop();
+        if(!"by".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
-        where.logicOp = logicOp;
+        List<String> fields = new ArrayList<>();
+        while(true) {
+            tokenizer.pop();
+            String field = tokenizer.peek();
+            if(!isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            fields.add(field);
+            tokenizer.pop();
+            if(!",".equals(tokenizer.peek())) {
+                break;
+            }
+        }
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    //order by item [asc|desc] (, item [asc|desc])*，item 为字段名或聚合项
+    private static void parseOrderBy(Tokenizer tokenizer, Select read) throws Exception {
         tokenizer.pop();
+        if(!"by".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        List<String> fields = new ArrayList<>();
+        List<Boolean> desc = new ArrayList<>();
+        while(true) {
+            tokenizer.pop();
+            String[] item = parseItem(tokenizer);
+            fields.add(item[0] == null ? item[1] : item[0] + "(" + item[1] + ")");
+            String order = tokenizer.peek();
+            desc.add("desc".equals(order));
+            if("asc".equals(order) || "desc".equals(order)) {
+                tokenizer.pop();
+            }
+            if(!",".equals(tokenizer.peek())) {
+                break;
+            }
+        }
+        read.orderBy = fields.toArray(new String[fields.size()]);
+        read.desc = new boolean[desc.size()];
+        for(int i = 0; i < read.desc.length; i ++) {
+            read.desc[i] = desc.get(i);
+        }
+    }
 
-        SingleExpression exp2 = parseSingleExp(tokenizer);
-        where.singleExp2 = exp2;
+    //limit 和 offset 后的非负整数
+    private static int parseCount(Tokenizer tokenizer) throws Exception {
+        String count = tokenizer.peek();
+        tokenizer.pop();
+        try {
+            return Integer.parseInt(count);
+        } catch(NumberFormatException e) {
+            throw Error.InvalidCommandException;
+        }
+    }
 
-        if(!"".equals(tokenizer.peek())) {
+    private static Where parseWhere(Tokenizer tokenizer) throws Exception {
+        if(!"where".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
+        tokenizer.pop();
+        return parseOr(tokenizer);
+    }
+
+    //or 的优先级最低，其次是 and，not 和括号最高
+    private static Where parseOr(Tokenizer tokenizer) throws Exception {
+        Where where = parseAnd(tokenizer);
+        while("or".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            where = logic("or", where, parseAnd(tokenizer));
+        }
+        return where;
+    }
+
+    private static Where parseAnd(Tokenizer tokenizer) throws Exception {
+        Where where = parseNot(tokenizer);
+        while("and".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            where = logic("and", where, parseNot(tokenizer));
+        }
+        return where;
+    }
+
+    private static Where parseNot(Tokenizer tokenizer) throws Exception {
+        String token = tokenizer.peek();
+        if("not".equals(token)) {
+            tokenizer.pop();
+            return logic("not", parseNot(tokenizer), null);
+        }
+        if("(".equals(token)) {
+            tokenizer.pop();
+            Where where = parseOr(tokenizer);
+            if(!")".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            return where;
+        }
+        return parseSingleExp(tokenizer);
+    }
+
+    private static Where logic(String logicOp, Where left, Where right) {
+        Where where = new Where();
+        where.logicOp = logicOp;
+        where.left = left;
+        where.right = right;
         return where;
     }
 
-    private static SingleExpression parseSingleExp(Tokenizer tokenizer) throws Exception {
+    /**
+     * 单个比较：field op value、field [not] in (v1, v2, ...)、field [not] between v1 and v2、field [not] like value
+     * 带 not 的形式返回 not 节点
+     */
+    private static Where parseSingleExp(Tokenizer tokenizer) throws Exception {
         SingleExpression exp = new SingleExpression();
         
         String field = tokenizer.peek();
@@ -251,23 +467,67 @@ public class Parser {
         tokenizer.pop();
 
         String op = tokenizer.peek();
+        boolean not = false;
+        if("not".equals(op)) {
+            not = true;
+            tokenizer.pop();
+            op = tokenizer.peek();
+            if(!"in".equals(op) && !"between".equals(op) && !"like".equals(op)) {
+                throw Error.InvalidCommandException;
+            }
+        }
+        if("<>".equals(op)) {
+            op = "!=";
+        }
         if(!isCmpOp(op)) {
             throw Error.InvalidCommandException;
         }
         exp.compareOp = op;
         tokenizer.pop();
 
-        exp.value = tokenizer.peek();
-        tokenizer.pop();
-        return exp;
+        if("in".equals(op)) {
+            if(!"(".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            List<String> values = new ArrayList<>();
+            while(true) {
+                tokenizer.pop();
+                values.add(parseValue(tokenizer));
+                String next = tokenizer.peek();
+                if(")".equals(next)) {
+                    tokenizer.pop();
+                    break;
+                } else if(!",".equals(next)) {
+                    throw Error.InvalidCommandException;
+                }
+            }
+            exp.values = values.toArray(new String[values.size()]);
+        } else if("between".equals(op)) {
+            String low = parseValue(tokenizer);
+            if(!"and".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            exp.values = new String[]{low, parseValue(tokenizer)};
+        } else {
+            exp.value = parseValue(tokenizer);
+        }
+
+        Where where = new Where();
+        where.logicOp = "";
+        where.exp = exp;
+        return not ? logic("not", where, null) : where;
     }
 
-    private static boolean isCmpOp(String op) {
-        return ("=".equals(op) || ">".equals(op) || "<".equals(op));
+    private static String parseValue(Tokenizer tokenizer) throws Exception {
+        String value = tokenizer.isPlaceholder() ? null : tokenizer.peek();
+        tokenizer.pop();
+        return value;
     }
 
-    private static boolean isLogicOp(String op) {
-        return ("and".equals(op) || "or".equals(op));
+    private static boolean isCmpOp(String op) {
+        return ("=".equals(op) || "!=".equals(op) || ">".equals(op) || ">=".equals(op) || "<".equals(op) || "<=".equals(op) ||
+            "like".equals(op) || "in".equals(op) || "between".equals(op));
     }
 
     private static Drop parseDrop(Tokenizer tokenizer) throws Exception {
@@ -345,20 +605,47 @@ public class Parser {
             throw Error.InvalidCommandException;
         }
 
+        //unique 修饰紧随其后的一个索引
         List<String> indexes = new ArrayList<>();
+        List<String> uniques = new ArrayList<>();
+        List<String[]> composites = new ArrayList<>();
+        List<String[]> includes = new ArrayList<>();
+        List<Boolean> compositeUniques = new ArrayList<>();
+        boolean unique = false;
         while(true) {
             tokenizer.pop();
             String field = tokenizer.peek();
             if(")".equals(field)) {
+                if(unique) {
+                    throw Error.InvalidCommandException;
+                }
                 break;
             }
-            if(!isName(field)) {
+            if("unique".equals(field) && !unique) {
+                unique = true;
+                continue;
+            }
+            if("(".equals(field)) {
+                parseCompositeIndex(tokenizer, composites, includes);
+                compositeUniques.add(unique);
+            } else if(!isName(field)) {
                 throw Error.InvalidCommandException;
             } else {
                 indexes.add(field);
+                if(unique) {
+                    uniques.add(field);
+                }
             }
+            unique = false;
         }
         create.index = indexes.toArray(new String[indexes.size()]);
+        create.unique = uniques.toArray(new String[uniques.size()]);
+        create.compositeIndex = composites.toArray(new String[composites.size()][]);
+        create.include = includes.toArray(new String[includes.size()][]);
+        create.compositeUnique = new boolean[compositeUniques.size()];
+        for(int i = 0; i < create.compositeUnique.length; i ++) {
+            create.compositeUnique[i] = compositeUniques.get(i);
+        }
         tokenizer.pop();
 
         if(!"".equals(tokenizer.peek())) {
@@ -367,6 +654,33 @@ public class Parser {
         return create;
     }
 
+    //多列索引 (a b include c)，include 之后的字段只存放在索引中，返回时停在右括号上
+    private static void parseCompositeIndex(Tokenizer tokenizer, List<String[]> composites, List<String[]> includes) throws Exception {
+        List<String> keys = new ArrayList<>();
+        List<String> include = new ArrayList<>();
+        List<String> cur = keys;
+        while(true) {
+            tokenizer.pop();
+            String field = tokenizer.peek();
+            if(")".equals(field)) {
+                break;
+            }
+            if("include".equals(field) && cur == keys) {
+                cur = include;
+                continue;
+            }
+            if(!isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            cur.add(field);
+        }
+        if(keys.isEmpty()) {
+            throw Error.InvalidCommandException;
+        }
+        composites.add(keys.toArray(new String[keys.size()]));
+        includes.add(include.toArray(new String[include.size()]));
+    }
+
     private static boolean isType(String tp) {
         return ("int32".equals(tp) || "int64".equals(tp) ||
         "string".equals(tp));
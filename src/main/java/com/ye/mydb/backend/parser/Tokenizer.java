@@ -7,6 +7,7 @@ public class Tokenizer {
     private int pos;
     private String currentToken;
     private boolean flushToken;
+    private boolean quoted;
     private Exception err;
 
     public Tokenizer(byte[] stat) {
@@ -22,6 +23,7 @@ public class Tokenizer {
         }
         if(flushToken) {
             String token = null;
+            quoted = false;
             try {
                 token = next();
             } catch(Exception e) {
@@ -34,6 +36,11 @@ public class Tokenizer {
         return currentToken;
     }
 
+    //当前 token 是否为参数占位符 ?，引号中的 ? 是普通字符串
+    public boolean isPlaceholder() throws Exception {
+        return "?".equals(peek()) && !quoted;
+    }
+
     public void pop() {
         flushToken = true;
     }
@@ -81,6 +88,16 @@ public class Tokenizer {
         byte b = peekByte();
         if(isSymbol(b)) {
             popByte();
+            //两个字符的比较符号 <=、>=、<>、!=
+            Byte n = peekByte();
+            if(n != null && ((n == '=' && (b == '<' || b == '>' || b == '!')) || (b == '<' && n == '>'))) {
+                popByte();
+                return new String(new byte[]{b, n});
+            }
+            if(b == '!') {
+                err = Error.InvalidCommandException;
+                throw err;
+            }
             return new String(new byte[]{b});
         } else if(b == '"' || b == '\'') {
             return nextQuoteState();
@@ -96,7 +113,8 @@ public class Tokenizer {
         StringBuilder sb = new StringBuilder();
         while(true) {
             Byte b = peekByte();
-            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_')) {
+            //带表名前缀的字段名 table.field 作为一个 token
+            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_' || b == '.')) {
                 if(b != null && isBlank(b)) {
                     popByte();
                 }
@@ -118,6 +136,7 @@ public class Tokenizer {
     private String nextQuoteState() throws Exception {
         byte quote = peekByte();
         popByte();
+        quoted = true;
         StringBuilder sb = new StringBuilder();
         while(true) {
             Byte b = peekByte();
@@ -137,7 +156,7 @@ public class Tokenizer {
 
     static boolean isSymbol(byte b) {
         return (b == '>' || b == '<' || b == '=' || b == '*' ||
-		b == ',' || b == '(' || b == ')');
+		b == ',' || b == '(' || b == ')' || b == '?' || b == '!');
     }
 
     static boolean isBlank(byte b) {
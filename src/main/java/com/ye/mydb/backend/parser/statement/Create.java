@@ -5,4 +5,8 @@ public class Create {
     public String[] fieldName;
     public String[] fieldType;
     public String[] index;
+    public String[] unique;             //index 中的唯一索引
+    public String[][] compositeIndex;   //多列索引的键字段，按顺序排列
+    public String[][] include;          //与 compositeIndex 一一对应，只存放在索引叶子中的字段
+    public boolean[] compositeUnique;   //与 compositeIndex 一一对应，是否为唯一索引
 }
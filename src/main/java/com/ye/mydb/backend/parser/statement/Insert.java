@@ -2,5 +2,5 @@ package com.ye.mydb.backend.parser.statement;
 
 public class Insert {
     public String tableName;
-    public String[] values;
+    public String[][] values;        //每个元素为一行的值
 }
@@ -0,0 +1,8 @@
+package com.ye.mydb.backend.parser.statement;
+
+//select ... from a join b on leftField = rightField，字段名可以带表名前缀
+public class Join {
+    public String tableName;
+    public String leftField;
+    public String rightField;
+}
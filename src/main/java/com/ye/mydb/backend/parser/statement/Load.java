@@ -0,0 +1,9 @@
+package com.ye.mydb.backend.parser.statement;
+
+import java.util.List;
+
+//批量导入，由客户端直接发送行数据，不经过语句解析
+public class Load {
+    public String tableName;
+    public List<Object[]> rows;
+}
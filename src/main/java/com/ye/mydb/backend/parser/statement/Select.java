@@ -2,6 +2,13 @@ package com.ye.mydb.backend.parser.statement;
 
 public class Select {
     public String tableName;
-    public String[] fields;
+    public Join join;           //没有 join 时为 null
+    public String[] fields;     //聚合项为其参数，count(*) 为 *；有 join 时字段名可以带表名前缀
+    public String[] aggregates; //各项的聚合函数，不是聚合的项为 null；没有聚合项时整个为 null
     public Where where;
+    public String[] groupBy;    //没有 group by 时为 null
+    public String[] orderBy;    //没有 order by 时为 null，聚合项写作 sum(a) 的形式
+    public boolean[] desc;      //orderBy 中各字段是否降序
+    public int limit = -1;      //没有 limit 时为 -1
+    public int offset;
 }
@@ -1,5 +1,5 @@
 package com.ye.mydb.backend.parser.statement;
 
 public class Show {
-    
+    public boolean stats;       //show stats 显示各表的统计信息
 }
@@ -2,6 +2,7 @@ package com.ye.mydb.backend.parser.statement;
 
 public class SingleExpression {
     public String field;
-    public String compareOp;
+    public String compareOp;    //=、!=、<、<=、>、>=、like、in、between
     public String value;
+    public String[] values;     //in 和 between 的多个值，此时不使用 value
 }
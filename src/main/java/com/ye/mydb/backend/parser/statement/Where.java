@@ -1,7 +1,12 @@
 package com.ye.mydb.backend.parser.statement;
 
+/**
+ * where 条件树
+ * logicOp 为 "and"、"or" 时 left 和 right 是两个子条件，为 "not" 时只有 left，为 "" 时是单个比较 exp
+ */
 public class Where {
-    public SingleExpression singleExp1;
     public String logicOp;
-    public SingleExpression singleExp2;
+    public Where left;
+    public Where right;
+    public SingleExpression exp;
 }
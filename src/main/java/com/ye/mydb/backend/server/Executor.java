@@ -1,31 +1,107 @@
 package com.ye.mydb.backend.server;
 
 
-import com.ye.mydb.backend.parser.Parser;
 import com.ye.mydb.backend.parser.statement.*;
 import com.ye.mydb.backend.tbm.BeginRes;
+import com.ye.mydb.backend.tbm.Cursor;
+import com.ye.mydb.backend.tbm.Table;
 import com.ye.mydb.backend.tbm.TableManager;
 import com.ye.mydb.common.Error;
+import com.ye.mydb.transport.Encoder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Executor {
+    //每个连接最多同时保留的预编译语句数
+    public static final int MAX_PREPARED = 1024;
+
     private long xid;
     TableManager tbm;
+    private PlanCache plans;
+    //本连接预编译的语句，以语句编号为键
+    private Map<Integer, Plan> prepared;
+    private int nextStatementId;
+    //正在进行中的查询，结果通过 fetch 分批取回
+    private Cursor cursor;
+    //已从游标中取出、但因超出字节上限留到下一批的行
+    private Object[] pending;
+    //游标是否持有一个临时事务，持有时在游标结束后提交
+    private boolean cursorTmpTransaction;
 
-    public Executor(TableManager tbm) {
+    public Executor(TableManager tbm, PlanCache plans) {
         this.tbm = tbm;
+        this.plans = plans;
         this.xid = 0;
+        this.prepared = new HashMap<>();
     }
 
     public void close() {
+        closeCursor();
         if(xid != 0) {
             System.out.println("Abnormal Abort: " + xid);
             tbm.abort(xid);
         }
     }
 
+    /**
+     * 执行一条语句并返回结果
+     * 查询语句只会打开游标并返回 null，结果需要通过 fetch 取回
+     * 执行新语句时，之前未取完的游标会被关闭
+     */
     public byte[] execute(byte[] sql) throws Exception {
         System.out.println("Execute: " + new String(sql));
-        Object stat = Parser.Parse(sql);
+        closeCursor();
+        Plan plan = plans.get(sql);
+        return execute(plan, plan.bind(new String[0]));
+    }
+
+    //预编译语句，返回语句编号，之后通过编号和参数执行
+    public int prepare(byte[] sql) throws Exception {
+        if(prepared.size() >= MAX_PREPARED) {
+            throw Error.TooManyPreparedException;
+        }
+        Plan plan = plans.get(sql);
+        int id = ++ nextStatementId;
+        prepared.put(id, plan);
+        return id;
+    }
+
+    public int getParamCount(int statementId) throws Exception {
+        return getPrepared(statementId).getParamCount();
+    }
+
+    //执行预编译的语句，params 按占位符在语句中出现的顺序给出
+    public byte[] execute(int statementId, String[] params) throws Exception {
+        closeCursor();
+        Plan plan = getPrepared(statementId);
+        return execute(plan, plan.bind(params));
+    }
+
+    //批量导入一批行，不在事务中时这一批在一个临时事务中写入
+    public byte[] load(String tableName, List<Object[]> rows) throws Exception {
+        closeCursor();
+        Load load = new Load();
+        load.tableName = tableName;
+        load.rows = rows;
+        return execute2(tbm.getTable(tableName), load);
+    }
+
+    public void deallocate(int statementId) {
+        prepared.remove(statementId);
+    }
+
+    private Plan getPrepared(int statementId) throws Exception {
+        Plan plan = prepared.get(statementId);
+        if(plan == null) {
+            throw Error.StatementNotFoundException;
+        }
+        return plan;
+    }
+
+    private byte[] execute(Plan plan, Object stat) throws Exception {
         if(Begin.class.isInstance(stat)) {
             if(xid != 0) {
                 throw Error.NestedTransactionException;
@@ -48,11 +124,11 @@ public class Executor {
             xid = 0;
             return res;
         } else {
-            return execute2(stat);
+            return execute2(plan.table, stat);
         }
     }
 
-    private byte[] execute2(Object stat) throws Exception {
+    private byte[] execute2(Table table, Object stat) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         if(xid == 0) {
@@ -62,18 +138,22 @@ public class Executor {
         }
         try {
             byte[] res = null;
-            if(Show.class.isInstance(stat)) {
-                res = tbm.show(xid);
+            if(Select.class.isInstance(stat)) {
+                cursor = tbm.read(xid, table, (Select)stat);
+                cursorTmpTransaction = tmpTransaction;
+                tmpTransaction = false;
+            } else if(Show.class.isInstance(stat)) {
+                res = ((Show)stat).stats ? tbm.showStats(xid) : tbm.show(xid);
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
-            } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
             } else if(Insert.class.isInstance(stat)) {
-                res = tbm.insert(xid, (Insert)stat);
+                res = tbm.insert(xid, table, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
-                res = tbm.delete(xid, (Delete)stat);
+                res = tbm.delete(xid, table, (Delete)stat);
             } else if(Update.class.isInstance(stat)) {
-                res = tbm.update(xid, (Update)stat);
+                res = tbm.update(xid, table, (Update)stat);
+            } else if(Load.class.isInstance(stat)) {
+                res = tbm.load(xid, table, (Load)stat);
             }
             return res;
         } catch(Exception e1) {
@@ -90,4 +170,75 @@ public class Executor {
             }
         }
     }
+
+    public boolean hasCursor() {
+        return cursor != null;
+    }
+
+    public String[] getColumnNames() throws Exception {
+        if(cursor == null) {
+            throw Error.NoCursorException;
+        }
+        return cursor.getColumnNames();
+    }
+
+    //从当前游标中取出至多 n 行，游标取完或出错时自动关闭
+    public List<Object[]> fetch(int n) throws Exception {
+        return fetch(n, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 从当前游标中取出至多 n 行，且这些行编码后不超过 maxBytes 字节（至少取出一行）
+     * 游标取完或出错时自动关闭
+     */
+    public List<Object[]> fetch(int n, int maxBytes) throws Exception {
+        if(cursor == null) {
+            throw Error.NoCursorException;
+        }
+        List<Object[]> rows = new ArrayList<>();
+        long bytes = 0;
+        try {
+            while(rows.size() < n) {
+                Object[] row = pending != null ? pending : cursor.next();
+                pending = null;
+                if(row == null) {
+                    closeCursor();
+                    break;
+                }
+                bytes += Encoder.rowSize(row);
+                if(bytes > maxBytes && !rows.isEmpty()) {
+                    pending = row;
+                    break;
+                }
+                rows.add(row);
+            }
+        } catch(Exception e) {
+            cursor.close();
+            cursor = null;
+            pending = null;
+            if(cursorTmpTransaction) {
+                tbm.abort(xid);
+                xid = 0;
+            }
+            throw e;
+        }
+        return rows;
+    }
+
+    public void closeCursor() {
+        if(cursor == null) {
+            return;
+        }
+        cursor.close();
+        cursor = null;
+        pending = null;
+        if(cursorTmpTransaction) {
+            try {
+                tbm.commit(xid);
+            } catch (Exception e) {
+                tbm.abort(xid);
+            }
+            xid = 0;
+        }
+    }
 }
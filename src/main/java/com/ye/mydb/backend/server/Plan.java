@@ -0,0 +1,142 @@
+package com.ye.mydb.backend.server;
+
+import java.util.function.UnaryOperator;
+
+import com.ye.mydb.backend.parser.Parser;
+import com.ye.mydb.backend.parser.statement.*;
+import com.ye.mydb.backend.tbm.Table;
+import com.ye.mydb.backend.tbm.TableManager;
+import com.ye.mydb.common.Error;
+
+/**
+ * Plan 是解析好的语句，可以被多次执行
+ * 涉及表的语句在创建 Plan 时就找到对应的 Table，执行时不再按表名查找
+ * 语句中的参数占位符在解析结果中为 null，执行前按在语句中出现的顺序绑定参数
+ * Plan 创建后不再修改，绑定参数时会复制一份语句，因此可以被多个连接共享
+ */
+public class Plan {
+    Object stat;
+    Table table;
+    int paramCount;
+
+    public static Plan create(TableManager tbm, byte[] sql) throws Exception {
+        Plan plan = new Plan();
+        plan.stat = Parser.Parse(sql);
+        String tableName = tableName(plan.stat);
+        if(tableName != null) {
+            plan.table = tbm.getTable(tableName);
+        }
+        int[] count = new int[1];
+        walkValues(plan.stat, v -> {
+            if(v == null) count[0] ++;
+            return v;
+        });
+        plan.paramCount = count[0];
+        return plan;
+    }
+
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    //返回绑定了参数的语句，没有参数时直接返回解析结果
+    Object bind(String[] params) throws Exception {
+        if(params.length != paramCount) {
+            throw Error.ParamCountException;
+        }
+        if(paramCount == 0) {
+            return stat;
+        }
+        int[] pos = new int[1];
+        return walkValues(stat, v -> v != null ? v : params[pos[0] ++]);
+    }
+
+    private static String tableName(Object stat) {
+        if(stat instanceof Select) {
+            return ((Select)stat).tableName;
+        } else if(stat instanceof Insert) {
+            return ((Insert)stat).tableName;
+        } else if(stat instanceof Update) {
+            return ((Update)stat).tableName;
+        } else if(stat instanceof Delete) {
+            return ((Delete)stat).tableName;
+        }
+        return null;
+    }
+
+    //按在语句中出现的顺序对每个值应用 op，返回替换后的语句副本
+    private static Object walkValues(Object stat, UnaryOperator<String> op) {
+        if(stat instanceof Insert) {
+            Insert src = (Insert)stat;
+            Insert res = new Insert();
+            res.tableName = src.tableName;
+            res.values = new String[src.values.length][];
+            for(int i = 0; i < src.values.length; i ++) {
+                res.values[i] = new String[src.values[i].length];
+                for(int j = 0; j < src.values[i].length; j ++) {
+                    res.values[i][j] = op.apply(src.values[i][j]);
+                }
+            }
+            return res;
+        } else if(stat instanceof Update) {
+            Update src = (Update)stat;
+            Update res = new Update();
+            res.tableName = src.tableName;
+            res.fieldName = src.fieldName;
+            res.value = op.apply(src.value);
+            res.where = walkWhere(src.where, op);
+            return res;
+        } else if(stat instanceof Select) {
+            Select src = (Select)stat;
+            Select res = new Select();
+            res.tableName = src.tableName;
+            res.join = src.join;
+            res.fields = src.fields;
+            res.aggregates = src.aggregates;
+            res.where = walkWhere(src.where, op);
+            res.groupBy = src.groupBy;
+            res.orderBy = src.orderBy;
+            res.desc = src.desc;
+            res.limit = src.limit;
+            res.offset = src.offset;
+            return res;
+        } else if(stat instanceof Delete) {
+            Delete src = (Delete)stat;
+            Delete res = new Delete();
+            res.tableName = src.tableName;
+            res.where = walkWhere(src.where, op);
+            return res;
+        }
+        return stat;
+    }
+
+    private static Where walkWhere(Where where, UnaryOperator<String> op) {
+        if(where == null) {
+            return null;
+        }
+        Where res = new Where();
+        res.logicOp = where.logicOp;
+        res.left = walkWhere(where.left, op);
+        res.right = walkWhere(where.right, op);
+        res.exp = walkExp(where.exp, op);
+        return res;
+    }
+
+    private static SingleExpression walkExp(SingleExpression exp, UnaryOperator<String> op) {
+        if(exp == null) {
+            return null;
+        }
+        SingleExpression res = new SingleExpression();
+        res.field = exp.field;
+        res.compareOp = exp.compareOp;
+        if(exp.values != null) {
+            res.values = new String[exp.values.length];
+            for(int i = 0; i < exp.values.length; i ++) {
+                res.values[i] = op.apply(exp.values[i]);
+            }
+        } else {
+            res.value = op.apply(exp.value);
+        }
+        return res;
+    }
+}
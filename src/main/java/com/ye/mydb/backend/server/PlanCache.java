@@ -0,0 +1,54 @@
+package com.ye.mydb.backend.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.ye.mydb.backend.tbm.TableManager;
+
+/**
+ * 所有连接共享的 Plan 缓存，以语句文本为键，超过容量时淘汰最久未使用的 Plan
+ * 同样形式的语句反复执行时，只在第一次解析
+ */
+public class PlanCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private TableManager tbm;
+    private Map<String, Plan> cache;
+    private Lock lock;
+
+    public PlanCache(TableManager tbm, int capacity) {
+        this.tbm = tbm;
+        this.cache = new LinkedHashMap<String, Plan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Plan> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.lock = new ReentrantLock();
+    }
+
+    public Plan get(byte[] sql) throws Exception {
+        //ISO-8859-1 与字节一一对应，不同的语句不会得到相同的键
+        String key = new String(sql, StandardCharsets.ISO_8859_1);
+        lock.lock();
+        try {
+            Plan plan = cache.get(key);
+            if(plan != null) {
+                return plan;
+            }
+        } finally {
+            lock.unlock();
+        }
+        Plan plan = Plan.create(tbm, sql);
+        lock.lock();
+        try {
+            cache.put(key, plan);
+        } finally {
+            lock.unlock();
+        }
+        return plan;
+    }
+}
@@ -1,6 +1,7 @@
 package com.ye.mydb.backend.server;
 
 import com.ye.mydb.backend.tbm.TableManager;
+import com.ye.mydb.common.Error;
 import com.ye.mydb.transport.Encoder;
 import com.ye.mydb.transport.Package;
 import com.ye.mydb.transport.Packager;
@@ -10,65 +11,128 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 
+/**
+ * 每个连接由一个线程处理，运行在 JDK 21 及以上时使用虚拟线程，否则使用平台线程
+ * maxConnections 限制同时处理的连接数，达到上限时 accept 线程暂停接受连接，
+ * 新连接在操作系统的 accept 队列中等待，队列长度由 backlog 限制
+ * idleTimeout（秒）内没有收到请求的连接会被关闭，为 0 时不超时
+ */
 public class Server {
+    public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+    public static final int DEFAULT_BACKLOG = 128;
+    public static final int DEFAULT_IDLE_TIMEOUT = 0;
+
     private int port;
     TableManager tbm;
+    private int maxConnections;
+    private int backlog;
+    private int idleTimeout;
 
     public Server(int port, TableManager tbm) {
+        this(port, tbm, DEFAULT_MAX_CONNECTIONS, DEFAULT_BACKLOG, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    public Server(int port, TableManager tbm, int maxConnections, int backlog, int idleTimeout) {
         this.port = port;
         this.tbm = tbm;
+        this.maxConnections = maxConnections;
+        this.backlog = backlog;
+        this.idleTimeout = idleTimeout;
     }
 
     public void start() {
         ServerSocket ss = null;
         try {
-            ss = new ServerSocket(port);
+            ss = new ServerSocket(port, backlog);
         } catch (IOException e) {
             e.printStackTrace();
             return;
         }
         System.out.println("Server listen to port: " + port);
-        ThreadPoolExecutor tpe = new ThreadPoolExecutor(10, 20, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(100), new ThreadPoolExecutor.CallerRunsPolicy());
+        ExecutorService es = newConnectionExecutor();
+        PlanCache plans = new PlanCache(tbm, PlanCache.DEFAULT_CAPACITY);
+        Semaphore connections = new Semaphore(maxConnections);
         try {
             while(true) {
-                Socket socket = ss.accept();
-                Runnable worker = new HandleSocket(socket, tbm);
-                tpe.execute(worker);
+                connections.acquireUninterruptibly();
+                Socket socket = null;
+                try {
+                    socket = ss.accept();
+                    if(idleTimeout > 0) {
+                        socket.setSoTimeout(idleTimeout * 1000);
+                    }
+                } catch(IOException e) {
+                    connections.release();
+                    throw e;
+                }
+                es.execute(new HandleSocket(socket, tbm, plans, connections));
             }
         } catch(IOException e) {
             e.printStackTrace();
         } finally {
+            es.shutdown();
             try {
                 ss.close();
             } catch (IOException ignored) {}
         }
     }
+
+    // JDK 21 之前没有虚拟线程，通过反射获取，取不到时每个连接使用一个平台线程
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("Handle connections with virtual threads");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Handle connections with platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
 }
 
 class HandleSocket implements Runnable {
+    //一个响应中行数据（不含 BATCH_RESULT 中错误信息等少量字节）的上限，留出帧中其余字段的空间
+    private static final int MAX_ROWS_BYTES = Transporter.MAX_FRAME_SIZE - 1024;
+
     private Socket socket;
     private TableManager tbm;
+    private PlanCache plans;
+    private Semaphore connections;
 
-    public HandleSocket(Socket socket, TableManager tbm) {
+    public HandleSocket(Socket socket, TableManager tbm, PlanCache plans, Semaphore connections) {
         this.socket = socket;
         this.tbm = tbm;
+        this.plans = plans;
+        this.connections = connections;
     }
 
     @Override
     public void run() {
+        try {
+            serve();
+        } finally {
+            connections.release();
+        }
+    }
+
+    private void serve() {
         InetSocketAddress address = (InetSocketAddress)socket.getRemoteSocketAddress();
         System.out.println("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
         Packager packager = null;
         try {
             Transporter t = new Transporter(socket);
+            t.acceptHandshake();
             Encoder e = new Encoder();
             packager = new Packager(t, e);
-        } catch(IOException e) {
+        } catch(Exception e) {
             e.printStackTrace();
             try {
                 socket.close();
@@ -77,7 +141,7 @@ class HandleSocket implements Runnable {
             }
             return;
         }
-        Executor exe = new Executor(tbm);
+        Executor exe = new Executor(tbm, plans);
         while(true) {
             Package pkg = null;
             try {
@@ -85,18 +149,18 @@ class HandleSocket implements Runnable {
             } catch(Exception e) {
                 break;
             }
-            byte[] sql = pkg.getData();
-            byte[] result = null;
-            Exception e = null;
             try {
-                result = exe.execute(sql);
+                pkg = handle(exe, pkg);
             } catch (Exception e1) {
-                e = e1;
-                e.printStackTrace();
+                e1.printStackTrace();
+                pkg = new Package(null, e1);
             }
-            pkg = new Package(result, e);
             try {
-                packager.send(pkg);
+                //流水线中还有已到达的请求时先不发送，处理完这一批再一起发送
+                write(packager, pkg);
+                if(!packager.hasPendingInput()) {
+                    packager.flush();
+                }
             } catch (Exception e1) {
                 e1.printStackTrace();
                 break;
@@ -109,5 +173,101 @@ class HandleSocket implements Runnable {
             e.printStackTrace();
         }
     }
-    
-}
\ No newline at end of file
+
+    //响应编码后超过一帧的上限时改为返回错误，对端会拒绝过大的帧并断开连接
+    private void write(Packager packager, Package pkg) throws Exception {
+        try {
+            packager.write(pkg);
+        } catch(Exception e) {
+            if(e != Error.PackageTooLargeException) {
+                throw e;
+            }
+            packager.write(new Package(null, Error.ResultTooLargeException));
+        }
+    }
+
+    private Package handle(Executor exe, Package pkg) throws Exception {
+        switch(pkg.getType()) {
+            case Package.QUERY:
+                return firstResult(exe, exe.execute(pkg.getData()), pkg.getFetchSize());
+            case Package.PREPARE:
+                int statementId = exe.prepare(pkg.getData());
+                return Package.prepared(statementId, exe.getParamCount(statementId));
+            case Package.EXECUTE:
+                byte[] result = exe.execute(pkg.getStatementId(), pkg.getParams());
+                return firstResult(exe, result, pkg.getFetchSize());
+            case Package.LOAD:
+                return new Package(exe.load(pkg.getTableName(), pkg.getRows()), null);
+            case Package.DEALLOCATE:
+                exe.deallocate(pkg.getStatementId());
+                return new Package(new byte[0], null);
+            case Package.FETCH:
+                List<Object[]> rows = exe.fetch(Math.max(pkg.getFetchSize(), 1), MAX_ROWS_BYTES - Encoder.headerSize(null));
+                return Package.rows(null, rows, !exe.hasCursor());
+            case Package.CLOSE:
+                exe.closeCursor();
+                return new Package(new byte[0], null);
+            case Package.BATCH:
+                List<Package> results = new ArrayList<>(pkg.getStats().size());
+                //所有结果在同一帧中返回，每条结果只能使用前面的结果剩下的空间
+                int budget = MAX_ROWS_BYTES;
+                for(byte[] stat : pkg.getStats()) {
+                    try {
+                        Package res = executeAll(exe, stat, budget);
+                        int size = sizeOf(res);
+                        if(size > budget) {
+                            throw Error.ResultTooLargeException;
+                        }
+                        budget -= size;
+                        results.add(res);
+                    } catch(Exception e) {
+                        results.add(new Package(null, e));
+                        break;
+                    }
+                }
+                return Package.batchResult(results);
+            default:
+                throw Error.InvalidPkgDataException;
+        }
+    }
+
+    //语句执行后的第一个响应：非查询语句的结果，或查询结果的第一批
+    private Package firstResult(Executor exe, byte[] result, int fetchSize) throws Exception {
+        if(!exe.hasCursor()) {
+            return new Package(result, null);
+        }
+        String[] columns = exe.getColumnNames();
+        List<Object[]> rows = exe.fetch(Math.max(fetchSize, 1), MAX_ROWS_BYTES - Encoder.headerSize(columns));
+        return Package.rows(columns, rows, !exe.hasCursor());
+    }
+
+    /**
+     * 执行一条语句，查询结果一次全部取回
+     * 查询结果编码后超过 budget 字节时关闭游标并抛出错误，过大的结果需要用游标分批取回
+     */
+    private Package executeAll(Executor exe, byte[] stat, int budget) throws Exception {
+        byte[] result = exe.execute(stat);
+        if(!exe.hasCursor()) {
+            return new Package(result, null);
+        }
+        String[] columns = exe.getColumnNames();
+        List<Object[]> rows = exe.fetch(Integer.MAX_VALUE, budget - 4 - Encoder.headerSize(columns));
+        if(exe.hasCursor()) {
+            exe.closeCursor();
+            throw Error.ResultTooLargeException;
+        }
+        return Package.rows(columns, rows, true);
+    }
+
+    //BATCH_RESULT 中一条结果占用的字节数，包括它的长度前缀
+    private int sizeOf(Package res) {
+        if(res.getType() == Package.DATA) {
+            return 5 + (res.getData() == null ? 0 : res.getData().length);
+        }
+        int size = 4 + Encoder.headerSize(res.getColumns());
+        for(Object[] row : res.getRows()) {
+            size += Encoder.rowSize(row);
+        }
+        return size;
+    }
+}
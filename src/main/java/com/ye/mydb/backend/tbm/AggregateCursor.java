@@ -0,0 +1,245 @@
+package com.ye.mydb.backend.tbm;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ye.mydb.backend.common.LongHashMap;
+
+/**
+ * AggregateCursor 对另一个游标的结果做哈希分组聚合，在第一次 next 时读完底层游标
+ * 底层游标的每行前 groups 列为分组字段的值，之后为聚合函数参数的值
+ * 只有一个整数分组字段时用 LongHashMap 按原始 long 值分组，否则以值或值的列表为键
+ * 没有分组字段时整个结果为一组，即使没有行也返回一行
+ * 所有分组都放在内存中；sum、avg、min、max 在组中没有行时返回字符串 null
+ * 底层为顺序扫描的多个分段时，由 ParallelScan 的每个任务聚合到自己的 Partial 中，最后合并
+ */
+class AggregateCursor implements Cursor {
+    static final String NULL = "null";
+
+    private List<Cursor> segments;
+    private String[] columns;
+    private int groups;
+    private Item[] items;
+    private boolean primitive;      //只有一个整数分组字段
+
+    private List<Group> result;
+    private int pos = -1;
+
+    //结果中的一列：分组字段，或一个聚合函数
+    static class Item {
+        String function;    //分组字段为 null
+        int position;       //分组字段在分组键中的位置，或参数在底层游标的行中的位置，count(*) 为 -1
+        Field fd;           //参数字段，用于比较和类型检查
+
+        Item(String function, int position, Field fd) {
+            this.function = function;
+            this.position = position;
+            this.fd = fd;
+        }
+    }
+
+    static class Group {
+        Object[] keys;
+        long[] counts;
+        long[] sums;
+        Object[] extremes;
+
+        Group(Object[] keys, int width) {
+            this.keys = keys;
+            counts = new long[width];
+            sums = new long[width];
+            extremes = new Object[width];
+        }
+    }
+
+    AggregateCursor(List<Cursor> segments, String[] columns, int groups, Item[] items, boolean primitive) {
+        this.segments = segments;
+        this.columns = columns;
+        this.groups = groups;
+        this.items = items;
+        this.primitive = primitive;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columns;
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        if(pos < 0) {
+            aggregate();
+            pos = 0;
+        }
+        if(pos == result.size()) {
+            return null;
+        }
+        return output(result.get(pos ++));
+    }
+
+    private void aggregate() throws Exception {
+        List<Partial> partials;
+        if(segments.size() == 1) {
+            Partial p = new Partial();
+            try {
+                p.add(segments.get(0));
+            } finally {
+                segments.get(0).close();
+            }
+            partials = List.of(p);
+        } else {
+            partials = ParallelScan.forEach(segments, Partial::new, Partial::add);
+        }
+        Partial res = partials.get(0);
+        for(int i = 1; i < partials.size(); i ++) {
+            res.merge(partials.get(i));
+        }
+        result = res.groups;
+    }
+
+    //一个任务的部分聚合结果
+    private class Partial {
+        List<Group> groups = new ArrayList<>();
+        LongHashMap<Group> longs = primitive ? new LongHashMap<>() : null;
+        Map<Object, Group> objects = primitive ? null : new HashMap<>();
+        Group single;
+
+        Partial() {
+            if(AggregateCursor.this.groups == 0) {
+                single = new Group(new Object[0], items.length);
+                groups.add(single);
+            }
+        }
+
+        void add(Cursor cursor) throws Exception {
+            Object[] row;
+            while((row = cursor.next()) != null) {
+                accumulate(group(row), row);
+            }
+        }
+
+        void merge(Partial other) {
+            for(Group g : other.groups) {
+                combine(group(g.keys), g);
+            }
+        }
+
+        //row 的前 groups 列所在的组，不存在时创建
+        private Group group(Object[] row) {
+            if(single != null) {
+                return single;
+            }
+            Group g;
+            if(primitive) {
+                long key = ((Number)row[0]).longValue();
+                g = longs.get(key);
+                if(g == null) {
+                    g = newGroup(row);
+                    longs.put(key, g);
+                }
+            } else {
+                int n = AggregateCursor.this.groups;
+                Object key = n == 1 ? row[0] : Arrays.asList(Arrays.copyOf(row, n));
+                g = objects.get(key);
+                if(g == null) {
+                    g = newGroup(row);
+                    objects.put(key, g);
+                }
+            }
+            return g;
+        }
+
+        private Group newGroup(Object[] row) {
+            Group g = new Group(Arrays.copyOf(row, AggregateCursor.this.groups), items.length);
+            groups.add(g);
+            return g;
+        }
+    }
+
+    private void accumulate(Group g, Object[] row) {
+        for(int i = 0; i < items.length; i ++) {
+            Item item = items[i];
+            if(item.function == null) continue;
+            g.counts[i] ++;
+            switch(item.function) {
+                case "sum":
+                case "avg":
+                    g.sums[i] = Math.addExact(g.sums[i], ((Number)row[item.position]).longValue());
+                    break;
+                case "min":
+                    Object v = row[item.position];
+                    if(g.extremes[i] == null || item.fd.compare(v, g.extremes[i]) < 0) {
+                        g.extremes[i] = v;
+                    }
+                    break;
+                case "max":
+                    v = row[item.position];
+                    if(g.extremes[i] == null || item.fd.compare(v, g.extremes[i]) > 0) {
+                        g.extremes[i] = v;
+                    }
+                    break;
+            }
+        }
+    }
+
+    //把另一个任务中同一组的结果合并到 g
+    private void combine(Group g, Group other) {
+        for(int i = 0; i < items.length; i ++) {
+            Item item = items[i];
+            if(item.function == null) continue;
+            g.counts[i] += other.counts[i];
+            g.sums[i] = Math.addExact(g.sums[i], other.sums[i]);
+            Object v = other.extremes[i];
+            if(v == null) continue;
+            if(g.extremes[i] == null
+                || "min".equals(item.function) && item.fd.compare(v, g.extremes[i]) < 0
+                || "max".equals(item.function) && item.fd.compare(v, g.extremes[i]) > 0) {
+                g.extremes[i] = v;
+            }
+        }
+    }
+
+    private Object[] output(Group g) {
+        Object[] res = new Object[items.length];
+        for(int i = 0; i < items.length; i ++) {
+            Item item = items[i];
+            if(item.function == null) {
+                res[i] = g.keys[item.position];
+                continue;
+            }
+            long count = g.counts[i];
+            switch(item.function) {
+                case "count":
+                    res[i] = count;
+                    break;
+                case "sum":
+                    res[i] = count == 0 ? NULL : (Object)g.sums[i];
+                    break;
+                case "avg":
+                    res[i] = count == 0 ? NULL : avg(g.sums[i], count);
+                    break;
+                default:
+                    res[i] = g.extremes[i] == null ? NULL : g.extremes[i];
+            }
+        }
+        return res;
+    }
+
+    //平均值以十进制字符串返回，最多保留 4 位小数
+    static String avg(long sum, long count) {
+        return BigDecimal.valueOf(sum).divide(BigDecimal.valueOf(count), 4, RoundingMode.HALF_UP)
+                .stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public void close() {
+        for(Cursor segment : segments) {
+            segment.close();
+        }
+    }
+}
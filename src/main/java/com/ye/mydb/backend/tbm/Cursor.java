@@ -0,0 +1,15 @@
+package com.ye.mydb.backend.tbm;
+
+/**
+ * 查询结果的游标
+ * 每次调用 next 时才从索引或堆中取出下一行并计算，结果集不会整体放在内存中
+ */
+public interface Cursor {
+    String[] getColumnNames();
+
+    //返回下一行各列的值（Integer、Long 或 String），没有更多行时返回 null
+    Object[] next() throws Exception;
+
+    //提前结束时释放游标持有的资源，例如排序的临时文件
+    default void close() {}
+}
@@ -1,10 +1,14 @@
 package com.ye.mydb.backend.tbm;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import com.google.common.primitives.Bytes;
+import com.ye.mydb.backend.common.UidIterator;
 import com.ye.mydb.backend.im.BPlusTree;
+import com.ye.mydb.backend.im.RangeCursor;
 import com.ye.mydb.backend.parser.statement.SingleExpression;
 import com.ye.mydb.backend.tm.TransactionManagerImpl;
 import com.ye.mydb.backend.utils.Panic;
@@ -16,8 +20,9 @@ import com.ye.mydb.common.Error;
 /**
  * field 表示字段信息
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][Unique]
  * 如果field无索引，IndexUid为0
+ * Unique 为 1 时索引是唯一索引，没有这个字节的旧字段视为非唯一
  */
 public class Field {
     long uid;
@@ -25,6 +30,7 @@ public class Field {
     String fieldName;
     String fieldType;
     private long index;
+    private boolean unique;
     private BPlusTree bt;
 
     public static Field loadField(Table tb, long uid) {
@@ -58,7 +64,9 @@ public class Field {
         res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
         fieldType = res.str;
         position += res.next;
-        this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        this.index = Parser.getLong(raw, position);
+        position += 8;
+        this.unique = position < raw.length && raw[position] == 1;
         if(index != 0) {
             try {
                 bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
@@ -69,9 +77,10 @@ public class Field {
         return this;
     }
 
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, boolean unique) throws Exception {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
+        f.unique = unique;
         if(indexed) {
             long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
             BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
@@ -86,7 +95,8 @@ public class Field {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        byte[] uniqueRaw = new byte[]{(byte)(unique ? 1 : 0)};
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw, uniqueRaw));
     }
 
     private static void typeCheck(String fieldType) throws Exception {
@@ -99,15 +109,65 @@ public class Field {
         return index != 0;
     }
 
+    public boolean isUnique() {
+        return unique;
+    }
+
     public void insert(Object key, long uid) throws Exception {
         long uKey = value2Uid(key);
         bt.insert(uKey, uid);
     }
 
-    public List<Long> search(long left, long right) throws Exception {
+    //插入唯一索引，check 判断值相同的已有条目是否冲突
+    public void insertUnique(Object key, long uid, BPlusTree.UniqueCheck check) throws Exception {
+        bt.insertUnique(new long[]{value2Uid(key)}, 1, uid, check);
+    }
+
+    //批量插入索引，键值排序后交给 B+ 树，使落在同一叶子中的键一次写入
+    public void insertAll(Object[] keys, long[] uids) throws Exception {
+        long[][] pairs = new long[keys.length][];
+        for(int i = 0; i < keys.length; i ++) {
+            pairs[i] = new long[]{value2Uid(keys[i]), uids[i]};
+        }
+        Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+        long[] sortedKeys = new long[pairs.length];
+        long[] sortedUids = new long[pairs.length];
+        for(int i = 0; i < pairs.length; i ++) {
+            sortedKeys[i] = pairs[i][0];
+            sortedUids[i] = pairs[i][1];
+        }
+        bt.insertAll(sortedKeys, sortedUids);
+    }
+
+    public UidIterator search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
     }
 
+    //整个索引按键升序的游标，用于取最小值
+    public RangeCursor head() throws Exception {
+        return bt.searchAll();
+    }
+
+    //索引末尾的游标，用于取最大值
+    public RangeCursor tail() throws Exception {
+        return bt.searchTail();
+    }
+
+    //索引中的条目数
+    public long entries() throws Exception {
+        return bt.getEntries();
+    }
+
+    //索引中不同键的个数
+    public long distinct() throws Exception {
+        return bt.getDistinct();
+    }
+
+    //按键的顺序取出约 buckets+1 个样本，用于构造直方图
+    public List<long[]> sample(int buckets) throws Exception {
+        return bt.sample(buckets);
+    }
+
     public Object string2Value(String str) {
         switch(fieldType) {
             case "int32":
@@ -120,11 +180,30 @@ public class Field {
         return null;
     }
 
+    //将批量导入时传来的值转换为该字段的类型，字符串按语句中的值解析
+    public Object toValue(Object v) throws Exception {
+        if(v instanceof String) {
+            return string2Value((String)v);
+        }
+        switch(fieldType) {
+            case "int32":
+                if(v instanceof Integer) return v;
+                break;
+            case "int64":
+                if(v instanceof Long) return v;
+                if(v instanceof Integer) return (long)(int)v;
+                break;
+            case "string":
+                return String.valueOf(v);
+        }
+        throw Error.InvalidValuesException;
+    }
+
     public long value2Uid(Object key) {
         long uid = 0;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = Parser.str2Key((String)key);
                 break;
             case "int32":
                 int uint = (int)key;
@@ -136,61 +215,76 @@ public class Field {
         return uid;
     }
 
-    public byte[] value2Raw(Object v) {
-        byte[] raw = null;
-        switch(fieldType) {
-            case "int32":
-                raw = Parser.int2Byte((int)v);
-                break;
-            case "int64":
-                raw = Parser.long2Byte((long)v);
-                break;
-            case "string":
-                raw = Parser.string2Byte((String)v);
-                break;
+    //由索引键还原整数字段的值，只对 isKeyExact 的字段有意义
+    public Object uid2Value(long key) {
+        if("int32".equals(fieldType)) {
+            return (int)key;
         }
-        return raw;
+        return key;
     }
 
-    class ParseValueRes {
-        Object v;
-        int shift;
+    //索引键是否与值一一对应，字符串的键只保留了前缀，通过索引找到的行还需要在行数据上判断
+    public boolean isKeyExact() {
+        return !"string".equals(fieldType);
     }
 
-    public ParseValueRes parserValue(byte[] raw) {
-        ParseValueRes res = new ParseValueRes();
-        switch(fieldType) {
-            case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
-                res.shift = 4;
-                break;
-            case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
-                res.shift = 8;
-                break;
-            case "string":
-                ParseStringRes r = Parser.parseString(raw);
-                res.v = r.str;
-                res.shift = r.next;
-                break;
+    //将条件中的值转换为该字段的类型，in 和 between 转换为 Object[]，like 只能用于字符串字段
+    public Object operand(SingleExpression exp) throws Exception {
+        if("like".equals(exp.compareOp) && !"string".equals(fieldType)) {
+            throw Error.InvalidCommandException;
         }
-        return res;
+        if(exp.values != null) {
+            Object[] values = new Object[exp.values.length];
+            for(int i = 0; i < values.length; i ++) {
+                values[i] = string2Value(exp.values[i]);
+            }
+            return values;
+        }
+        return string2Value(exp.value);
+    }
+
+    //判断该字段的值 v 与 target 是否满足 compareOp，用于在行数据上过滤
+    public boolean satisfy(Object v, String compareOp, Object target) {
+        switch(compareOp) {
+            case "like":
+                return like((String)v, (String)target);
+            case "in":
+                for(Object t : (Object[])target) {
+                    if(compare(v, t) == 0) return true;
+                }
+                return false;
+            case "between":
+                Object[] range = (Object[])target;
+                return compare(v, range[0]) >= 0 && compare(v, range[1]) <= 0;
+        }
+        int cmp = compare(v, target);
+        switch(compareOp) {
+            case "<":
+                return cmp < 0;
+            case "<=":
+                return cmp <= 0;
+            case "=":
+                return cmp == 0;
+            case "!=":
+                return cmp != 0;
+            case ">":
+                return cmp > 0;
+            case ">=":
+                return cmp >= 0;
+        }
+        return false;
     }
 
-    public String printValue(Object v) {
-        String str = null;
+    //按字段类型比较两个值，字符串按码点比较
+    int compare(Object a, Object b) {
         switch(fieldType) {
             case "int32":
-                str = String.valueOf((int)v);
-                break;
+                return Integer.compare((int)a, (int)b);
             case "int64":
-                str = String.valueOf((long)v);
-                break;
-            case "string":
-                str = (String)v;
-                break;
+                return Long.compare((long)a, (long)b);
+            default:
+                return compareString((String)a, (String)b);
         }
-        return str;
     }
 
     @Override
@@ -199,34 +293,145 @@ public class Field {
             .append(fieldName)
             .append(", ")
             .append(fieldType)
-            .append(index!=0?", Index":", NoIndex")
+            .append(index!=0?(unique?", UniqueIndex":", Index"):", NoIndex")
             .append(")")
             .toString();
     }
 
+    /**
+     * 计算条件在索引上对应的键范围 [left, right]，left > right 时范围为空
+     * 整数的范围是精确的；字符串的键只有前缀，范围取包含所有可能满足条件的键
+     * in 和 != 不能表示为一个范围，返回 null
+     */
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
         FieldCalRes res = new FieldCalRes();
+        Object v = operand(exp);
+        boolean exact = isKeyExact();
         switch(exp.compareOp) {
+            case "like":
+                byte[] prefix = likePrefix((String)v).getBytes(StandardCharsets.UTF_8);
+                res.left = Parser.prefix2Key(prefix, (byte)0);
+                res.right = Parser.prefix2Key(prefix, (byte)0xFF);
+                break;
+            case "between":
+                res.left = value2Uid(((Object[])v)[0]);
+                res.right = value2Uid(((Object[])v)[1]);
+                break;
             case "<":
-                res.left = 0;
-                v = string2Value(exp.value);
-                res.right = value2Uid(v);
-                if(res.right > 0) {
-                    res.right --;
+                long key = value2Uid(v);
+                res.left = Long.MIN_VALUE;
+                res.right = key;
+                if(exact) {
+                    if(key == Long.MIN_VALUE) {
+                        res.left = 0; res.right = -1;
+                    } else {
+                        res.right --;
+                    }
                 }
                 break;
+            case "<=":
+                res.left = Long.MIN_VALUE;
+                res.right = value2Uid(v);
+                break;
             case "=":
-                v = string2Value(exp.value);
                 res.left = value2Uid(v);
                 res.right = res.left;
                 break;
+            case ">=":
+                res.left = value2Uid(v);
+                res.right = Long.MAX_VALUE;
+                break;
             case ">":
+                key = value2Uid(v);
+                res.left = key;
                 res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                if(exact) {
+                    if(key == Long.MAX_VALUE) {
+                        res.left = 0; res.right = -1;
+                    } else {
+                        res.left ++;
+                    }
+                }
                 break;
+            default:
+                return null;
         }
         return res;
     }
+
+    //条件在索引上对应的一组互不相交的键范围，按键排序；in 的每个值一个范围，!= 返回 null
+    public List<FieldCalRes> calRanges(SingleExpression exp) throws Exception {
+        List<FieldCalRes> ranges = new ArrayList<>();
+        if(!"in".equals(exp.compareOp)) {
+            FieldCalRes r = calExp(exp);
+            if(r == null) {
+                return null;
+            }
+            if(r.left <= r.right) {
+                ranges.add(r);
+            }
+            return ranges;
+        }
+        Object[] values = (Object[])operand(exp);
+        long[] keys = new long[values.length];
+        for(int i = 0; i < keys.length; i ++) {
+            keys[i] = value2Uid(values[i]);
+        }
+        Arrays.sort(keys);
+        for(int i = 0; i < keys.length; i ++) {
+            if(i > 0 && keys[i] == keys[i-1]) continue;
+            FieldCalRes r = new FieldCalRes();
+            r.left = keys[i];
+            r.right = keys[i];
+            ranges.add(r);
+        }
+        return ranges;
+    }
+
+    //按码点比较字符串，与 UTF-8 的字节序以及字符串索引键的顺序一致
+    private static int compareString(String a, String b) {
+        int i = 0, j = 0;
+        while(i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if(ca != cb) {
+                return Integer.compare(ca, cb);
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    //like 模式中第一个通配符之前的部分
+    private static String likePrefix(String pattern) {
+        int i = 0;
+        while(i < pattern.length() && pattern.charAt(i) != '%' && pattern.charAt(i) != '_') {
+            i ++;
+        }
+        return pattern.substring(0, i);
+    }
+
+    //like 匹配，% 匹配任意多个字符，_ 匹配一个字符
+    private static boolean like(String s, String pattern) {
+        int i = 0, j = 0;
+        int star = -1, mark = 0;
+        while(i < s.length()) {
+            if(j < pattern.length() && (pattern.charAt(j) == '_' || pattern.charAt(j) == s.charAt(i))) {
+                i ++; j ++;
+            } else if(j < pattern.length() && pattern.charAt(j) == '%') {
+                star = j ++;
+                mark = i;
+            } else if(star >= 0) {
+                j = star + 1;
+                i = ++ mark;
+            } else {
+                return false;
+            }
+        }
+        while(j < pattern.length() && pattern.charAt(j) == '%') {
+            j ++;
+        }
+        return j == pattern.length();
+    }
 }
@@ -0,0 +1,158 @@
+package com.ye.mydb.backend.tbm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ye.mydb.backend.utils.HyperLogLog;
+
+/**
+ * 哈希连接：第一次 next 时读完构造端，按连接字段的值建立哈希表，之后逐行读取探测端在哈希表中查找
+ * 构造端估算的大小超过 MEMORY_BUDGET 时，改为按连接字段值的哈希把两端的行分别写入 PARTITIONS 个临时文件，
+ * 再依次把每个分区的构造端读入内存，与同一分区的探测端连接；单个分区仍然超过预算时也整个放在内存中
+ * 连接字段的值 Integer 统一为 Long 比较，int32 和 int64 字段可以互相连接
+ */
+class HashJoinCursor extends JoinCursor {
+    static final long MEMORY_BUDGET = SortCursor.MEMORY_BUDGET;
+    static final int PARTITIONS = 16;      //需为 2 的幂，取哈希值的高位选择分区
+
+    private Cursor build, probe;
+    private int buildKey, probeKey;     //连接字段在两端行中的位置
+    private boolean buildLeft;          //构造端是否为左表
+
+    private boolean built, closed;
+    private Map<Object, List<Object[]>> table;
+    private SpillFile[] buildParts, probeParts;     //没有溢出到磁盘时为 null
+    private int part = -1;
+
+    private Object[] current;
+    private List<Object[]> matches;
+    private int pos;
+
+    HashJoinCursor(Cursor build, Cursor probe, int buildKey, int probeKey, boolean buildLeft, String[] columns, int[] output, int leftWidth) {
+        super(columns, output, leftWidth);
+        this.build = build;
+        this.probe = probe;
+        this.buildKey = buildKey;
+        this.probeKey = probeKey;
+        this.buildLeft = buildLeft;
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        if(closed) {
+            return null;
+        }
+        if(!built) {
+            built = true;
+            build();
+        }
+        while(matches == null || pos == matches.size()) {
+            current = nextProbe();
+            if(current == null) {
+                close();
+                return null;
+            }
+            matches = table.get(key(current[probeKey]));
+            pos = 0;
+        }
+        Object[] match = matches.get(pos ++);
+        return buildLeft ? combine(match, current) : combine(current, match);
+    }
+
+    private void build() throws Exception {
+        table = new HashMap<>();
+        long size = 0;
+        Object[] row;
+        while((row = build.next()) != null) {
+            Object k = key(row[buildKey]);
+            if(buildParts != null) {
+                buildParts[partition(k)].write(row);
+                continue;
+            }
+            table.computeIfAbsent(k, x -> new ArrayList<>()).add(row);
+            size += SpillFile.estimateSize(row);
+            if(size > MEMORY_BUDGET) {
+                buildParts = spill(table);
+            }
+        }
+        build.close();
+        if(buildParts == null) {
+            return;
+        }
+        table = null;
+        probeParts = newPartitions();
+        while((row = probe.next()) != null) {
+            probeParts[partition(key(row[probeKey]))].write(row);
+        }
+        probe.close();
+    }
+
+    private SpillFile[] spill(Map<Object, List<Object[]>> rows) throws IOException {
+        SpillFile[] parts = newPartitions();
+        for(Map.Entry<Object, List<Object[]>> e : rows.entrySet()) {
+            SpillFile file = parts[partition(e.getKey())];
+            for(Object[] r : e.getValue()) {
+                file.write(r);
+            }
+        }
+        return parts;
+    }
+
+    private static SpillFile[] newPartitions() throws IOException {
+        SpillFile[] parts = new SpillFile[PARTITIONS];
+        for(int i = 0; i < PARTITIONS; i ++) {
+            parts[i] = new SpillFile("mydb-join");
+        }
+        return parts;
+    }
+
+    //没有溢出时直接读探测端，否则依次读各分区，进入一个分区时先把该分区的构造端读入哈希表
+    private Object[] nextProbe() throws Exception {
+        if(probeParts == null) {
+            return probe.next();
+        }
+        while(true) {
+            if(part >= 0) {
+                Object[] row = probeParts[part].read();
+                if(row != null) {
+                    return row;
+                }
+            }
+            if(++ part == PARTITIONS) {
+                return null;
+            }
+            table = new HashMap<>();
+            Object[] row;
+            while((row = buildParts[part].read()) != null) {
+                table.computeIfAbsent(key(row[buildKey]), x -> new ArrayList<>()).add(row);
+            }
+        }
+    }
+
+    private static Object key(Object v) {
+        return v instanceof Integer ? (Object)(long)(int)v : v;
+    }
+
+    private static int partition(Object key) {
+        long h = key instanceof String ? HyperLogLog.hash((String)key) : HyperLogLog.hash((Long)key);
+        return (int)(h >>> (64 - Integer.numberOfTrailingZeros(PARTITIONS)));
+    }
+
+    @Override
+    public void close() {
+        build.close();
+        probe.close();
+        for(SpillFile[] parts : new SpillFile[][]{buildParts, probeParts}) {
+            if(parts == null) continue;
+            for(SpillFile file : parts) {
+                file.delete();
+            }
+        }
+        closed = true;
+        table = null;
+        matches = null;
+    }
+}
@@ -0,0 +1,122 @@
+package com.ye.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Histogram 是索引键上的等深直方图
+ * 第 0 个桶包含 [min, bounds[0]] 中的键，第 i 个桶包含 (bounds[i-1], bounds[i]] 中的键，counts[i] 为桶中的条目数
+ * 构造时各桶的条目数大致相同，上界相同的桶合并；之后插入和删除只修改对应桶的计数
+ */
+class Histogram {
+    private long min;
+    private long[] bounds;
+    private long[] counts;
+    private long total;
+    private long built;         //构造时的条目数
+    private long depth;         //构造时每个桶的平均条目数
+    private boolean skewed;     //有桶在构造后增加了两倍平均条目数以上，例如新插入的键都超出了原来的范围
+
+    /**
+     * 由 B+ 树按间隔取出的 {位置, key} 构造，相邻两个样本之间的条目落在后一个样本所在的桶中，没有样本时返回 null
+     */
+    static Histogram build(List<long[]> samples) {
+        if(samples.isEmpty()) {
+            return null;
+        }
+        Histogram h = new Histogram();
+        h.min = samples.get(0)[1];
+        List<long[]> buckets = new ArrayList<>();
+        if(samples.size() == 1) {
+            buckets.add(new long[]{h.min, 1});
+        }
+        for(int i = 1; i < samples.size(); i ++) {
+            long[] s = samples.get(i);
+            long count = s[0] - samples.get(i-1)[0] + (i == 1 ? 1 : 0);
+            if(!buckets.isEmpty() && buckets.get(buckets.size()-1)[0] == s[1]) {
+                buckets.get(buckets.size()-1)[1] += count;
+            } else {
+                buckets.add(new long[]{s[1], count});
+            }
+        }
+        h.bounds = new long[buckets.size()];
+        h.counts = new long[buckets.size()];
+        for(int i = 0; i < buckets.size(); i ++) {
+            h.bounds[i] = buckets.get(i)[0];
+            h.counts[i] = buckets.get(i)[1];
+            h.total += h.counts[i];
+        }
+        h.built = h.total;
+        h.depth = Math.max(1, h.total / h.bounds.length);
+        return h;
+    }
+
+    int buckets() {
+        return bounds.length;
+    }
+
+    //修改 key 所在桶的计数，超出范围的 key 扩展第一个或最后一个桶
+    void add(long key, int delta) {
+        int i;
+        if(key < min) {
+            min = key;
+            i = 0;
+        } else if(key > bounds[bounds.length-1]) {
+            i = bounds.length - 1;
+            bounds[i] = key;
+        } else {
+            i = bucketOf(key);
+        }
+        counts[i] = Math.max(0, counts[i] + delta);
+        total = Math.max(0, total + delta);
+        if(delta > 0 && counts[i] > depth * 3) {
+            skewed = true;
+        }
+    }
+
+    //第一个上界大于等于 key 的桶
+    private int bucketOf(long key) {
+        int lo = 0, hi = bounds.length - 1;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(bounds[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    //条目数与构造时相差一倍以上，或者插入集中在某个桶中时需要重新构造
+    boolean stale() {
+        return skewed || total > built * 2 || total * 2 < built;
+    }
+
+    //键在 [left, right] 中的条目所占的比例，桶内按键均匀分布估算
+    double fraction(long left, long right) {
+        if(total == 0 || left > right) {
+            return 0;
+        }
+        double sum = 0;
+        for(int i = 0; i < bounds.length; i ++) {
+            double lo = i == 0 ? min : (double)bounds[i-1] + 1;
+            double hi = bounds[i];
+            double l = Math.max(lo, left);
+            double r = Math.min(hi, right);
+            if(l > r) {
+                continue;
+            }
+            sum += counts[i] * Math.min(1, (r - l + 1) / (hi - lo + 1));
+        }
+        return Math.min(1, sum / total);
+    }
+
+    long min() {
+        return min;
+    }
+
+    long max() {
+        return bounds[bounds.length-1];
+    }
+}
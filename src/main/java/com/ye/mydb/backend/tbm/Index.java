@@ -0,0 +1,216 @@
+package com.ye.mydb.backend.tbm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.primitives.Bytes;
+import com.ye.mydb.backend.im.BPlusTree;
+import com.ye.mydb.backend.im.RangeCursor;
+import com.ye.mydb.backend.tm.TransactionManagerImpl;
+import com.ye.mydb.backend.utils.Panic;
+import com.ye.mydb.backend.utils.Parser;
+import com.ye.mydb.common.Error;
+
+/**
+ * Index 表示多列索引
+ * 二进制格式为：
+ * [KeyCount][KeyOrdinal1]...[KeyOrdinalN][IncludeCount][IncludeOrdinal1]...[IncludeOrdinalM][BootUid][Unique]
+ * Ordinal 为字段在表中的序号，Unique 为 1 时各键字段的值合起来唯一，附加字段不参与
+ *
+ * B+ 树的 key 依次由各键字段和附加字段的索引键组成，附加字段只存放在叶子中用于覆盖查询，查找时取整个范围
+ * 整数字段的索引键就是值本身，查询涉及的字段都是索引中的整数字段时，可以直接从 key 中取值而不读取行
+ */
+public class Index {
+    long uid;
+    private Table tb;
+    int[] keys;
+    int[] include;
+    private long boot;
+    private boolean unique;
+    private BPlusTree bt;
+
+    public static Index loadIndex(Table tb, long uid) {
+        byte[] raw = null;
+        try {
+            raw = ((TableManagerImpl)tb.tbm).vm.read(TransactionManagerImpl.SUPER_XID, uid);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        assert raw != null;
+        return new Index(uid, tb).parseSelf(raw);
+    }
+
+    public Index(long uid, Table tb) {
+        this.uid = uid;
+        this.tb = tb;
+    }
+
+    private Index parseSelf(byte[] raw) {
+        int position = 0;
+        keys = new int[Parser.getInt(raw, position)];
+        position += 4;
+        for(int i = 0; i < keys.length; i ++) {
+            keys[i] = Parser.getInt(raw, position);
+            position += 4;
+        }
+        include = new int[Parser.getInt(raw, position)];
+        position += 4;
+        for(int i = 0; i < include.length; i ++) {
+            include[i] = Parser.getInt(raw, position);
+            position += 4;
+        }
+        boot = Parser.getLong(raw, position);
+        position += 8;
+        unique = position < raw.length && raw[position] == 1;
+        try {
+            bt = BPlusTree.load(boot, ((TableManagerImpl)tb.tbm).dm);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        return this;
+    }
+
+    public static Index createIndex(Table tb, long xid, int[] keys, int[] include, boolean unique) throws Exception {
+        if(keys.length + include.length > BPlusTree.MAX_KEY_WIDTH) {
+            throw Error.TooManyIndexFieldsException;
+        }
+        Index idx = new Index(0, tb);
+        idx.keys = keys;
+        idx.include = include;
+        idx.unique = unique;
+        idx.boot = BPlusTree.create(((TableManagerImpl)tb.tbm).dm, keys.length + include.length);
+        idx.bt = BPlusTree.load(idx.boot, ((TableManagerImpl)tb.tbm).dm);
+        idx.persistSelf(xid);
+        return idx;
+    }
+
+    private void persistSelf(long xid) throws Exception {
+        byte[] raw = Parser.int2Byte(keys.length);
+        for(int ordinal : keys) {
+            raw = Bytes.concat(raw, Parser.int2Byte(ordinal));
+        }
+        raw = Bytes.concat(raw, Parser.int2Byte(include.length));
+        for(int ordinal : include) {
+            raw = Bytes.concat(raw, Parser.int2Byte(ordinal));
+        }
+        raw = Bytes.concat(raw, Parser.long2Byte(boot), new byte[]{(byte)(unique ? 1 : 0)});
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, raw);
+    }
+
+    public int width() {
+        return keys.length + include.length;
+    }
+
+    //行 row 在该索引中的 key
+    long[] key(Object[] row) {
+        long[] key = new long[width()];
+        for(int i = 0; i < key.length; i ++) {
+            int ordinal = i < keys.length ? keys[i] : include[i - keys.length];
+            key[i] = tb.fields.get(ordinal).value2Uid(row[ordinal]);
+        }
+        return key;
+    }
+
+    public boolean isUnique() {
+        return unique;
+    }
+
+    public void insert(Object[] row, long uid) throws Exception {
+        bt.insert(key(row), uid);
+    }
+
+    //插入唯一索引，只比较键字段对应的前缀
+    public void insertUnique(Object[] row, long uid, BPlusTree.UniqueCheck check) throws Exception {
+        bt.insertUnique(key(row), keys.length, uid, check);
+    }
+
+    //批量插入，key 按字典序排序后交给 B+ 树
+    public void insertAll(List<Object[]> rows, long[] uids) throws Exception {
+        Integer[] order = new Integer[rows.size()];
+        long[][] rowKeys = new long[rows.size()][];
+        for(int i = 0; i < order.length; i ++) {
+            order[i] = i;
+            rowKeys[i] = key(rows.get(i));
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compare(rowKeys[a], rowKeys[b]));
+        long[][] sortedKeys = new long[order.length][];
+        long[] sortedUids = new long[order.length];
+        for(int i = 0; i < order.length; i ++) {
+            sortedKeys[i] = rowKeys[order[i]];
+            sortedUids[i] = uids[order[i]];
+        }
+        bt.insertAll(sortedKeys, sortedUids);
+    }
+
+    public RangeCursor search(long[] left, long[] right) throws Exception {
+        return bt.searchRange(left, right);
+    }
+
+    //整个索引按 key 升序的游标，用于取第一个键字段的最小值
+    public RangeCursor head() throws Exception {
+        return bt.searchAll();
+    }
+
+    //索引末尾的游标，用于取第一个键字段的最大值
+    public RangeCursor tail() throws Exception {
+        return bt.searchTail();
+    }
+
+    //索引中的条目数
+    public long entries() throws Exception {
+        return bt.getEntries();
+    }
+
+    //索引中不同 key 的个数，key 包含附加字段
+    public long distinct() throws Exception {
+        return bt.getDistinct();
+    }
+
+    //按 key 的顺序取出约 buckets+1 个第一个键字段的样本，用于构造直方图
+    public List<long[]> sample(int buckets) throws Exception {
+        return bt.sample(buckets);
+    }
+
+    //第 ordinal 个字段的值能否直接从 key 中取出
+    boolean covers(int ordinal) {
+        if(!tb.fields.get(ordinal).isKeyExact()) {
+            return false;
+        }
+        for(int k : keys) {
+            if(k == ordinal) return true;
+        }
+        for(int k : include) {
+            if(k == ordinal) return true;
+        }
+        return false;
+    }
+
+    //从游标当前的 key 中取出各字段的值，结果按字段序号排列，不在索引中的字段为 null
+    Object[] values(RangeCursor cursor) {
+        Object[] row = new Object[tb.fields.size()];
+        for(int i = 0; i < width(); i ++) {
+            int ordinal = i < keys.length ? keys[i] : include[i - keys.length];
+            Field fd = tb.fields.get(ordinal);
+            if(fd.isKeyExact()) {
+                row[ordinal] = fd.uid2Value(cursor.key(i));
+            }
+        }
+        return row;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(unique ? "UniqueIndex(" : "Index(");
+        for(int i = 0; i < keys.length; i ++) {
+            if(i > 0) sb.append(" ");
+            sb.append(tb.fields.get(keys[i]).fieldName);
+        }
+        if(include.length > 0) {
+            sb.append(" include");
+            for(int ordinal : include) {
+                sb.append(" ").append(tb.fields.get(ordinal).fieldName);
+            }
+        }
+        return sb.append(")").toString();
+    }
+}
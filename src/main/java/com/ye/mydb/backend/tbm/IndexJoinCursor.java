@@ -0,0 +1,50 @@
+package com.ye.mydb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 索引嵌套循环连接：逐行读取外表，用连接字段的值在内表的索引中查找匹配的行
+ * 相邻外表行的连接字段值相同时（例如外表按该字段的索引读取）直接复用上一次查找的结果
+ */
+class IndexJoinCursor extends JoinCursor {
+    private Cursor outer;
+    private Table.Lookup inner;
+    private int key;            //连接字段在外表行中的位置
+    private boolean outerLeft;  //外表是否为左表
+
+    private Object[] current;
+    private Object lastKey;
+    private List<Object[]> matches;
+    private int pos;
+
+    IndexJoinCursor(Cursor outer, Table.Lookup inner, int key, boolean outerLeft, String[] columns, int[] output, int leftWidth) {
+        super(columns, output, leftWidth);
+        this.outer = outer;
+        this.inner = inner;
+        this.key = key;
+        this.outerLeft = outerLeft;
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        while(matches == null || pos == matches.size()) {
+            current = outer.next();
+            if(current == null) {
+                return null;
+            }
+            Object k = current[key];
+            if(matches == null || !k.equals(lastKey)) {
+                matches = inner.find(k);
+                lastKey = k;
+            }
+            pos = 0;
+        }
+        Object[] match = matches.get(pos ++);
+        return outerLeft ? combine(current, match) : combine(match, current);
+    }
+
+    @Override
+    public void close() {
+        outer.close();
+    }
+}
@@ -0,0 +1,31 @@
+package com.ye.mydb.backend.tbm;
+
+/**
+ * 连接结果的游标，左右两表读出的行拼接后，按 output 取出结果的各列
+ * output 中小于 leftWidth 的位置来自左表的行，其余来自右表的行
+ */
+abstract class JoinCursor implements Cursor {
+    private String[] columns;
+    private int[] output;
+    private int leftWidth;
+
+    JoinCursor(String[] columns, int[] output, int leftWidth) {
+        this.columns = columns;
+        this.output = output;
+        this.leftWidth = leftWidth;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columns;
+    }
+
+    Object[] combine(Object[] left, Object[] right) {
+        Object[] row = new Object[output.length];
+        for(int i = 0; i < output.length; i ++) {
+            int p = output[i];
+            row[i] = p < leftWidth ? left[p] : right[p - leftWidth];
+        }
+        return row;
+    }
+}
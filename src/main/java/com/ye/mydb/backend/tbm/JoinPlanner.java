@@ -0,0 +1,244 @@
+package com.ye.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.ye.mydb.backend.parser.statement.Select;
+import com.ye.mydb.backend.parser.statement.SingleExpression;
+import com.ye.mydb.backend.parser.statement.Where;
+import com.ye.mydb.common.Error;
+
+/**
+ * JoinPlanner 执行两张表的等值连接 select ... from a join b on a.x = b.y
+ * 字段名可以写作 表名.字段名，不带前缀时只能在其中一张表中存在；select * 的结果列名都带表名前缀
+ * where 按 and 拆开，每一部分只能涉及一张表，分别下推到两张表上，由各自的 Planner 选择读取方式
+ * 右表（或左表）的连接字段是某个索引的第一个键字段时做索引嵌套循环连接，另一张表为外表；
+ * 两边都没有这样的索引时做哈希连接，以右表为构造端
+ * 每张表只读出结果列、排序列和连接字段，连接后的结果再按需排序和截取；连接上不支持聚合
+ */
+class JoinPlanner {
+    private Table[] tables;
+    private List<List<Integer>> fetch = new ArrayList<>();      //每张表读出的字段序号
+    private List<List<Where>> conjuncts = new ArrayList<>();    //下推到每张表的条件
+
+    JoinPlanner(Table left, Table right) {
+        tables = new Table[]{left, right};
+        for(int i = 0; i < 2; i ++) {
+            fetch.add(new ArrayList<>());
+            conjuncts.add(new ArrayList<>());
+        }
+    }
+
+    Cursor read(long xid, Select read) throws Exception {
+        if(tables[0].name.equals(tables[1].name) || read.aggregates != null || read.groupBy != null) {
+            throw Error.UnsupportedJoinException;
+        }
+        int[] on = resolve(read.join.leftField);
+        int[] other = resolve(read.join.rightField);
+        if(on[0] == other[0]) {
+            throw Error.UnsupportedJoinException;
+        }
+        int[][] keys = on[0] == 0 ? new int[][]{on, other} : new int[][]{other, on};
+        if(field(keys[0]).isKeyExact() != field(keys[1]).isKeyExact()) {
+            throw Error.InvalidValuesException;
+        }
+        if(read.where != null) {
+            split(read.where);
+        }
+
+        //结果列，select * 为两张表的所有字段
+        List<int[]> items = new ArrayList<>();
+        List<String> columns = new ArrayList<>();
+        if(read.fields.length == 1 && "*".equals(read.fields[0])) {
+            for(int side = 0; side < 2; side ++) {
+                for(int i = 0; i < tables[side].fields.size(); i ++) {
+                    items.add(new int[]{side, i});
+                    columns.add(tables[side].name + "." + tables[side].fields.get(i).fieldName);
+                }
+            }
+        } else {
+            for(String name : read.fields) {
+                items.add(resolve(name));
+                columns.add(name);
+            }
+        }
+        int width = items.size();
+        int[][] order = null;
+        int[] positions = null;
+        if(read.orderBy != null) {
+            order = new int[read.orderBy.length][];
+            positions = new int[order.length];
+            for(int i = 0; i < order.length; i ++) {
+                order[i] = resolve(read.orderBy[i]);
+                positions[i] = indexOf(items, order[i]);
+                if(positions[i] < 0) {
+                    items.add(order[i]);
+                    positions[i] = items.size() - 1;
+                }
+            }
+        }
+
+        int[] keyPos = new int[2];
+        for(int side = 0; side < 2; side ++) {
+            keyPos[side] = fetchPos(side, keys[side][1]);
+        }
+        for(int[] item : items) {
+            fetchPos(item[0], item[1]);
+        }
+        int leftWidth = fetch.get(0).size();
+        int[] output = new int[items.size()];
+        for(int i = 0; i < output.length; i ++) {
+            int[] item = items.get(i);
+            output[i] = (item[0] == 0 ? 0 : leftWidth) + fetch.get(item[0]).indexOf(item[1]);
+        }
+        String[] names = columns.toArray(new String[columns.size()]);
+
+        Cursor cursor;
+        int inner = tables[1].leadingIndex(keys[1][1]) != null ? 1 : tables[0].leadingIndex(keys[0][1]) != null ? 0 : -1;
+        if(inner >= 0) {
+            int outer = 1 - inner;
+            Table.Lookup lookup = tables[inner].new Lookup(xid, keys[inner][1], where(inner), ordinals(inner));
+            Cursor rows = tables[outer].select(xid, where(outer), ordinals(outer));
+            cursor = new IndexJoinCursor(rows, lookup, keyPos[outer], outer == 0, names, output, leftWidth);
+        } else {
+            Cursor build = tables[1].select(xid, where(1), ordinals(1));
+            Cursor probe = tables[0].select(xid, where(0), ordinals(0));
+            cursor = new HashJoinCursor(build, probe, keyPos[1], keyPos[0], false, names, output, leftWidth);
+        }
+        if(order != null) {
+            long need = read.limit < 0 ? -1 : (long)read.offset + read.limit;
+            cursor = new SortCursor(cursor, comparator(order, positions, read.desc), need, width);
+        }
+        if(read.limit >= 0 || read.offset > 0) {
+            cursor = new LimitCursor(cursor, read.offset, read.limit);
+        }
+        return cursor;
+    }
+
+    //字段名对应的 {表, 字段序号}，表为 0 或 1
+    private int[] resolve(String name) throws Exception {
+        int dot = name.indexOf('.');
+        if(dot >= 0) {
+            String tableName = name.substring(0, dot);
+            for(int side = 0; side < 2; side ++) {
+                if(tables[side].name.equals(tableName)) {
+                    return new int[]{side, tables[side].ordinalOf(name.substring(dot + 1))};
+                }
+            }
+            throw Error.TableNotFoundException;
+        }
+        int[] res = null;
+        for(int side = 0; side < 2; side ++) {
+            for(int i = 0; i < tables[side].fields.size(); i ++) {
+                if(tables[side].fields.get(i).fieldName.equals(name)) {
+                    if(res != null) {
+                        throw Error.AmbiguousFieldException;
+                    }
+                    res = new int[]{side, i};
+                }
+            }
+        }
+        if(res == null) {
+            throw Error.FieldNotFoundException;
+        }
+        return res;
+    }
+
+    private Field field(int[] ref) {
+        return tables[ref[0]].fields.get(ref[1]);
+    }
+
+    //把 where 按 and 拆开，每一部分去掉字段名的表名前缀后归入它涉及的表
+    private void split(Where where) throws Exception {
+        if("and".equals(where.logicOp)) {
+            split(where.left);
+            split(where.right);
+            return;
+        }
+        int[] side = {-1};
+        Where local = localize(where, side);
+        conjuncts.get(side[0]).add(local);
+    }
+
+    private Where localize(Where where, int[] side) throws Exception {
+        Where res = new Where();
+        res.logicOp = where.logicOp;
+        if(where.exp != null) {
+            int[] ref = resolve(where.exp.field);
+            if(side[0] >= 0 && side[0] != ref[0]) {
+                throw Error.UnsupportedJoinException;
+            }
+            side[0] = ref[0];
+            res.exp = new SingleExpression();
+            res.exp.field = tables[ref[0]].fields.get(ref[1]).fieldName;
+            res.exp.compareOp = where.exp.compareOp;
+            res.exp.value = where.exp.value;
+            res.exp.values = where.exp.values;
+        }
+        if(where.left != null) {
+            res.left = localize(where.left, side);
+        }
+        if(where.right != null) {
+            res.right = localize(where.right, side);
+        }
+        return res;
+    }
+
+    //下推到 side 的条件，没有时为 null
+    private Where where(int side) {
+        Where res = null;
+        for(Where w : conjuncts.get(side)) {
+            if(res == null) {
+                res = w;
+            } else {
+                Where and = new Where();
+                and.logicOp = "and";
+                and.left = res;
+                and.right = w;
+                res = and;
+            }
+        }
+        return res;
+    }
+
+    //字段在 side 读出的行中的位置，不在时加入
+    private int fetchPos(int side, int ordinal) {
+        List<Integer> list = fetch.get(side);
+        int pos = list.indexOf(ordinal);
+        if(pos < 0) {
+            list.add(ordinal);
+            pos = list.size() - 1;
+        }
+        return pos;
+    }
+
+    private int[] ordinals(int side) {
+        List<Integer> list = fetch.get(side);
+        int[] res = new int[list.size()];
+        for(int i = 0; i < res.length; i ++) {
+            res[i] = list.get(i);
+        }
+        return res;
+    }
+
+    private static int indexOf(List<int[]> items, int[] ref) {
+        for(int i = 0; i < items.size(); i ++) {
+            if(Arrays.equals(items.get(i), ref)) return i;
+        }
+        return -1;
+    }
+
+    private Comparator<Object[]> comparator(int[][] order, int[] positions, boolean[] desc) {
+        return (a, b) -> {
+            for(int i = 0; i < order.length; i ++) {
+                int cmp = field(order[i]).compare(a[positions[i]], b[positions[i]]);
+                if(cmp != 0) {
+                    return desc[i] ? -cmp : cmp;
+                }
+            }
+            return 0;
+        };
+    }
+}
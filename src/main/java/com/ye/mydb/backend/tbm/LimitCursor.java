@@ -0,0 +1,45 @@
+package com.ye.mydb.backend.tbm;
+
+/**
+ * LimitCursor 跳过另一个游标的前 offset 行，之后最多返回 limit 行，取够后不再读取底层游标
+ */
+class LimitCursor implements Cursor {
+    private Cursor cursor;
+    private int offset;
+    private int limit;      //为 -1 时不限制
+
+    LimitCursor(Cursor cursor, int offset, int limit) {
+        this.cursor = cursor;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return cursor.getColumnNames();
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        while(offset > 0) {
+            if(cursor.next() == null) {
+                return null;
+            }
+            offset --;
+        }
+        if(limit == 0) {
+            cursor.close();
+            return null;
+        }
+        Object[] row = cursor.next();
+        if(row != null && limit > 0) {
+            limit --;
+        }
+        return row;
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+}
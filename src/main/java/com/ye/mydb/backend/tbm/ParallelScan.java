@@ -0,0 +1,174 @@
+package com.ye.mydb.backend.tbm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * ParallelScan 在所有连接共享的 ForkJoinPool 上执行按页号分段的顺序扫描，每一段是一个游标
+ * rows 按段的顺序返回各段的行，结果和串行扫描的顺序相同；同时最多有 WINDOW 个段在执行或读完后等待取走，
+ * 每段的行先缓存在内存中。forEach 由每个任务依次领取还未处理的段，交给任务自己的状态（例如部分聚合结果）
+ */
+class ParallelScan {
+    static final int SEGMENT_PAGES = 64;        //每段的页数
+    static final int MIN_PAGES = 512;           //数据库文件少于这么多页时串行扫描
+    static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final int WINDOW = 2 * POOL.getParallelism();
+
+    interface Worker<T> {
+        void accept(T state, Cursor segment) throws Exception;
+    }
+
+    //每个任务用 init 创建自己的状态，处理完所有段后返回各任务的状态
+    static <T> List<T> forEach(List<Cursor> segments, Supplier<T> init, Worker<T> worker) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        List<ForkJoinTask<T>> tasks = new ArrayList<>();
+        int n = Math.min(POOL.getParallelism(), segments.size());
+        for(int i = 0; i < n; i ++) {
+            tasks.add(POOL.submit(() -> {
+                T state = init.get();
+                int j;
+                while((j = next.getAndIncrement()) < segments.size()) {
+                    Cursor segment = segments.get(j);
+                    try {
+                        worker.accept(state, segment);
+                    } finally {
+                        segment.close();
+                    }
+                }
+                return state;
+            }));
+        }
+        List<T> res = new ArrayList<>();
+        Exception err = null;
+        for(ForkJoinTask<T> task : tasks) {
+            try {
+                res.add(get(task));
+            } catch(Exception e) {
+                if(err == null) {
+                    err = e;
+                    next.set(segments.size());      //让其他任务不再领取新的段
+                }
+            }
+        }
+        if(err != null) {
+            throw err;
+        }
+        return res;
+    }
+
+    static Cursor rows(List<Cursor> segments) {
+        return new RowsCursor(segments);
+    }
+
+    private static <T> T get(ForkJoinTask<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof Exception) {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    static class RowsCursor implements Cursor {
+        private List<Cursor> segments;
+        private ArrayDeque<Job> pending = new ArrayDeque<>();
+        private int submitted;
+        private List<Object[]> current;
+        private int pos;
+        private volatile boolean closed;
+
+        //一个段的任务，任务开始执行和 close 只有先领取到的一方处理这个段
+        private class Job implements Callable<List<Object[]>> {
+            final Cursor segment;
+            final AtomicBoolean claimed = new AtomicBoolean();
+            ForkJoinTask<List<Object[]>> task;
+
+            Job(Cursor segment) {
+                this.segment = segment;
+            }
+
+            @Override
+            public List<Object[]> call() throws Exception {
+                if(!claimed.compareAndSet(false, true)) {
+                    return null;
+                }
+                return drain(segment);
+            }
+        }
+
+        RowsCursor(List<Cursor> segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return segments.get(0).getColumnNames();
+        }
+
+        @Override
+        public Object[] next() throws Exception {
+            while(current == null || pos == current.size()) {
+                while(submitted < segments.size() && pending.size() < WINDOW) {
+                    Job job = new Job(segments.get(submitted ++));
+                    job.task = POOL.submit(job);
+                    pending.add(job);
+                }
+                if(pending.isEmpty()) {
+                    return null;
+                }
+                try {
+                    current = get(pending.poll().task);
+                } catch(Exception e) {
+                    close();
+                    throw e;
+                }
+                pos = 0;
+            }
+            return current.get(pos ++);
+        }
+
+        private List<Object[]> drain(Cursor segment) throws Exception {
+            List<Object[]> rows = new ArrayList<>();
+            try {
+                Object[] row;
+                while(!closed && (row = segment.next()) != null) {
+                    rows.add(row);
+                }
+            } finally {
+                segment.close();
+            }
+            return rows;
+        }
+
+        /**
+         * 还没开始的段直接关闭，正在执行的段在读下一行前停止，等它们结束后才返回
+         * 返回之后不会再有任务读取行，调用方可以随即结束事务
+         */
+        @Override
+        public void close() {
+            closed = true;
+            for(Job job : pending) {
+                if(job.claimed.compareAndSet(false, true)) {
+                    job.segment.close();
+                } else {
+                    job.task.quietlyJoin();
+                }
+            }
+            pending.clear();
+            while(submitted < segments.size()) {
+                segments.get(submitted ++).close();
+            }
+            current = null;
+        }
+    }
+}
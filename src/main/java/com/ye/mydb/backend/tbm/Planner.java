@@ -0,0 +1,499 @@
+package com.ye.mydb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ye.mydb.backend.common.UidIterator;
+import com.ye.mydb.backend.parser.statement.SingleExpression;
+import com.ye.mydb.backend.parser.statement.Where;
+import com.ye.mydb.backend.utils.Parser;
+
+/**
+ * Planner 为 where 选择取得候选行的方式，候选有：
+ * 单字段索引上的一组键范围、多列索引上的一个键范围、几种方式结果的 UID 交集（and）和并集（or），以及顺序扫描整个堆
+ * 代价按读取的索引条目数和行数估算，顺序扫描的一行比通过索引随机读取的一行便宜，取代价最小的一种。
+ * 等值条件的行数由索引的条目数和不同键的个数得出，范围条件用 TableStats 中的直方图估算，没有直方图时取固定的选择率
+ * 索引只用于缩小候选行的范围，除了只涉及一个整数字段的条件，取出的行还要在行数据上判断整个 where
+ */
+class Planner {
+    private static final double ENTRY_COST = 0.2;           //读取一个索引条目的代价，通过索引读取一行为 1
+    private static final double SCAN_COST = 0.5;            //顺序扫描时读取一行的代价
+    private static final double RANGE_SELECTIVITY = 1.0 / 3;
+    private static final double LIKE_SELECTIVITY = 0.1;
+    private static final double SORT_COST = 0.1;            //对结果中的一行排序的代价
+
+    private Table tb;
+    private double tableRows;       //表的行数，来自 TableStats
+
+    Planner(Table tb) throws Exception {
+        this.tb = tb;
+        long rows = tb.stats.rows();
+        this.tableRows = rows >= 0 ? rows : indexedRows();
+    }
+
+    //TableStats 还没有扫描过表时，用各索引中最多的条目数估算行数；没有索引时只能顺序扫描，行数不影响选择
+    private long indexedRows() throws Exception {
+        long rows = 0;
+        for(Field fd : tb.fields) {
+            if(fd.isIndexed()) {
+                rows = Math.max(rows, fd.entries());
+            }
+        }
+        for(Index index : tb.indexes) {
+            rows = Math.max(rows, index.entries());
+        }
+        return rows;
+    }
+
+    abstract class Path {
+        double entries;     //读取的索引条目数
+        double rows;        //得到的候选行数
+        BitSet columns = new BitSet();      //被条件限定的字段序号，限定相同字段的两种方式不能按独立事件估算交集
+
+        double cost() {
+            return entries * ENTRY_COST + rows;
+        }
+
+        abstract UidIterator open() throws Exception;
+
+        //为多列索引上的单个范围时返回该索引，open 的结果是它的 RangeCursor，可用于覆盖查询
+        Index index() {
+            return null;
+        }
+    }
+
+    //顺序扫描整个堆
+    class ScanPath extends Path {
+        ScanPath() {
+            rows = tableRows;
+        }
+
+        @Override
+        double cost() {
+            return rows * SCAN_COST;
+        }
+
+        @Override
+        UidIterator open() throws Exception {
+            return ((TableManagerImpl)tb.tbm).vm.scan(tb.uid, Parser.long2Byte(tb.uid));
+        }
+    }
+
+    //单字段索引上一组互不相交的键范围
+    class FieldPath extends Path {
+        Field fd;
+        int ordinal;
+        List<FieldCalRes> ranges;
+        boolean points;     //各范围是否都是单个键（= 和 in），此时按不同键的个数估算
+        double fallback;    //字段上没有直方图时，按条件的类型估算的选择率
+        int exps;           //合并进来的条件个数
+
+        FieldPath(int ordinal, String op, List<FieldCalRes> ranges, double selectivity) throws Exception {
+            this.ordinal = ordinal;
+            this.fd = tb.fields.get(ordinal);
+            this.ranges = ranges;
+            this.points = isPoint(op);
+            this.fallback = selectivity;
+            this.exps = 1;
+            columns.set(ordinal);
+            estimate();
+        }
+
+        //和同一字段上的另一个单范围条件取交集
+        void clip(String op, FieldCalRes r, double selectivity) throws Exception {
+            List<FieldCalRes> clipped = new ArrayList<>();
+            for(FieldCalRes range : ranges) {
+                FieldCalRes c = new FieldCalRes();
+                c.left = Math.max(range.left, r.left);
+                c.right = Math.min(range.right, r.right);
+                if(c.left <= c.right) {
+                    clipped.add(c);
+                }
+            }
+            ranges = clipped;
+            points = points || isPoint(op);
+            fallback *= selectivity;
+            exps ++;
+            estimate();
+        }
+
+        private void estimate() throws Exception {
+            double selectivity;
+            if(ranges.isEmpty()) {
+                selectivity = 0;
+            } else if(points) {
+                selectivity = Math.min(1, (double)ranges.size() / Math.max(1, fd.distinct()));
+            } else {
+                double f = tb.stats.fraction(ordinal, ranges);
+                selectivity = f >= 0 ? f : fallback;
+            }
+            entries = rows = selectivity * fd.entries();
+        }
+
+        @Override
+        UidIterator open() throws Exception {
+            UidIterator it = UidIterator.of(new long[0], 0);
+            for(int i = ranges.size() - 1; i >= 0; i --) {
+                it = UidIterator.concat(fd.search(ranges.get(i).left, ranges.get(i).right), it);
+            }
+            return it;
+        }
+    }
+
+    //多列索引上的一个键范围，前几个键字段被条件限定
+    class IndexPath extends Path {
+        Index index;
+        long[] left, right;
+
+        @Override
+        UidIterator open() throws Exception {
+            return index.search(left, right);
+        }
+
+        @Override
+        Index index() {
+            return index;
+        }
+    }
+
+    //两种方式结果的交集，先取出行数少的一方。交集之前只读取索引条目，最后才读取行
+    class AndPath extends Path {
+        Path first, second;
+
+        AndPath(Path a, Path b) {
+            first = a.rows <= b.rows ? a : b;
+            second = first == a ? b : a;
+            entries = a.entries + b.entries;
+            rows = tableRows == 0 ? 0 : a.rows * b.rows / tableRows;
+            columns.or(a.columns);
+            columns.or(b.columns);
+        }
+
+        @Override
+        UidIterator open() throws Exception {
+            return UidIterator.intersect(first.open(), second.open());
+        }
+    }
+
+    //几种方式结果的并集
+    class OrPath extends Path {
+        List<Path> paths;
+
+        OrPath(List<Path> paths) {
+            this.paths = paths;
+            for(Path p : paths) {
+                entries += p.entries;
+                rows += p.rows;
+                columns.or(p.columns);
+            }
+            rows = Math.min(rows, tableRows);
+        }
+
+        @Override
+        UidIterator open() throws Exception {
+            List<UidIterator> its = new ArrayList<>();
+            for(Path p : paths) {
+                its.add(p.open());
+            }
+            return UidIterator.union(its);
+        }
+    }
+
+    //where 为 null 时顺序扫描
+    Path plan(Where where) throws Exception {
+        Path best = new ScanPath();
+        if(where == null) {
+            return best;
+        }
+        Path p = indexPath(where);
+        if(p != null && p.cost() < best.cost()) {
+            best = p;
+        }
+        return best;
+    }
+
+    /**
+     * 按 order 中的字段升序取得候选行的方式：单个整数字段上的索引，或键字段的前缀就是 order 的多列索引，
+     * where 中对这些字段的条件仍用来确定范围。没有这样的索引时返回 null
+     * 字符串的键只有前缀，前缀相同的行之间没有顺序，不使用字符串字段上的索引
+     */
+    Path orderedPath(Where where, int[] order) throws Exception {
+        List<SingleExpression> exps = new ArrayList<>();
+        if(where != null) {
+            for(Where w : flatten(where, "and", new ArrayList<>())) {
+                if("".equals(w.logicOp)) {
+                    exps.add(w.exp);
+                }
+            }
+        }
+        Field fd = tb.fields.get(order[0]);
+        if(order.length == 1 && fd.isIndexed() && fd.isKeyExact()) {
+            FieldPath fp = null;
+            for(SingleExpression exp : exps) {
+                if(!fd.fieldName.equals(exp.field)) {
+                    continue;
+                }
+                List<FieldCalRes> ranges = fd.calRanges(exp);
+                if(ranges == null) {
+                    continue;
+                }
+                double selectivity = selectivity(fd, exp, ranges);
+                if(fp == null) {
+                    fp = new FieldPath(order[0], exp.compareOp, ranges, selectivity);
+                } else if(!"in".equals(exp.compareOp)) {
+                    fp.clip(exp.compareOp, ranges.isEmpty() ? emptyRange() : ranges.get(0), selectivity);
+                }
+            }
+            if(fp == null) {
+                FieldCalRes all = new FieldCalRes();
+                all.left = Long.MIN_VALUE;
+                all.right = Long.MAX_VALUE;
+                fp = new FieldPath(order[0], "", new ArrayList<>(Arrays.asList(all)), 1);
+                fp.exps = 0;
+            }
+            return fp;
+        }
+        for(Index index : tb.indexes) {
+            if(order.length > index.keys.length) {
+                continue;
+            }
+            boolean prefix = true;
+            for(int i = 0; i < order.length; i ++) {
+                if(index.keys[i] != order[i] || !tb.fields.get(order[i]).isKeyExact()) {
+                    prefix = false;
+                    break;
+                }
+            }
+            if(!prefix) {
+                continue;
+            }
+            IndexPath p = compositePath(index, exps);
+            if(p == null) {
+                p = new IndexPath();
+                p.index = index;
+                p.left = new long[index.width()];
+                p.right = new long[index.width()];
+                Arrays.fill(p.left, Long.MIN_VALUE);
+                Arrays.fill(p.right, Long.MAX_VALUE);
+                p.entries = p.rows = index.entries();
+            }
+            return p;
+        }
+        return null;
+    }
+
+    /**
+     * 在按顺序读取的方式 ordered 和不保证顺序的方式 best 之间选择
+     * best 的结果还需要排序；ordered 只需要读到满足 where 的行凑够 need 行为止（need 为 -1 时需要全部），
+     * 满足 where 的行数按 best 得到的候选行数估计
+     */
+    boolean preferOrdered(Path ordered, Path best, long need) {
+        double fraction = need < 0 ? 1 : Math.min(1, need / Math.max(1, best.rows));
+        return ordered.cost() * fraction <= best.cost() + best.rows * SORT_COST;
+    }
+
+    //取出的行是否一定满足 where，此时不需要在行数据上再判断：where 只由一个整数字段上被合并进 path 的条件用 and 连接而成
+    boolean exact(Path path, Where where) {
+        if(!(path instanceof FieldPath) || !((FieldPath)path).fd.isKeyExact()) {
+            return false;
+        }
+        List<Where> conjuncts = flatten(where, "and", new ArrayList<>());
+        for(Where w : conjuncts) {
+            if(!"".equals(w.logicOp)) {
+                return false;
+            }
+        }
+        return conjuncts.size() == ((FieldPath)path).exps;
+    }
+
+    //用索引取得满足 where 的候选行，不能使用索引时返回 null；not 不使用索引
+    private Path indexPath(Where where) throws Exception {
+        switch(where.logicOp) {
+            case "":
+                return andPath(Arrays.asList(where));
+            case "and":
+                return andPath(flatten(where, "and", new ArrayList<>()));
+            case "or":
+                List<Path> paths = new ArrayList<>();
+                for(Where w : flatten(where, "or", new ArrayList<>())) {
+                    Path p = indexPath(w);
+                    if(p == null) {
+                        return null;
+                    }
+                    paths.add(p);
+                }
+                return new OrPath(paths);
+            default:
+                return null;
+        }
+    }
+
+    //把连续的 logicOp 节点展开为子条件列表
+    private static List<Where> flatten(Where where, String logicOp, List<Where> res) {
+        if(logicOp.equals(where.logicOp)) {
+            flatten(where.left, logicOp, res);
+            flatten(where.right, logicOp, res);
+        } else {
+            res.add(where);
+        }
+        return res;
+    }
+
+    /**
+     * 为 and 连接的各子条件选择方式：同一索引字段上的单范围条件合并为一组范围，多列索引按前缀确定范围，
+     * 其余子条件各自选择方式。从代价最小的一种开始，依次尝试与其他方式取交集，代价更小时保留
+     */
+    private Path andPath(List<Where> conjuncts) throws Exception {
+        List<Path> paths = new ArrayList<>();
+        List<SingleExpression> exps = new ArrayList<>();
+        Map<Integer, FieldPath> byField = new HashMap<>();
+        for(Where w : conjuncts) {
+            if(!"".equals(w.logicOp)) {
+                Path p = indexPath(w);
+                if(p != null) {
+                    paths.add(p);
+                }
+                continue;
+            }
+            SingleExpression exp = w.exp;
+            exps.add(exp);
+            int ordinal = tb.ordinalOf(exp.field);
+            Field fd = tb.fields.get(ordinal);
+            if(!fd.isIndexed()) {
+                continue;
+            }
+            List<FieldCalRes> ranges = fd.calRanges(exp);
+            if(ranges == null) {
+                continue;
+            }
+            double selectivity = selectivity(fd, exp, ranges);
+            FieldPath fp = byField.get(ordinal);
+            if(fp == null) {
+                fp = new FieldPath(ordinal, exp.compareOp, ranges, selectivity);
+                byField.put(ordinal, fp);
+                paths.add(fp);
+            } else if(!"in".equals(exp.compareOp)) {
+                fp.clip(exp.compareOp, ranges.isEmpty() ? emptyRange() : ranges.get(0), selectivity);
+            } else {
+                paths.add(new FieldPath(ordinal, exp.compareOp, ranges, selectivity));
+            }
+        }
+        for(Index index : tb.indexes) {
+            Path p = compositePath(index, exps);
+            if(p != null) {
+                paths.add(p);
+            }
+        }
+        if(paths.isEmpty()) {
+            return null;
+        }
+        paths.sort(Comparator.comparingDouble(Path::cost));
+        Path best = paths.get(0);
+        for(int i = 1; i < paths.size(); i ++) {
+            if(best.columns.intersects(paths.get(i).columns)) {
+                continue;
+            }
+            Path and = new AndPath(best, paths.get(i));
+            if(and.cost() < best.cost()) {
+                best = and;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isPoint(String op) {
+        return "=".equals(op) || "in".equals(op);
+    }
+
+    private static FieldCalRes emptyRange() {
+        FieldCalRes r = new FieldCalRes();
+        r.left = 0;
+        r.right = -1;
+        return r;
+    }
+
+    private static double selectivity(Field fd, SingleExpression exp, List<FieldCalRes> ranges) throws Exception {
+        switch(exp.compareOp) {
+            case "=":
+                return 1.0 / Math.max(1, fd.distinct());
+            case "in":
+                return Math.min(1, (double)ranges.size() / Math.max(1, fd.distinct()));
+            case "between":
+                return RANGE_SELECTIVITY * RANGE_SELECTIVITY;
+            case "like":
+                //没有前缀时范围是整个键空间
+                boolean all = !ranges.isEmpty() && ranges.get(0).left == Long.MIN_VALUE && ranges.get(0).right == Long.MAX_VALUE;
+                return all ? 1 : LIKE_SELECTIVITY;
+            default:
+                return RANGE_SELECTIVITY;
+        }
+    }
+
+    /**
+     * 多列索引上的范围：从第一个键字段开始，条件把字段限定为单个键值时继续向后，
+     * 遇到范围条件或没有条件的字段时停止，之后的位置取整个范围。一个键字段都确定不了时返回 null
+     * 所有键字段都取单个值时行数为 条目数/不同 key 数，否则按确定的键字段比例折算
+     */
+    private IndexPath compositePath(Index index, List<SingleExpression> exps) throws Exception {
+        IndexPath p = new IndexPath();
+        p.index = index;
+        p.left = new long[index.width()];
+        p.right = new long[index.width()];
+        Arrays.fill(p.left, Long.MIN_VALUE);
+        Arrays.fill(p.right, Long.MAX_VALUE);
+        int i = 0;
+        boolean range = false;
+        while(i < index.keys.length) {
+            Field fd = tb.fields.get(index.keys[i]);
+            boolean found = false;
+            for(SingleExpression exp : exps) {
+                if(!fd.fieldName.equals(exp.field)) {
+                    continue;
+                }
+                FieldCalRes r = fd.calExp(exp);
+                if(r != null) {
+                    p.left[i] = Math.max(p.left[i], r.left);
+                    p.right[i] = Math.min(p.right[i], r.right);
+                    found = true;
+                }
+            }
+            if(!found) {
+                break;
+            }
+            i ++;
+            if(p.left[i-1] != p.right[i-1]) {
+                range = true;
+                break;
+            }
+        }
+        if(i == 0) {
+            return null;
+        }
+        for(int k = 0; k < i; k ++) {
+            p.columns.set(index.keys[k]);
+        }
+        double entries = index.entries();
+        int eq = range ? i - 1 : i;
+        double selectivity = Math.pow(1.0 / Math.max(1, index.distinct()), (double)eq / index.keys.length);
+        if(range) {
+            //范围在第一个键字段上时可以用该字段的直方图
+            FieldCalRes r = new FieldCalRes();
+            r.left = p.left[0];
+            r.right = p.right[0];
+            double f = eq == 0 ? tb.stats.fraction(index.keys[0], Arrays.asList(r)) : -1;
+            selectivity *= f >= 0 ? f : RANGE_SELECTIVITY;
+        }
+        for(int k = 0; k < i; k ++) {
+            if(p.left[k] > p.right[k]) {
+                selectivity = 0;
+            }
+        }
+        p.entries = p.rows = selectivity * entries;
+        return p;
+    }
+}
@@ -0,0 +1,167 @@
+package com.ye.mydb.backend.tbm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.ye.mydb.backend.common.SubArray;
+import com.ye.mydb.backend.utils.Parser;
+import com.ye.mydb.common.Error;
+
+/**
+ * RowCodec 是按表的字段生成的行编解码器
+ * 行在内存中表示为按字段序号排列的 Object[]，二进制结构为：
+ * [TableUid][Field1Value][Field2Value]...[FieldNValue]
+ * int32 为 4 字节，int64 为 8 字节，string 为 [Length][UTF-8 bytes]，Length 为字节数
+ *
+ * 第一个 string 字段之前（含该字段本身）各字段的偏移量在生成时就已确定，
+ * 读取单个字段时直接定位，之后的字段从最后一个确定的偏移量开始向后跳过
+ * 解码的输入是行数据所在的 SubArray，通常是 VersionManager.readView 返回的页面上的视图，不需要先拷贝出来
+ */
+class RowCodec {
+    private static final byte INT32 = 0;
+    private static final byte INT64 = 1;
+    private static final byte STRING = 2;
+
+    private byte[] prefix;
+    private byte[] types;
+    private int[] offsets;      //偏移量已确定的字段为其偏移量，否则为 -1
+    private int fixedSize;      //所有定长字段和 TableUid 的字节数
+
+    RowCodec(byte[] prefix, List<Field> fields) {
+        this.prefix = prefix;
+        this.types = new byte[fields.size()];
+        this.offsets = new int[fields.size()];
+        int offset = prefix.length;
+        fixedSize = prefix.length;
+        for (int i = 0; i < types.length; i++) {
+            types[i] = typeOf(fields.get(i).fieldType);
+            offsets[i] = offset;
+            switch(types[i]) {
+                case INT32:
+                    fixedSize += 4;
+                    if(offset >= 0) offset += 4;
+                    break;
+                case INT64:
+                    fixedSize += 8;
+                    if(offset >= 0) offset += 8;
+                    break;
+                default:
+                    fixedSize += 4;
+                    offset = -1;
+            }
+        }
+    }
+
+    private static byte typeOf(String fieldType) {
+        switch(fieldType) {
+            case "int32":
+                return INT32;
+            case "int64":
+                return INT64;
+            default:
+                return STRING;
+        }
+    }
+
+    Object[] decode(SubArray raw) {
+        Object[] row = new Object[types.length];
+        int pos = raw.start + prefix.length;
+        for (int i = 0; i < types.length; i++) {
+            row[i] = read(raw.raw, pos, types[i]);
+            pos = skip(raw.raw, pos, types[i]);
+        }
+        return row;
+    }
+
+    //只解码 ordinals 中的字段，结果按 ordinals 的顺序排列，不需要的字符串字段只按长度跳过
+    Object[] decode(SubArray raw, int[] ordinals) {
+        Object[] row = new Object[ordinals.length];
+        int last = 0;
+        for (int ordinal : ordinals) {
+            last = Math.max(last, ordinal);
+        }
+        int pos = raw.start + prefix.length;
+        for (int f = 0; f <= last; f++) {
+            for (int i = 0; i < ordinals.length; i++) {
+                if(ordinals[i] == f) {
+                    row[i] = read(raw.raw, pos, types[f]);
+                }
+            }
+            pos = skip(raw.raw, pos, types[f]);
+        }
+        return row;
+    }
+
+    //只读取第 ordinal 个字段，不解码其余字段
+    Object decodeField(SubArray raw, int ordinal) {
+        int pos = offsets[ordinal];
+        if(pos < 0) {
+            int i = ordinal;
+            while(offsets[i] < 0) i --;
+            pos = raw.start + offsets[i];
+            for (; i < ordinal; i++) {
+                pos = skip(raw.raw, pos, types[i]);
+            }
+        } else {
+            pos += raw.start;
+        }
+        return read(raw.raw, pos, types[ordinal]);
+    }
+
+    byte[] encode(Object[] row) throws Exception {
+        if(row.length != types.length) {
+            throw Error.InvalidValuesException;
+        }
+        int size = fixedSize;
+        byte[][] strs = null;
+        for (int i = 0; i < types.length; i++) {
+            if(types[i] == STRING) {
+                if(strs == null) strs = new byte[types.length][];
+                strs[i] = ((String)row[i]).getBytes(StandardCharsets.UTF_8);
+                size += strs[i].length;
+            }
+        }
+        byte[] raw = new byte[size];
+        System.arraycopy(prefix, 0, raw, 0, prefix.length);
+        int pos = prefix.length;
+        for (int i = 0; i < types.length; i++) {
+            switch(types[i]) {
+                case INT32:
+                    Parser.putInt(raw, pos, (int)row[i]);
+                    pos += 4;
+                    break;
+                case INT64:
+                    Parser.putLong(raw, pos, (long)row[i]);
+                    pos += 8;
+                    break;
+                default:
+                    Parser.putInt(raw, pos, strs[i].length);
+                    System.arraycopy(strs[i], 0, raw, pos + 4, strs[i].length);
+                    pos += 4 + strs[i].length;
+            }
+        }
+        return raw;
+    }
+
+    private static Object read(byte[] raw, int pos, byte type) {
+        switch(type) {
+            case INT32:
+                return Parser.getInt(raw, pos);
+            case INT64:
+                return Parser.getLong(raw, pos);
+            default:
+                return new String(raw, pos + 4, Parser.getInt(raw, pos), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int skip(byte[] raw, int pos, byte type) {
+        switch(type) {
+            case INT32:
+                return pos + 4;
+            case INT64:
+                return pos + 8;
+            default:
+                return pos + 4 + Parser.getInt(raw, pos);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.ye.mydb.backend.tbm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.ye.mydb.backend.common.UidIterator;
+import com.ye.mydb.backend.tm.TransactionManagerImpl;
+import com.ye.mydb.backend.utils.Parser;
+import com.ye.mydb.backend.vm.VersionManager;
+
+/**
+ * RowCounter 精确维护表中已提交的行数，用于回答没有条件的 count(*)
+ * 各事务插入和删除的行数先记在 pending 中，提交时计入 committed，回滚时丢弃
+ * committed 在第一次使用时扫描一遍表得出。修改过这张表的事务提交时持有 commitLock 的读锁，扫描期间持有写锁，
+ * 不会有修改过这张表的事务在扫描中途提交；在此之前提交的事务的修改已经体现在扫描结果中，不再计入。只修改其他表的事务不受影响
+ * 读提交的事务看到的行数是 committed 加上自己未提交的修改，可重复读的事务不能使用
+ */
+class RowCounter {
+    private Table tb;
+    private long committed = -1;        //还没有扫描时为 -1
+    private Map<Long, Long> pending = new HashMap<>();
+    ReadWriteLock commitLock = new ReentrantReadWriteLock();
+
+    RowCounter(Table tb) {
+        this.tb = tb;
+    }
+
+    synchronized void add(long xid, long delta) {
+        pending.merge(xid, delta, Long::sum);
+    }
+
+    //事务是否修改过这张表
+    synchronized boolean touched(long xid) {
+        return pending.containsKey(xid);
+    }
+
+    synchronized void commit(long xid) {
+        Long delta = pending.remove(xid);
+        if(delta != null && committed >= 0) {
+            committed += delta;
+        }
+    }
+
+    synchronized void abort(long xid) {
+        pending.remove(xid);
+    }
+
+    //读提交的事务 xid 可见的行数
+    long count(long xid) throws Exception {
+        synchronized(this) {
+            if(committed >= 0) {
+                return committed + pending.getOrDefault(xid, 0L);
+            }
+        }
+        Lock lock = commitLock.writeLock();
+        lock.lock();
+        try {
+            boolean counted;
+            synchronized(this) {
+                counted = committed >= 0;
+            }
+            if(!counted) {
+                long n = scan();
+                synchronized(this) {
+                    committed = n;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        synchronized(this) {
+            return committed + pending.getOrDefault(xid, 0L);
+        }
+    }
+
+    //以超级事务读取，只有已提交且没有被已提交的事务删除的行可见
+    private long scan() throws Exception {
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        UidIterator it = vm.scan(tb.uid, Parser.long2Byte(tb.uid));
+        long count = 0;
+        long uid;
+        while((uid = it.next()) != 0) {
+            if(vm.isVisible(TransactionManagerImpl.SUPER_XID, uid)) {
+                count ++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,155 @@
+package com.ye.mydb.backend.tbm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * SortCursor 按 comparator 对另一个游标的结果排序，在第一次 next 时读完底层游标
+ * 只需要前 need 行且 need 不大时，用大小为 need 的堆只保留最小的 need 行；
+ * 否则在内存中缓存行，估算的大小超过 MEMORY_BUDGET 时把缓存的行排序后写入一个临时文件，
+ * 最后对内存中剩余的行和各临时文件做多路归并，边归并边返回
+ * 底层游标的每行可能在末尾附加了排序用的列，返回时只保留前 width 列
+ */
+class SortCursor implements Cursor {
+    static final long MEMORY_BUDGET = 16 << 20;
+    static final int MAX_TOP_N = 100000;
+
+    private Cursor cursor;
+    private Comparator<Object[]> comparator;
+    private long need;          //只需要前 need 行，为 -1 时需要全部
+    private int width;
+
+    private boolean sorted;
+    private List<Run> runs = new ArrayList<>();
+    private PriorityQueue<Run> merging;
+
+    SortCursor(Cursor cursor, Comparator<Object[]> comparator, long need, int width) {
+        this.cursor = cursor;
+        this.comparator = comparator;
+        this.need = need;
+        this.width = width;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return Arrays.copyOf(cursor.getColumnNames(), width);
+    }
+
+    @Override
+    public Object[] next() throws Exception {
+        if(!sorted) {
+            sorted = true;
+            if(need >= 0 && need <= MAX_TOP_N) {
+                topN();
+            } else {
+                sortAll();
+            }
+            merging = new PriorityQueue<>((a, b) -> comparator.compare(a.head, b.head));
+            for(Run run : runs) {
+                if(run.advance()) {
+                    merging.add(run);
+                }
+            }
+        }
+        Run run = merging.poll();
+        if(run == null) {
+            close();
+            return null;
+        }
+        Object[] row = run.head;
+        if(run.advance()) {
+            merging.add(run);
+        }
+        return row.length == width ? row : Arrays.copyOf(row, width);
+    }
+
+    //堆顶是目前保留的行中最大的一行，新行比它小时替换
+    private void topN() throws Exception {
+        PriorityQueue<Object[]> heap = new PriorityQueue<>(comparator.reversed());
+        Object[] row;
+        while(need > 0 && (row = cursor.next()) != null) {
+            if(heap.size() < need) {
+                heap.add(row);
+            } else if(comparator.compare(row, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(row);
+            }
+        }
+        List<Object[]> rows = new ArrayList<>(heap);
+        rows.sort(comparator);
+        runs.add(new Run(rows));
+    }
+
+    private void sortAll() throws Exception {
+        List<Object[]> rows = new ArrayList<>();
+        long size = 0;
+        Object[] row;
+        while((row = cursor.next()) != null) {
+            rows.add(row);
+            size += SpillFile.estimateSize(row);
+            if(size > MEMORY_BUDGET) {
+                rows.sort(comparator);
+                runs.add(spill(rows));
+                rows = new ArrayList<>();
+                size = 0;
+            }
+        }
+        rows.sort(comparator);
+        runs.add(new Run(rows));
+    }
+
+    //把排好序的行写入临时文件
+    private Run spill(List<Object[]> rows) throws IOException {
+        SpillFile file = new SpillFile("mydb-sort");
+        for(Object[] r : rows) {
+            file.write(r);
+        }
+        return new Run(file);
+    }
+
+    @Override
+    public void close() {
+        for(Run run : runs) {
+            run.close();
+        }
+        runs = Collections.emptyList();
+        merging = new PriorityQueue<>();
+        cursor.close();
+    }
+
+    //一段排好序的行，在内存中或在临时文件中，head 为当前的第一行
+    static class Run {
+        Object[] head;
+        private List<Object[]> rows;
+        private int pos;
+        private SpillFile file;
+
+        Run(List<Object[]> rows) {
+            this.rows = rows;
+        }
+
+        Run(SpillFile file) {
+            this.file = file;
+        }
+
+        boolean advance() throws IOException {
+            if(rows != null) {
+                head = pos < rows.size() ? rows.get(pos ++) : null;
+            } else {
+                head = file.read();
+            }
+            return head != null;
+        }
+
+        void close() {
+            if(file != null) {
+                file.delete();
+            }
+        }
+    }
+}
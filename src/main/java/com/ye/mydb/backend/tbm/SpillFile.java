@@ -0,0 +1,118 @@
+package com.ye.mydb.backend.tbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SpillFile 是查询中间结果写出的临时文件，先依次写入所有行，之后从头依次读出，读完或 delete 后删除文件
+ * 每行为 [列数][类型][值]...，类型 0 为 Integer，1 为 Long，2 为 String（长度加 UTF-8 字节）
+ */
+class SpillFile {
+    private File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private long count;
+    private long remaining;
+
+    SpillFile(String prefix) throws IOException {
+        file = File.createTempFile(prefix, ".tmp");
+        file.deleteOnExit();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    void write(Object[] row) throws IOException {
+        out.writeInt(row.length);
+        for(Object v : row) {
+            if(v instanceof Integer) {
+                out.writeByte(0);
+                out.writeInt((Integer)v);
+            } else if(v instanceof Long) {
+                out.writeByte(1);
+                out.writeLong((Long)v);
+            } else {
+                byte[] b = ((String)v).getBytes(StandardCharsets.UTF_8);
+                out.writeByte(2);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        }
+        count ++;
+    }
+
+    long count() {
+        return count;
+    }
+
+    //读出下一行，第一次调用时结束写入，读完时删除文件并返回 null
+    Object[] read() throws IOException {
+        if(out != null) {
+            out.close();
+            out = null;
+            remaining = count;
+        }
+        if(remaining == 0) {
+            delete();
+            return null;
+        }
+        if(in == null) {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+        Object[] row = new Object[in.readInt()];
+        for(int i = 0; i < row.length; i ++) {
+            switch(in.readByte()) {
+                case 0:
+                    row[i] = in.readInt();
+                    break;
+                case 1:
+                    row[i] = in.readLong();
+                    break;
+                default:
+                    byte[] b = new byte[in.readInt()];
+                    in.readFully(b);
+                    row[i] = new String(b, StandardCharsets.UTF_8);
+            }
+        }
+        remaining --;
+        return row;
+    }
+
+    void delete() {
+        if(file == null) {
+            return;
+        }
+        try {
+            if(out != null) {
+                out.close();
+            }
+            if(in != null) {
+                in.close();
+            }
+        } catch(IOException e) {
+            //临时文件，关闭失败时直接删除
+        }
+        file.delete();
+        file = null;
+        out = null;
+        remaining = 0;
+    }
+
+    //一行在内存中大致占用的字节数，用于判断是否超出内存预算
+    static long estimateSize(Object[] row) {
+        long size = 16 + 8L * row.length;
+        for(Object v : row) {
+            if(v instanceof String) {
+                size += 40 + 2L * ((String)v).length();
+            } else {
+                size += 24;
+            }
+        }
+        return size;
+    }
+}
@@ -1,17 +1,24 @@
 package com.ye.mydb.backend.tbm;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 
 import com.google.common.primitives.Bytes;
+import com.ye.mydb.backend.common.SubArray;
+import com.ye.mydb.backend.common.UidIterator;
+import com.ye.mydb.backend.dm.HeapScanner;
+import com.ye.mydb.backend.im.BPlusTree;
+import com.ye.mydb.backend.im.RangeCursor;
 import com.ye.mydb.backend.parser.statement.*;
 import com.ye.mydb.backend.tm.TransactionManagerImpl;
 import com.ye.mydb.backend.utils.Panic;
 import com.ye.mydb.backend.utils.ParseStringRes;
 import com.ye.mydb.backend.utils.Parser;
+import com.ye.mydb.backend.vm.VersionManager;
 import com.ye.mydb.common.Error;
 
 
@@ -20,6 +27,12 @@ import com.ye.mydb.common.Error;
  * 二进制结构如下：
  * [TableName][NextTable]
  * [Field1Uid][Field2Uid]...[FieldNUid]
+ * [0][Index1Uid]...[IndexMUid]
+ * 没有多列索引时不写入后一部分，UID 0 不会指向任何数据，用作字段和多列索引的分隔
+ *
+ * 表中每一行的二进制结构如下：
+ * [TableUid][Field1Value][Field2Value]...[FieldNValue]
+ * 行首的 TableUid 用于全表扫描时，从所有数据中识别出属于该表的行
  */
 public class Table {
     TableManager tbm;
@@ -28,6 +41,10 @@ public class Table {
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    List<Index> indexes = new ArrayList<>();
+    RowCodec codec;
+    TableStats stats = new TableStats(this);
+    RowCounter counter = new RowCounter(this);
 
     public static Table loadTable(TableManager tbm, long uid) {
         byte[] raw = null;
@@ -53,10 +70,22 @@ public class Table {
                     break;
                 }
             }
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            boolean unique = false;
+            for(int j = 0; j < create.unique.length; j ++) {
+                if(fieldName.equals(create.unique[j])) {
+                    unique = true;
+                    break;
+                }
+            }
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed, unique));
+        }
+        for(int i = 0; i < create.compositeIndex.length; i ++) {
+            tb.indexes.add(Index.createIndex(tb, xid, tb.ordinalsOf(create.compositeIndex[i]), tb.ordinalsOf(create.include[i]), create.compositeUnique[i]));
         }
 
-        return tb.persistSelf(xid);
+        tb.persistSelf(xid);
+        tb.codec = new RowCodec(Parser.long2Byte(tb.uid), tb.fields);
+        return tb;
     }
 
     public Table(TableManager tbm, long uid) {
@@ -75,14 +104,22 @@ public class Table {
         ParseStringRes res = Parser.parseString(raw);
         name = res.str;
         position += res.next;
-        nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        nextUid = Parser.getLong(raw, position);
         position += 8;
 
+        boolean isIndex = false;
         while(position < raw.length) {
-            long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+            long uid = Parser.getLong(raw, position);
             position += 8;
-            fields.add(Field.loadField(this, uid));
+            if(uid == 0) {
+                isIndex = true;
+            } else if(isIndex) {
+                indexes.add(Index.loadIndex(this, uid));
+            } else {
+                fields.add(Field.loadField(this, uid));
+            }
         }
+        codec = new RowCodec(Parser.long2Byte(uid), fields);
         return this;
     }
 
@@ -93,199 +130,807 @@ public class Table {
         for(Field field : fields) {
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
+        if(!indexes.isEmpty()) {
+            fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(0));
+            for(Index index : indexes) {
+                fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(index.uid));
+            }
+        }
         uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
         return this;
     }
 
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        WhereRes where = parseWhere(xid, delete.where);
         int count = 0;
-        for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
-                count ++;
+        try {
+            while(true) {
+                long uid = where.uids.next();
+                if(uid == 0) break;
+                //有需要维护的统计信息时需要被删除行的值来更新
+                SubArray raw = null;
+                if(where.filter != null || stats.tracking()) {
+                    raw = ((TableManagerImpl)tbm).vm.readView(xid, uid);
+                    if(raw == null || (where.filter != null && !where.filter.match(raw))) continue;
+                }
+                if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+                    count ++;
+                    counter.add(xid, -1);
+                    if(raw != null) {
+                        stats.delete(codec.decode(raw));
+                    }
+                }
             }
+        } finally {
+            where.uids.close();
         }
         return count;
     }
 
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
-        Field fd = null;
-        for (Field f : fields) {
-            if(f.fieldName.equals(update.fieldName)) {
-                fd = f;
-                break;
+        WhereRes where = parseWhere(xid, update.where);
+        int ordinal = ordinalOf(update.fieldName);
+        Object value = fields.get(ordinal).string2Value(update.value);
+        //更新会插入新版本的行，先取出所有候选 UID，避免扫描时再次遇到自己插入的行
+        List<Long> uids = new ArrayList<>();
+        try {
+            while(true) {
+                long uid = where.uids.next();
+                if(uid == 0) break;
+                uids.add(uid);
             }
+        } finally {
+            where.uids.close();
         }
-        if(fd == null) {
-            throw Error.FieldNotFoundException;
-        }
-        Object value = fd.string2Value(update.value);
         int count = 0;
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
-
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-            
-            count ++;
-
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+        //语句插入和删除的行，以及统计信息中已经计入的修改，唯一索引冲突时用于撤销
+        List<Long> inserted = new ArrayList<>(), deleted = new ArrayList<>();
+        List<Object[]> oldRows = new ArrayList<>(), newRows = new ArrayList<>();
+        try {
+            for (Long uid : uids) {
+                SubArray raw = ((TableManagerImpl)tbm).vm.readView(xid, uid);
+                if(raw == null) continue;
+
+                if(where.filter != null && !where.filter.match(raw)) continue;
+                Object[] old = codec.decode(raw);
+
+                if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+                    counter.add(xid, -1);
+                    deleted.add(uid);
+                }
+                stats.delete(old);
+                oldRows.add(old);
+
+                Object[] row = old.clone();
+                row[ordinal] = value;
+                long uuid = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, codec.encode(row));
+                counter.add(xid, 1);
+                inserted.add(uuid);
+
+                count ++;
+
+                for (int i = 0; i < fields.size(); i++) {
+                    Field fd = fields.get(i);
+                    if(fd.isUnique()) {
+                        fd.insertUnique(row[i], uuid, uniqueCheck(xid, new int[]{i}, row));
+                    } else if(fd.isIndexed()) {
+                        fd.insert(row[i], uuid);
+                    }
+                }
+                for(Index index : indexes) {
+                    if(index.isUnique()) {
+                        index.insertUnique(row, uuid, uniqueCheck(xid, index.keys, row));
+                    } else {
+                        index.insert(row, uuid);
+                    }
                 }
+                stats.insert(row);
+                newRows.add(row);
             }
+        } catch(Exception e) {
+            if(e != Error.DuplicateKeyException) {
+                throw e;
+            }
+            for(Object[] row : newRows) {
+                stats.delete(row);
+            }
+            for(Object[] row : oldRows) {
+                stats.insert(row);
+            }
+            throw rejected(xid, e, inserted, deleted);
         }
         return count;
     }
 
-    public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
-        StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+    /**
+     * 唯一索引插入时的检查：已有条目指向的版本仍占用该键，并且各键字段的值确实与 row 相同
+     * 字符串的索引键只有前缀，键相同不代表值相同
+     */
+    private BPlusTree.UniqueCheck uniqueCheck(long xid, int[] ordinals, Object[] row) {
+        return existing -> {
+            SubArray raw = ((TableManagerImpl)tbm).vm.readLive(xid, existing);
+            if(raw == null) {
+                return false;
+            }
+            for(int ordinal : ordinals) {
+                if(!codec.decodeField(raw, ordinal).equals(row[ordinal])) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    /**
+     * 唯一索引冲突时只拒绝这条语句，事务可以继续执行：删除语句插入的行，恢复语句删除的行
+     * 已经写入索引的条目留在树中，指向的行已被本事务删除，对查询和之后的唯一检查都不再可见（见 Visibility.isLive）
+     * 撤销本身失败时无法恢复到语句之前，将事务标记为出错，之后只能回滚
+     */
+    private Exception rejected(long xid, Exception e, List<Long> inserted, List<Long> deleted) {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        try {
+            for(long uid : inserted) {
+                if(vm.delete(xid, uid)) {
+                    counter.add(xid, -1);
+                }
+            }
+            for(long uid : deleted) {
+                if(vm.undelete(xid, uid)) {
+                    counter.add(xid, 1);
+                }
+            }
+        } catch(Exception ue) {
+            vm.setError(xid, e);
         }
-        return sb.toString();
+        return e;
     }
 
-    public void insert(long xid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-        for (Field field : fields) {
-            if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+    /**
+     * 有 order by 时，如果按索引的顺序读取更便宜就直接按索引顺序返回，否则读出结果后由 SortCursor 排序，
+     * 排序字段不在结果列中时先附加在每行末尾，排序后去掉
+     */
+    public Cursor read(long xid, Select read) throws Exception {
+        if(read.aggregates != null || read.groupBy != null) {
+            return aggregate(xid, read);
+        }
+        int[] ordinals = project(read.fields);
+        int[] order = read.orderBy == null ? null : ordinalsOf(read.orderBy);
+        long need = read.limit < 0 ? -1 : (long)read.offset + read.limit;
+        WhereRes where = parseWhere(xid, read.where, order, read.desc, need);
+        Cursor cursor;
+        if(order == null || where.ordered) {
+            //没有 order by 只取前几行时串行读取，避免并行扫描多读
+            cursor = order == null && need >= 0 ? new ReadCursor(xid, where, ordinals, covered(where, ordinals)) : rows(xid, where, ordinals);
+        } else {
+            int[] fetch = ordinals;
+            if(fetch == null) {
+                fetch = new int[fields.size()];
+                for (int i = 0; i < fetch.length; i++) {
+                    fetch[i] = i;
+                }
             }
+            int width = fetch.length;
+            int[] positions = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                positions[i] = indexOf(fetch, order[i]);
+                if(positions[i] < 0) {
+                    fetch = Arrays.copyOf(fetch, fetch.length + 1);
+                    fetch[fetch.length - 1] = order[i];
+                    positions[i] = fetch.length - 1;
+                }
+            }
+            cursor = new SortCursor(rows(xid, where, fetch), comparator(order, positions, read.desc), need, width);
+        }
+        if(read.limit >= 0 || read.offset > 0) {
+            cursor = new LimitCursor(cursor, read.offset, read.limit);
         }
+        return cursor;
     }
 
-    private Map<String, Object> string2Entry(String[] values) throws Exception {
-        if(values.length != fields.size()) {
-            throw Error.InvalidValuesException;
+    /**
+     * 聚合查询，结果列只能是分组字段和聚合函数
+     * 没有 where 和 group by 时，count 由 RowCounter 得出，整数字段的 min、max 从以它开头的索引的两端取出，
+     * 各项都能这样得出时不读取行；否则读出分组字段和参数字段交给 AggregateCursor，之后再排序和截取
+     */
+    private Cursor aggregate(long xid, Select read) throws Exception {
+        int[] group = read.groupBy == null ? new int[0] : ordinalsOf(read.groupBy);
+        int n = read.fields.length;
+        String[] functions = read.aggregates == null ? new String[n] : read.aggregates;
+        String[] columns = new String[n];
+        AggregateCursor.Item[] items = new AggregateCursor.Item[n];
+        int[] fetch = group;
+        for (int i = 0; i < n; i++) {
+            String function = functions[i];
+            String name = read.fields[i];
+            if(function == null) {
+                int pos = "*".equals(name) ? -1 : indexOf(group, ordinalOf(name));
+                if(pos < 0) {
+                    throw Error.InvalidAggregateException;
+                }
+                columns[i] = name;
+                items[i] = new AggregateCursor.Item(null, pos, fields.get(group[pos]));
+                continue;
+            }
+            columns[i] = function + "(" + name + ")";
+            if("*".equals(name)) {
+                items[i] = new AggregateCursor.Item(function, -1, null);
+                continue;
+            }
+            int ordinal = ordinalOf(name);
+            Field fd = fields.get(ordinal);
+            if(("sum".equals(function) || "avg".equals(function)) && !fd.isKeyExact()) {
+                throw Error.InvalidAggregateException;
+            }
+            int pos = indexOf(fetch, ordinal);
+            if(pos < 0) {
+                fetch = Arrays.copyOf(fetch, fetch.length + 1);
+                fetch[fetch.length - 1] = ordinal;
+                pos = fetch.length - 1;
+            }
+            items[i] = new AggregateCursor.Item(function, pos, fd);
         }
-        Map<String, Object> entry = new HashMap<>();
-        for (int i = 0; i < fields.size(); i++) {
-            Field f = fields.get(i);
-            Object v = f.string2Value(values[i]);
-            entry.put(f.fieldName, v);
+
+        Cursor cursor = null;
+        if(read.where == null && group.length == 0) {
+            Object[] row = quickAggregate(xid, items, fetch);
+            if(row != null) {
+                cursor = new RowCursor(columns, row);
+            }
+        }
+        if(cursor == null) {
+            boolean primitive = group.length == 1 && fields.get(group[0]).isKeyExact();
+            cursor = new AggregateCursor(segments(xid, parseWhere(xid, read.where), fetch), columns, group.length, items, primitive);
+        }
+        if(read.orderBy != null) {
+            int[] positions = new int[read.orderBy.length];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = Arrays.asList(columns).indexOf(read.orderBy[i]);
+                if(positions[i] < 0) {
+                    throw Error.InvalidAggregateException;
+                }
+            }
+            long need = read.limit < 0 ? -1 : (long)read.offset + read.limit;
+            cursor = new SortCursor(cursor, aggregateComparator(items, positions, read.desc), need, n);
+        }
+        if(read.limit >= 0 || read.offset > 0) {
+            cursor = new LimitCursor(cursor, read.offset, read.limit);
         }
-        return entry;
+        return cursor;
     }
 
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0=0, r0=0, l1=0, r1=0;
-        boolean single = false;
-        Field fd = null;
-        if(where == null) {
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    fd = field;
+    //不读取行就能得出的聚合结果，有一项不能这样得出时返回 null
+    private Object[] quickAggregate(long xid, AggregateCursor.Item[] items, int[] fetch) throws Exception {
+        for(AggregateCursor.Item item : items) {
+            switch(item.function) {
+                case "count":
+                    if(((TableManagerImpl)tbm).vm.isRepeatableRead(xid)) return null;
                     break;
-                }
+                case "min":
+                case "max":
+                    if(!item.fd.isKeyExact() || leadingIndex(fetch[item.position]) == null) return null;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        Object[] row = new Object[items.length];
+        for (int i = 0; i < items.length; i++) {
+            AggregateCursor.Item item = items[i];
+            if("count".equals(item.function)) {
+                row[i] = counter.count(xid);
+            } else {
+                row[i] = extreme(xid, fetch[item.position], "max".equals(item.function));
             }
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
+        }
+        return row;
+    }
+
+    //以 ordinal 字段为第一个键字段的索引：字段自己有索引时为该字段，否则为多列索引，都没有时返回 null
+    Object leadingIndex(int ordinal) {
+        Field fd = fields.get(ordinal);
+        if(fd.isIndexed()) {
+            return fd;
+        }
+        for(Index index : indexes) {
+            if(index.keys[0] == ordinal) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 整数字段 ordinal 对 xid 可见的最小或最大值，没有可见的行时为 AggregateCursor.NULL
+     * 最小值从索引的第一个叶子向右找第一个可见的条目；最大值只检查最后的叶子，
+     * 其中的条目都不可见时（例如刚被删除）才从头遍历整个索引
+     */
+    private Object extreme(long xid, int ordinal, boolean max) throws Exception {
+        Field fd = fields.get(ordinal);
+        Object source = leadingIndex(ordinal);
+        RangeCursor cursor;
+        if(source instanceof Field) {
+            cursor = max ? fd.tail() : fd.head();
         } else {
-            for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
-                    }
-                    fd = field;
-                    break;
+            cursor = max ? ((Index)source).tail() : ((Index)source).head();
+        }
+        cursor.withKeys();
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        long uid;
+        if(!max) {
+            while((uid = cursor.next()) != 0) {
+                if(vm.isVisible(xid, uid)) {
+                    return fd.uid2Value(cursor.key(0));
                 }
             }
-            if(fd == null) {
-                throw Error.FieldNotFoundException;
-            }
-            CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0; r0 = res.r0;
-            l1 = res.l1; r1 = res.r1;
-            single = res.single;
-        }
-        List<Long> uids = fd.search(l0, r0);
-        if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
-        }
-        return uids;
-    }
-
-    class CalWhereRes {
-        long l0, r0, l1, r1;
-        boolean single;
-    }
-
-    private CalWhereRes calWhere(Field fd, Where where) throws Exception {
-        CalWhereRes res = new CalWhereRes();
-        switch(where.logicOp) {
-            case "":
-                res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                break;
-            case "or":
-                res.single = false;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                break;
-            case "and":
-                res.single = true;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                if(res.l1 > res.l0) res.l0 = res.l1;
-                if(res.r1 < res.r0) res.r0 = res.r1;
-                break;
-            default:
-                throw Error.InvalidLogOpException;
+            return AggregateCursor.NULL;
+        }
+        List<long[]> tail = new ArrayList<>();
+        while((uid = cursor.next()) != 0) {
+            tail.add(new long[]{uid, cursor.key(0)});
+        }
+        for (int i = tail.size() - 1; i >= 0; i--) {
+            if(vm.isVisible(xid, tail.get(i)[0])) {
+                return fd.uid2Value(tail.get(i)[1]);
+            }
+        }
+        if(tail.isEmpty()) {
+            return AggregateCursor.NULL;
+        }
+        cursor = source instanceof Field ? fd.head() : ((Index)source).head();
+        cursor.withKeys();
+        Object res = AggregateCursor.NULL;
+        while((uid = cursor.next()) != 0) {
+            if(vm.isVisible(xid, uid)) {
+                res = fd.uid2Value(cursor.key(0));
+            }
         }
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
-                sb.append("]");
+    //聚合结果的比较，分组字段和 min、max 按字段类型比较，count、sum 按整数，avg 按十进制数
+    private static Comparator<Object[]> aggregateComparator(AggregateCursor.Item[] items, int[] positions, boolean[] desc) {
+        return (a, b) -> {
+            for (int i = 0; i < positions.length; i++) {
+                int p = positions[i];
+                AggregateCursor.Item item = items[p];
+                int cmp;
+                if(item.function == null || "min".equals(item.function) || "max".equals(item.function)) {
+                    cmp = item.fd.compare(a[p], b[p]);
+                } else if("avg".equals(item.function)) {
+                    cmp = new BigDecimal((String)a[p]).compareTo(new BigDecimal((String)b[p]));
+                } else {
+                    cmp = Long.compare((Long)a[p], (Long)b[p]);
+                }
+                if(cmp != 0) {
+                    return desc[i] ? -cmp : cmp;
+                }
+            }
+            return 0;
+        };
+    }
+
+    //只有一行、已经算好的结果
+    static class RowCursor implements Cursor {
+        private String[] columns;
+        private Object[] row;
+
+        RowCursor(String[] columns, Object[] row) {
+            this.columns = columns;
+            this.row = row;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return columns;
+        }
+
+        @Override
+        public Object[] next() {
+            Object[] res = row;
+            row = null;
+            return res;
+        }
+    }
+
+    //按 where 读出各行中 ordinals 的字段，用于聚合和连接的一侧
+    Cursor select(long xid, Where where, int[] ordinals) throws Exception {
+        return rows(xid, parseWhere(xid, where), ordinals);
+    }
+
+    //读出 where 选中的行，分成多段时由 ParallelScan 并行读取，按段的顺序返回
+    private Cursor rows(long xid, WhereRes where, int[] ordinals) {
+        List<Cursor> segments = segments(xid, where, ordinals);
+        return segments.size() == 1 ? segments.get(0) : ParallelScan.rows(segments);
+    }
+
+    /**
+     * Planner 选择了顺序扫描且数据库文件足够大时，按页号把扫描分成每段 SEGMENT_PAGES 页，每段一个 ReadCursor；
+     * 否则只有一个 ReadCursor。通过索引读取的行已经是选择过的，不分段
+     */
+    private List<Cursor> segments(long xid, WhereRes where, int[] ordinals) {
+        List<Cursor> res = new ArrayList<>();
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        int pages = vm.getPageNumber();
+        if(!where.scan || pages < ParallelScan.MIN_PAGES) {
+            res.add(new ReadCursor(xid, where, ordinals, covered(where, ordinals)));
+            return res;
+        }
+        byte[] prefix = Parser.long2Byte(uid);
+        for(int from = HeapScanner.FIRST_PAGE; from <= pages; from += ParallelScan.SEGMENT_PAGES) {
+            WhereRes segment = new WhereRes();
+            segment.uids = vm.scan(uid, prefix, from, Math.min(pages, from + ParallelScan.SEGMENT_PAGES - 1));
+            segment.filter = where.filter;
+            res.add(new ReadCursor(xid, segment, ordinals, false));
+        }
+        return res;
+    }
+
+    /**
+     * 连接时按 ordinal 字段的值取出行：从以该字段开头的索引中找到候选行，
+     * 字符串的键只有前缀，还需要在行数据上比较值；之后判断 where，返回 ordinals 中的字段
+     */
+    class Lookup {
+        private long xid;
+        private int ordinal;
+        private Object source;
+        private RowFilter filter;
+        private int[] ordinals;
+
+        Lookup(long xid, int ordinal, Where where, int[] ordinals) throws Exception {
+            this.xid = xid;
+            this.ordinal = ordinal;
+            this.source = leadingIndex(ordinal);
+            this.filter = where == null ? null : new RowFilter(where);
+            this.ordinals = ordinals;
+        }
+
+        //value 为整数字段时可以是 Integer 或 Long
+        List<Object[]> find(Object value) throws Exception {
+            Field fd = fields.get(ordinal);
+            long key = fd.isKeyExact() ? ((Number)value).longValue() : fd.value2Uid(value);
+            UidIterator uids;
+            if(source instanceof Field) {
+                uids = fd.search(key, key);
             } else {
-                sb.append(", ");
+                Index index = (Index)source;
+                long[] left = new long[index.width()];
+                long[] right = new long[index.width()];
+                Arrays.fill(left, Long.MIN_VALUE);
+                Arrays.fill(right, Long.MAX_VALUE);
+                left[0] = right[0] = key;
+                uids = index.search(left, right);
+            }
+            List<Object[]> rows = new ArrayList<>();
+            long uid;
+            while((uid = uids.next()) != 0) {
+                SubArray raw = ((TableManagerImpl)tbm).vm.readView(xid, uid);
+                if(raw == null) continue;
+                if(!fd.isKeyExact() && !codec.decodeField(raw, ordinal).equals(value)) continue;
+                if(filter != null && !filter.match(raw)) continue;
+                rows.add(codec.decode(raw, ordinals));
             }
+            return rows;
         }
-        return sb.toString();
     }
 
-    private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
-        Map<String, Object> entry = new HashMap<>();
-        for (Field field : fields) {
-            Field.ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            entry.put(field.fieldName, r.v);
-            pos += r.shift;
+    private static int indexOf(int[] ordinals, int ordinal) {
+        for (int i = 0; i < ordinals.length; i++) {
+            if(ordinals[i] == ordinal) return i;
+        }
+        return -1;
+    }
+
+    //按 order 中的字段依次比较，第 i 个字段的值在行中的位置为 positions[i]
+    private Comparator<Object[]> comparator(int[] order, int[] positions, boolean[] desc) {
+        return (a, b) -> {
+            for (int i = 0; i < order.length; i++) {
+                int cmp = fields.get(order[i]).compare(a[positions[i]], b[positions[i]]);
+                if(cmp != 0) {
+                    return desc[i] ? -cmp : cmp;
+                }
+            }
+            return 0;
+        };
+    }
+
+    //select 的字段列表对应的字段序号，* 为所有字段
+    private int[] project(String[] names) throws Exception {
+        if(names.length == 1 && "*".equals(names[0])) {
+            return null;
         }
-        return entry;
+        return ordinalsOf(names);
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
-        byte[] raw = new byte[0];
-        for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
+    //查询涉及的字段（结果列和 where 中的字段）都能从多列索引的 key 中取出时，不需要读取行
+    private boolean covered(WhereRes where, int[] ordinals) {
+        if(where.index == null) {
+            return false;
+        }
+        for (int i = 0; i < (ordinals == null ? fields.size() : ordinals.length); i++) {
+            if(!where.index.covers(ordinals == null ? i : ordinals[i])) {
+                return false;
+            }
+        }
+        return where.filter == null || where.filter.coveredBy(where.index);
+    }
+
+    class ReadCursor implements Cursor {
+        long xid;
+        WhereRes where;
+        int[] ordinals;     //为 null 时返回所有字段
+        boolean covering;   //为 true 时只判断可见性，值从索引的 key 中取出
+
+        ReadCursor(long xid, WhereRes where, int[] ordinals, boolean covering) {
+            this.xid = xid;
+            this.where = where;
+            this.ordinals = ordinals;
+            this.covering = covering;
+            if(covering) {
+                where.cursor.withKeys();
+            }
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            if(ordinals == null) {
+                String[] names = new String[fields.size()];
+                for (int i = 0; i < fields.size(); i++) {
+                    names[i] = fields.get(i).fieldName;
+                }
+                return names;
+            }
+            String[] names = new String[ordinals.length];
+            for (int i = 0; i < ordinals.length; i++) {
+                names[i] = fields.get(ordinals[i]).fieldName;
+            }
+            return names;
+        }
+
+        @Override
+        public Object[] next() throws Exception {
+            while(true) {
+                long uid = where.uids.next();
+                if(uid == 0) {
+                    return null;
+                }
+                if(covering) {
+                    if(!((TableManagerImpl)tbm).vm.isVisible(xid, uid)) continue;
+                    Object[] row = where.index.values(where.cursor);
+                    if(where.filter != null && !where.filter.match(row)) continue;
+                    if(ordinals == null) {
+                        return row;
+                    }
+                    Object[] res = new Object[ordinals.length];
+                    for (int i = 0; i < ordinals.length; i++) {
+                        res[i] = row[ordinals[i]];
+                    }
+                    return res;
+                }
+                SubArray raw = ((TableManagerImpl)tbm).vm.readView(xid, uid);
+                if(raw == null) continue;
+                if(where.filter != null && !where.filter.match(raw)) continue;
+                return ordinals == null ? codec.decode(raw) : codec.decode(raw, ordinals);
+            }
+        }
+
+        @Override
+        public void close() {
+            where.uids.close();
+        }
+    }
+
+    public int insert(long xid, Insert insert) throws Exception {
+        List<Object[]> rows = new ArrayList<>(insert.values.length);
+        for(String[] values : insert.values) {
+            if(values.length != fields.size()) {
+                throw Error.InvalidValuesException;
+            }
+            Object[] row = new Object[fields.size()];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = fields.get(i).string2Value(values[i]);
+            }
+            rows.add(row);
+        }
+        return insertRows(xid, rows);
+    }
+
+    //批量导入，每行的值按字段顺序给出
+    public int load(long xid, List<Object[]> rows) throws Exception {
+        List<Object[]> values = new ArrayList<>(rows.size());
+        for(Object[] row : rows) {
+            if(row.length != fields.size()) {
+                throw Error.InvalidValuesException;
+            }
+            Object[] value = new Object[fields.size()];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = fields.get(i).toValue(row[i]);
+            }
+            values.add(value);
+        }
+        return insertRows(xid, values);
+    }
+
+    //行数据按页批量写入，每个索引的键值排序后批量插入
+    private int insertRows(long xid, List<Object[]> rows) throws Exception {
+        List<byte[]> raws = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            raws.add(codec.encode(row));
+        }
+        long[] uids = ((TableManagerImpl)tbm).vm.insert(xid, uid, raws);
+        counter.add(xid, uids.length);
+        try {
+            for (int i = 0; i < fields.size(); i++) {
+                Field fd = fields.get(i);
+                if(fd.isUnique()) {
+                    //唯一索引逐行插入，同一批中的重复值也会被后插入的一行检查到
+                    for (int j = 0; j < uids.length; j++) {
+                        fd.insertUnique(rows.get(j)[i], uids[j], uniqueCheck(xid, new int[]{i}, rows.get(j)));
+                    }
+                } else if(fd.isIndexed()) {
+                    Object[] keys = new Object[rows.size()];
+                    for (int j = 0; j < keys.length; j++) {
+                        keys[j] = rows.get(j)[i];
+                    }
+                    fd.insertAll(keys, uids);
+                }
+            }
+            for(Index index : indexes) {
+                if(index.isUnique()) {
+                    for (int j = 0; j < uids.length; j++) {
+                        index.insertUnique(rows.get(j), uids[j], uniqueCheck(xid, index.keys, rows.get(j)));
+                    }
+                } else {
+                    index.insertAll(rows, uids);
+                }
+            }
+        } catch(Exception e) {
+            if(e == Error.DuplicateKeyException) {
+                List<Long> inserted = new ArrayList<>(uids.length);
+                for(long uid : uids) {
+                    inserted.add(uid);
+                }
+                throw rejected(xid, e, inserted, Collections.emptyList());
+            }
+            throw e;
+        }
+        for (Object[] row : rows) {
+            stats.insert(row);
+        }
+        return rows.size();
+    }
+
+    class WhereRes {
+        UidIterator uids;
+        RowFilter filter;       //不为 null 时，uids 只是候选行，还需要在行数据上判断 where
+        Index index;            //通过多列索引查找时为该索引，cursor 为其上的游标
+        RangeCursor cursor;
+        boolean ordered;        //uids 已经按 order by 的顺序排列
+        boolean scan;           //uids 来自顺序扫描整个堆
+    }
+
+    //由 Planner 选择取得候选行的方式，取出的行不一定满足 where 时附带 RowFilter
+    private WhereRes parseWhere(long xid, Where where) throws Exception {
+        return parseWhere(xid, where, null, null, -1);
+    }
+
+    //需要按 order 排序时，Planner 同时考虑按索引顺序读取，need 为需要的行数，-1 表示全部
+    private WhereRes parseWhere(long xid, Where where, int[] order, boolean[] desc, long need) throws Exception {
+        WhereRes res = new WhereRes();
+        Planner planner = new Planner(this);
+        Planner.Path path = planner.plan(where);
+        if(order != null && ascending(desc)) {
+            Planner.Path ordered = planner.orderedPath(where, order);
+            if(ordered != null && planner.preferOrdered(ordered, path, need)) {
+                path = ordered;
+                res.ordered = true;
+            }
+        }
+        res.uids = path.open();
+        res.scan = path instanceof Planner.ScanPath;
+        res.index = path.index();
+        if(res.index != null) {
+            res.cursor = (RangeCursor)res.uids;
+        }
+        if(where != null && !planner.exact(path, where)) {
+            res.filter = new RowFilter(where);
+        }
+        return res;
+    }
+
+    private int[] ordinalsOf(String[] names) throws Exception {
+        int[] ordinals = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            ordinals[i] = ordinalOf(names[i]);
+        }
+        return ordinals;
+    }
+
+    private static boolean ascending(boolean[] desc) {
+        for(boolean d : desc) {
+            if(d) return false;
+        }
+        return true;
+    }
+
+    int ordinalOf(String fieldName) throws Exception {
+        for (int i = 0; i < fields.size(); i++) {
+            if(fields.get(i).fieldName.equals(fieldName)) {
+                return i;
+            }
+        }
+        throw Error.FieldNotFoundException;
+    }
+
+    //在行数据上计算 where 条件树，比较的值在构造时就转换好，只解码条件涉及的字段
+    class RowFilter {
+        String logicOp;
+        RowFilter left, right;
+        Field fd;
+        int ord;
+        String op;
+        Object v;
+
+        RowFilter(Where where) throws Exception {
+            logicOp = where.logicOp;
+            switch(logicOp) {
+                case "":
+                    ord = ordinalOf(where.exp.field);
+                    fd = fields.get(ord);
+                    op = where.exp.compareOp;
+                    v = fd.operand(where.exp);
+                    break;
+                case "and":
+                case "or":
+                    left = new RowFilter(where.left);
+                    right = new RowFilter(where.right);
+                    break;
+                case "not":
+                    left = new RowFilter(where.left);
+                    break;
+                default:
+                    throw Error.InvalidLogOpException;
+            }
+        }
+
+        //在按字段序号排列的值上计算，用于覆盖索引
+        boolean match(Object[] row) {
+            switch(logicOp) {
+                case "and":
+                    return left.match(row) && right.match(row);
+                case "or":
+                    return left.match(row) || right.match(row);
+                case "not":
+                    return !left.match(row);
+                default:
+                    return fd.satisfy(row[ord], op, v);
+            }
+        }
+
+        boolean match(SubArray raw) {
+            switch(logicOp) {
+                case "and":
+                    return left.match(raw) && right.match(raw);
+                case "or":
+                    return left.match(raw) || right.match(raw);
+                case "not":
+                    return !left.match(raw);
+                default:
+                    return fd.satisfy(codec.decodeField(raw, ord), op, v);
+            }
+        }
+
+        //条件涉及的字段是否都能从 index 的 key 中取出
+        boolean coveredBy(Index index) {
+            switch(logicOp) {
+                case "and":
+                case "or":
+                    return left.coveredBy(index) && right.coveredBy(index);
+                case "not":
+                    return left.coveredBy(index);
+                default:
+                    return index.covers(ord);
+            }
         }
-        return raw;
     }
 
     @Override
@@ -294,12 +939,13 @@ public class Table {
         sb.append(name).append(": ");
         for(Field field : fields) {
             sb.append(field.toString());
-            if(field == fields.get(fields.size()-1)) {
-                sb.append("}");
-            } else {
+            if(field != fields.get(fields.size()-1)) {
                 sb.append(", ");
             }
         }
-        return sb.toString();
+        for(Index index : indexes) {
+            sb.append(", ").append(index.toString());
+        }
+        return sb.append("}").toString();
     }
 }
@@ -2,7 +2,6 @@ package com.ye.mydb.backend.tbm;
 
 import com.ye.mydb.backend.dm.DataManager;
 import com.ye.mydb.backend.parser.statement.*;
-import com.ye.mydb.backend.utils.Parser;
 import com.ye.mydb.backend.vm.VersionManager;
 
 public interface TableManager {
@@ -11,16 +10,25 @@ public interface TableManager {
     byte[] abort(long xid);
 
     byte[] show(long xid);
+    byte[] showStats(long xid) throws Exception;
     byte[] create(long xid, Create create) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
-    byte[] read(long xid, Select select) throws Exception;
+    Cursor read(long xid, Select select) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    //按表名查找表，预先找到表后可以直接在该表上执行，不再按语句中的表名查找
+    Table getTable(String tableName) throws Exception;
+    byte[] insert(long xid, Table table, Insert insert) throws Exception;
+    Cursor read(long xid, Table table, Select select) throws Exception;
+    byte[] update(long xid, Table table, Update update) throws Exception;
+    byte[] delete(long xid, Table table, Delete delete) throws Exception;
+    byte[] load(long xid, Table table, Load load) throws Exception;
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
-        booter.update(Parser.long2Byte(0));
+        booter.update(TableManagerImpl.bootRaw(0));
         return new TableManagerImpl(vm, dm, booter);
     }
 
@@ -2,11 +2,13 @@ package com.ye.mydb.backend.tbm;
 
 import com.ye.mydb.backend.dm.DataManager;
 import com.ye.mydb.backend.parser.statement.*;
+import com.ye.mydb.backend.utils.Panic;
 import com.ye.mydb.backend.utils.Parser;
 import com.ye.mydb.backend.vm.VersionManager;
 import com.ye.mydb.common.Error;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +17,13 @@ import java.util.concurrent.locks.ReentrantLock;
 
 
 public class TableManagerImpl implements TableManager {
+    /**
+     * 数据库文件格式的版本，存放在 booter 中：[FirstTableUid][FormatVersion]
+     * 行数据、索引键等落盘格式有不兼容的改动时增加版本，打开版本不同的数据库时直接停机，不做迁移
+     * 1：行数据以所属表的 UID 开头，普通页的页头中记录页面的属主，行中字符串的长度为 UTF-8 编码的字节数，字符串的索引键为保序的前缀
+     */
+    static final int FORMAT_VERSION = 1;
+
     VersionManager vm;
     DataManager dm;
     private Booter booter;
@@ -29,9 +38,25 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        checkFormat();
         loadTables();
     }
 
+    //没有版本号的 booter 来自加入版本号之前的数据库，同样不能打开
+    private void checkFormat() {
+        byte[] raw = booter.load();
+        if(raw.length < 12 || Parser.getInt(raw, 8) != FORMAT_VERSION) {
+            Panic.panic(Error.IncompatibleFormatException);
+        }
+    }
+
+    static byte[] bootRaw(long firstTableUid) {
+        byte[] raw = new byte[12];
+        Parser.putLong(raw, 0, firstTableUid);
+        Parser.putInt(raw, 8, FORMAT_VERSION);
+        return raw;
+    }
+
     private void loadTables() {
         long uid = firstTableUid();
         while(uid != 0) {
@@ -47,8 +72,7 @@ public class TableManagerImpl implements TableManager {
     }
 
     private void updateFirstTableUid(long uid) {
-        byte[] raw = Parser.long2Byte(uid);
-        booter.update(raw);
+        booter.update(bootRaw(uid));
     }
 
     @Override
@@ -59,16 +83,47 @@ public class TableManagerImpl implements TableManager {
         res.result = "begin".getBytes();
         return res;
     }
+    //提交时持有该事务修改过的各表的 RowCounter.commitLock 的读锁，按表的 UID 顺序获取，避免和 RowCounter 的扫描互相等待
     @Override
     public byte[] commit(long xid) throws Exception {
-        vm.commit(xid);
+        List<Table> touched = new ArrayList<>();
+        for (Table tb : tables()) {
+            if(tb.counter.touched(xid)) {
+                touched.add(tb);
+            }
+        }
+        touched.sort(Comparator.comparingLong(tb -> tb.uid));
+        for (Table tb : touched) {
+            tb.counter.commitLock.readLock().lock();
+        }
+        try {
+            vm.commit(xid);
+            for (Table tb : touched) {
+                tb.counter.commit(xid);
+            }
+        } finally {
+            for (Table tb : touched) {
+                tb.counter.commitLock.readLock().unlock();
+            }
+        }
         return "commit".getBytes();
     }
     @Override
     public byte[] abort(long xid) {
         vm.abort(xid);
+        for (Table tb : tables()) {
+            tb.counter.abort(xid);
+        }
         return "abort".getBytes();
     }
+    private List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
     @Override
     public byte[] show(long xid) {
         lock.lock();
@@ -89,6 +144,16 @@ public class TableManagerImpl implements TableManager {
             lock.unlock();
         }
     }
+    //各表的统计信息，第一次显示时需要扫描表，因此不在 lock 中进行
+    @Override
+    public byte[] showStats(long xid) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (Table tb : tables()) {
+            tb.stats.load(xid);
+            sb.append(tb.stats.describe()).append("\n");
+        }
+        return sb.toString().getBytes();
+    }
     @Override
     public byte[] create(long xid, Create create) throws Exception {
         lock.lock();
@@ -109,46 +174,56 @@ public class TableManagerImpl implements TableManager {
         }
     }
     @Override
-    public byte[] insert(long xid, Insert insert) throws Exception {
+    public Table getTable(String tableName) throws Exception {
         lock.lock();
-        Table table = tableCache.get(insert.tableName);
+        Table table = tableCache.get(tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        table.insert(xid, insert);
-        return "insert".getBytes();
+        return table;
     }
     @Override
-    public byte[] read(long xid, Select read) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(read.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
-        }
-        return table.read(xid, read).getBytes();
+    public byte[] insert(long xid, Insert insert) throws Exception {
+        return insert(xid, getTable(insert.tableName), insert);
+    }
+    @Override
+    public Cursor read(long xid, Select read) throws Exception {
+        return read(xid, getTable(read.tableName), read);
     }
     @Override
     public byte[] update(long xid, Update update) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(update.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
+        return update(xid, getTable(update.tableName), update);
+    }
+    @Override
+    public byte[] delete(long xid, Delete delete) throws Exception {
+        return delete(xid, getTable(delete.tableName), delete);
+    }
+    @Override
+    public byte[] insert(long xid, Table table, Insert insert) throws Exception {
+        int count = table.insert(xid, insert);
+        return (count == 1 ? "insert" : "insert " + count).getBytes();
+    }
+    @Override
+    public Cursor read(long xid, Table table, Select read) throws Exception {
+        if(read.join != null) {
+            return new JoinPlanner(table, getTable(read.join.tableName)).read(xid, read);
         }
+        return table.read(xid, read);
+    }
+    @Override
+    public byte[] update(long xid, Table table, Update update) throws Exception {
         int count = table.update(xid, update);
         return ("update " + count).getBytes();
     }
     @Override
-    public byte[] delete(long xid, Delete delete) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(delete.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
-        }
+    public byte[] delete(long xid, Table table, Delete delete) throws Exception {
         int count = table.delete(xid, delete);
         return ("delete " + count).getBytes();
     }
+    @Override
+    public byte[] load(long xid, Table table, Load load) throws Exception {
+        int count = table.load(xid, load.rows);
+        return ("load " + count).getBytes();
+    }
 }
@@ -0,0 +1,210 @@
+package com.ye.mydb.backend.tbm;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.ye.mydb.backend.common.SubArray;
+import com.ye.mydb.backend.common.UidIterator;
+import com.ye.mydb.backend.utils.HyperLogLog;
+import com.ye.mydb.backend.utils.Parser;
+import com.ye.mydb.backend.vm.VersionManager;
+
+/**
+ * TableStats 是表的统计信息：行数、各字段不同值个数的估计（HyperLogLog），以及有索引的字段上的等深直方图
+ * 直方图在第一次需要时从字段所在的索引中取样得出（取样读取的叶子数有上限），条目数与构造时相差一倍以上时重新取样；
+ * 行数和不同值个数需要扫描一遍表，只在 show stats 时得出，在此之前 Planner 用索引的条目数估算行数
+ * 取样和扫描都不持有 TableStats 的锁，插入和删除不会被阻塞，期间的修改可能没有计入；之后随插入和删除增量维护
+ * 统计信息只保存在内存中，都是估计值：回滚不会撤销已经计入的修改，HyperLogLog 也不会因删除而减少
+ */
+class TableStats {
+    static final int BUCKETS = 32;
+
+    private Table tb;
+    private volatile boolean loaded;    //已经扫描过表，rows 和 ndv 可用
+    private volatile boolean tracking;  //有需要增量维护的统计信息，此时 insert 和 delete 需要传入行的值
+    private long rows;
+    private HyperLogLog[] ndv;
+    private Histogram[] histograms;     //按字段序号排列，还没有取样或没有索引的字段为 null
+    private Set<Integer> building = new HashSet<>();     //正在取样的字段序号
+
+    TableStats(Table tb) {
+        this.tb = tb;
+    }
+
+    boolean tracking() {
+        return tracking;
+    }
+
+    //扫描 xid 可见的行得出行数和不同值个数
+    void load(long xid) throws Exception {
+        if(loaded) {
+            return;
+        }
+        int n = tb.fields.size();
+        HyperLogLog[] ndv = new HyperLogLog[n];
+        for(int i = 0; i < n; i ++) {
+            ndv[i] = new HyperLogLog();
+        }
+        long rows = 0;
+        VersionManager vm = ((TableManagerImpl)tb.tbm).vm;
+        UidIterator it = vm.scan(tb.uid, Parser.long2Byte(tb.uid));
+        long uid;
+        while((uid = it.next()) != 0) {
+            SubArray raw = vm.readView(xid, uid);
+            if(raw == null) continue;
+            Object[] row = tb.codec.decode(raw);
+            rows ++;
+            for(int i = 0; i < n; i ++) {
+                ndv[i].add(hash(row[i]));
+            }
+        }
+        synchronized(this) {
+            if(!loaded) {
+                this.rows = rows;
+                this.ndv = ndv;
+                loaded = tracking = true;
+            }
+        }
+    }
+
+    //从字段自己的索引或以它为第一个键字段的多列索引中取样
+    private Histogram buildHistogram(int ordinal) throws Exception {
+        Field fd = tb.fields.get(ordinal);
+        if(fd.isIndexed()) {
+            return Histogram.build(fd.sample(BUCKETS));
+        }
+        for(Index index : tb.indexes) {
+            if(index.keys[0] == ordinal) {
+                return Histogram.build(index.sample(BUCKETS));
+            }
+        }
+        return null;
+    }
+
+    private boolean hasHistogramSource(int ordinal) {
+        if(tb.fields.get(ordinal).isIndexed()) {
+            return true;
+        }
+        for(Index index : tb.indexes) {
+            if(index.keys[0] == ordinal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long hash(Object v) {
+        if(v instanceof String) {
+            return HyperLogLog.hash((String)v);
+        }
+        return HyperLogLog.hash(((Number)v).longValue());
+    }
+
+    synchronized void insert(Object[] row) {
+        if(loaded) {
+            rows ++;
+            for(int i = 0; i < row.length; i ++) {
+                ndv[i].add(hash(row[i]));
+            }
+        }
+        if(histograms != null) {
+            for(int i = 0; i < row.length; i ++) {
+                if(histograms[i] != null) {
+                    histograms[i].add(tb.fields.get(i).value2Uid(row[i]), 1);
+                }
+            }
+        }
+    }
+
+    synchronized void delete(Object[] row) {
+        if(loaded) {
+            rows = Math.max(0, rows - 1);
+        }
+        if(histograms != null) {
+            for(int i = 0; i < row.length; i ++) {
+                if(histograms[i] != null) {
+                    histograms[i].add(tb.fields.get(i).value2Uid(row[i]), -1);
+                }
+            }
+        }
+    }
+
+    //表的行数，还没有扫描过表时返回 -1
+    synchronized long rows() {
+        return loaded ? rows : -1;
+    }
+
+    //索引键落在 ranges 中的行所占的比例，字段上没有直方图时返回 -1
+    double fraction(int ordinal, List<FieldCalRes> ranges) throws Exception {
+        Histogram h = histogram(ordinal);
+        if(h == null) {
+            return -1;
+        }
+        double f = 0;
+        synchronized(this) {
+            for(FieldCalRes r : ranges) {
+                f += h.fraction(r.left, r.right);
+            }
+        }
+        return Math.min(1, f);
+    }
+
+    /**
+     * 字段的直方图，还没有或者已经过期时在锁外重新取样
+     * 同一字段同一时刻只有一个线程取样，其他线程继续使用过期的直方图，还没有直方图时按没有直方图处理
+     */
+    private Histogram histogram(int ordinal) throws Exception {
+        Histogram h;
+        synchronized(this) {
+            h = histograms == null ? null : histograms[ordinal];
+            if(h != null && !h.stale()) {
+                return h;
+            }
+            if(building.contains(ordinal) || !hasHistogramSource(ordinal)) {
+                return h;
+            }
+            building.add(ordinal);
+        }
+        try {
+            h = buildHistogram(ordinal);
+        } finally {
+            synchronized(this) {
+                building.remove(ordinal);
+            }
+        }
+        synchronized(this) {
+            if(histograms == null) {
+                histograms = new Histogram[tb.fields.size()];
+            }
+            histograms[ordinal] = h;
+            tracking = true;
+        }
+        return h;
+    }
+
+    //show stats 的输出，应在 load 之后调用，过期的直方图先重新取样
+    String describe() throws Exception {
+        Histogram[] hs = new Histogram[tb.fields.size()];
+        for(int i = 0; i < hs.length; i ++) {
+            hs[i] = histogram(i);
+        }
+        synchronized(this) {
+            StringBuilder sb = new StringBuilder(tb.name).append(": rows ").append(rows);
+            for(int i = 0; i < hs.length; i ++) {
+                Field fd = tb.fields.get(i);
+                sb.append("\n    ").append(fd.fieldName).append(": ndv ").append(ndv[i].estimate());
+                Histogram h = hs[i];
+                if(h == null) {
+                    sb.append(", no histogram");
+                    continue;
+                }
+                sb.append(", histogram ").append(h.buckets()).append(" buckets");
+                if(fd.isKeyExact()) {
+                    sb.append(" [").append(fd.uid2Value(h.min())).append(", ").append(fd.uid2Value(h.max())).append("]");
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
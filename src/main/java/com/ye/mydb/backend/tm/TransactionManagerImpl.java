@@ -135,10 +135,8 @@ public class TransactionManagerImpl implements TransactionManager{
         ByteBuffer buf = ByteBuffer.wrap(tmp);
 
         try {
-            //设置为事务的偏移量
-            fc.position(offset);
-            //写入xid文件中
-            fc.write(buf);
+            //按偏移量写入xid文件中，不改变channel的position，多个线程同时读写时互不影响
+            fc.write(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -159,9 +157,8 @@ public class TransactionManagerImpl implements TransactionManager{
         ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
 
         try {
-            //读取到buf中
-            fc.position(offset);
-            fc.read(buf);
+            //按偏移量读取到buf中，并行扫描时多个线程会同时检查事务状态
+            fc.read(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -0,0 +1,58 @@
+package com.ye.mydb.backend.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HyperLogLog 估算一组值中不同值的个数
+ * 哈希值的高 P 位选择寄存器，寄存器记录落入其中的哈希值剩余部分前导零个数加一的最大值，相对误差约为 1.04/sqrt(2^P)
+ * 只能添加值，不能删除
+ */
+public class HyperLogLog {
+    private static final int P = 12;
+    private static final int M = 1 << P;
+
+    private byte[] registers = new byte[M];
+
+    public void add(long hash) {
+        int idx = (int)(hash >>> (64 - P));
+        int rank = Long.numberOfLeadingZeros((hash << P) | (1L << (P - 1))) + 1;
+        if(rank > registers[idx]) {
+            registers[idx] = (byte)rank;
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for(byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if(r == 0) zeros ++;
+        }
+        double e = 0.7213 / (1 + 1.079 / M) * M * M / sum;
+        //基数较小时按空寄存器的比例估算
+        if(e <= 2.5 * M && zeros > 0) {
+            e = M * Math.log((double)M / zeros);
+        }
+        return Math.round(e);
+    }
+
+    //64 位整数的哈希（MurmurHash3 的 fmix64）
+    public static long hash(long v) {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+    //字符串按 UTF-8 字节做 FNV-1a，再用 fmix64 打散
+    public static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for(byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return hash(h);
+    }
+}
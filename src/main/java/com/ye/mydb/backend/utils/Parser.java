@@ -2,41 +2,84 @@ package com.ye.mydb.backend.utils;
 
 import com.google.common.primitives.Bytes;
 
-import java.nio.ByteBuffer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 public class Parser {
 
+    //按大端读写字节数组中任意偏移处的 short、int、long，不分配临时数组和 ByteBuffer
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public static short getShort(byte[] buf, int off) {
+        return (short)SHORT.get(buf, off);
+    }
+
+    public static void putShort(byte[] buf, int off, short value) {
+        SHORT.set(buf, off, value);
+    }
+
+    //带 acquire/release 语义的读写，off 需按 2 字节对齐。release 写之前的写入对 acquire 读到该值的线程可见
+    public static short getShortAcquire(byte[] buf, int off) {
+        return (short)SHORT.getAcquire(buf, off);
+    }
+
+    public static void putShortRelease(byte[] buf, int off, short value) {
+        SHORT.setRelease(buf, off, value);
+    }
+
+    public static int getInt(byte[] buf, int off) {
+        return (int)INT.get(buf, off);
+    }
+
+    public static void putInt(byte[] buf, int off, int value) {
+        INT.set(buf, off, value);
+    }
+
+    public static long getLong(byte[] buf, int off) {
+        return (long)LONG.get(buf, off);
+    }
+
+    public static void putLong(byte[] buf, int off, long value) {
+        LONG.set(buf, off, value);
+    }
+
     public static byte[] short2Byte(short value){
-        return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
+        byte[] buf = new byte[Short.BYTES];
+        putShort(buf, 0, value);
+        return buf;
     }
 
     public static short parseShort(byte[] buf){
-        //将字节数组保证到缓冲区中，short为两个字节
-        ByteBuffer buffer = ByteBuffer.wrap(buf,0,2);
-        return buffer.getShort();
+        return getShort(buf, 0);
     }
 
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
+        byte[] buf = new byte[Integer.BYTES];
+        putInt(buf, 0, value);
+        return buf;
     }
 
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
-        return buffer.getInt();
+        return getInt(buf, 0);
     }
 
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
-        return buffer.getLong();
+        return getLong(buf, 0);
     }
 
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] buf = new byte[Long.BYTES];
+        putLong(buf, 0, value);
+        return buf;
     }
 
     public static ParseStringRes parseString(byte[] raw) {
-        int length = parseInt(Arrays.copyOf(raw, 4));
+        int length = getInt(raw, 0);
         String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
         return new ParseStringRes(str, length+4);
     }
@@ -46,12 +89,21 @@ public class Parser {
         return Bytes.concat(l, str.getBytes());
     }
 
-    public static long str2Uid(String key) {
-        long seed = 13331;
+    /**
+     * 字符串的索引键：取 UTF-8 编码的前 8 个字节（不足时补 0）按大端拼成一个无符号数，再翻转符号位，
+     * 使 long 的有符号比较与字节序（即码点序）一致。键是保序的，但前 8 个字节相同的字符串键相同
+     */
+    public static long str2Key(String key) {
+        return prefix2Key(key.getBytes(StandardCharsets.UTF_8), (byte)0);
+    }
+
+    //以 prefix 开头的字符串的键，不足 8 个字节的部分用 pad 补齐，pad 为 0 和 (byte)0xFF 时分别得到键的下界和上界
+    public static long prefix2Key(byte[] prefix, byte pad) {
         long res = 0;
-        for(byte b : key.getBytes()) {
-            res = res * seed + (long)b;
+        for(int i = 0; i < 8; i ++) {
+            byte b = i < prefix.length ? prefix[i] : pad;
+            res = (res << 8) | (b & 0xFF);
         }
-        return res;
+        return res ^ Long.MIN_VALUE;
     }
 }
@@ -44,6 +44,14 @@ public class Entry {
         return Bytes.concat(xmin,xmax,data);
     }
 
+    //判断 DataItem 数据 raw[start, end) 中记录的 data 部分是否以 prefix 开头，直接在页面上判断，不拷贝数据
+    public static boolean isDataPrefixed(byte[] raw, int start, int end, byte[] prefix){
+        if(end - start - OF_DATA < prefix.length){
+            return false;
+        }
+        return Arrays.equals(raw, start + OF_DATA, start + OF_DATA + prefix.length, prefix, 0, prefix.length);
+    }
+
     public void release(){
         ((VersionManagerImpl)vm).releaseEntry(this);
     }
@@ -65,31 +73,37 @@ public class Entry {
         }
     }
 
+    /**
+     * 以只读视图的形式返回内容，不拷贝也不加锁。
+     * 更新总是插入新的版本，记录写入后只有 XMAX 会被原地修改，data 部分不再改变；
+     * 页面被换出后原数组也不会被复用，所以释放记录后视图仍然有效。调用方不能修改视图中的数据
+     */
+    public SubArray dataView(){
+        SubArray sa = dataItem.data();
+        return new SubArray(sa.raw,sa.start + OF_DATA,sa.end);
+    }
+
     public long getXmax(){
         dataItem.rLock();
         try{
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start + OF_XMAX,sa.start + OF_DATA));
+            return Parser.getLong(sa.raw,sa.start + OF_XMAX);
         }finally {
             dataItem.rUnLock();
         }
     }
 
+    //XMIN 在记录创建后不再修改，不需要加锁
     public long getXmin(){
-        dataItem.rLock();
-        try{
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw,sa.start + OF_XMIN,sa.start + OF_XMAX));
-        }finally {
-            dataItem.rUnLock();
-        }
+        SubArray sa = dataItem.data();
+        return Parser.getLong(sa.raw,sa.start + OF_XMIN);
     }
 
     public void setXmax(long xid){
         dataItem.before();
         try{
             SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid),0,sa.raw,sa.start + OF_XMAX, 8);
+            Parser.putLong(sa.raw,sa.start + OF_XMAX,xid);
         }finally {
             dataItem.after(xid);
         }
@@ -1,16 +1,31 @@
 package com.ye.mydb.backend.vm;
 
+import com.ye.mydb.backend.common.SubArray;
 import com.ye.mydb.backend.dm.DataManager;
+import com.ye.mydb.backend.dm.HeapScanner;
 import com.ye.mydb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface VersionManager {
     byte[] read(long xid,long uid) throws Exception;
+    SubArray readView(long xid,long uid) throws Exception;
+    boolean isVisible(long xid,long uid) throws Exception;
+    SubArray readLive(long xid,long uid) throws Exception;
+    void setError(long xid,Exception err);
     long insert(long xid,byte[] data) throws Exception;
+    long insert(long xid,long owner,byte[] data) throws Exception;
+    long[] insert(long xid,long owner,List<byte[]> datas) throws Exception;
     boolean delete(long xid,long uid) throws Exception;
+    boolean undelete(long xid,long uid) throws Exception;
+    HeapScanner scan(long owner, byte[] prefix);
+    HeapScanner scan(long owner, byte[] prefix, int from, int to);
+    int getPageNumber();
 
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
+    boolean isRepeatableRead(long xid);
 
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm){
         return new VersionManagerImpl(tm,dm);
@@ -1,14 +1,20 @@
 package com.ye.mydb.backend.vm;
 
 import com.ye.mydb.backend.common.AbstractCache;
+import com.ye.mydb.backend.common.SubArray;
 import com.ye.mydb.backend.dm.DataManager;
+import com.ye.mydb.backend.dm.HeapScanner;
+import com.ye.mydb.backend.dm.pageIndex.PageIndex;
 import com.ye.mydb.backend.tm.TransactionManager;
 import com.ye.mydb.backend.tm.TransactionManagerImpl;
 import com.ye.mydb.backend.utils.Panic;
 import com.ye.mydb.common.Error;
 
 import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -57,6 +63,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
+        SubArray view = readView(xid, uid);
+        return view == null ? null : Arrays.copyOfRange(view.raw, view.start, view.end);
+    }
+
+    //和 read 相同，但返回记录数据在页面上的只读视图，不拷贝，用于只需要解码的读取
+    @Override
+    public SubArray readView(long xid, long uid) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -78,7 +91,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         try{
             //判断对当前记录的可见性
             if(Visibility.isVisible(tm,t,entry)){
-                return entry.data();
+                return entry.dataView();
             }else{
                 return null;
             }
@@ -87,8 +100,75 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    //只判断记录对 xid 是否可见，不拷贝记录的数据，用于覆盖索引查询
+    @Override
+    public boolean isVisible(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null){
+            throw t.err;
+        }
+
+        Entry entry = null;
+        try{
+            entry = super.get(uid);
+        }catch (Exception e){
+            if(e == Error.NullEntryException){
+                return false;
+            }else {
+                throw e;
+            }
+        }
+        try{
+            return Visibility.isVisible(tm,t,entry);
+        }finally {
+            entry.release();
+        }
+    }
+
+    //读取仍占用唯一键的版本，不管它对 xid 是否可见，用于唯一索引插入时的检查，返回只读视图
+    @Override
+    public SubArray readLive(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        Entry entry = null;
+        try{
+            entry = super.get(uid);
+        }catch (Exception e){
+            if(e == Error.NullEntryException){
+                return null;
+            }else {
+                throw e;
+            }
+        }
+        try{
+            return Visibility.isLive(tm,t,entry) ? entry.dataView() : null;
+        }finally {
+            entry.release();
+        }
+    }
+
+    //语句执行到一半失败，已写入的部分无法单独撤销时调用，之后事务的操作和提交都会抛出 err，只能回滚
+    @Override
+    public void setError(long xid, Exception err) {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+        t.err = err;
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, PageIndex.SHARED, data);
+    }
+
+    //记录插入到属于 owner 的页中，见 PageIndex
+    @Override
+    public long insert(long xid, long owner, byte[] data) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -98,7 +178,24 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
         //将数据打包成记录
         byte[] raw = Entry.wrapEntryRaw(xid,data);
-        return dm.insert(xid,raw);
+        return dm.insert(xid,owner,raw);
+    }
+
+    //批量插入多条记录，由 DM 按页批量写入
+    @Override
+    public long[] insert(long xid, long owner, List<byte[]> datas) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null){
+            throw t.err;
+        }
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for(byte[] data : datas){
+            raws.add(Entry.wrapEntryRaw(xid,data));
+        }
+        return dm.insert(xid,owner,raws);
     }
 
     //一是可见性判断，二是获取资源的锁，三是版本跳跃判断。删除的操作只有一个设置 XMAX
@@ -156,6 +253,47 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    //撤销 xid 自己对记录的删除，用于语句失败时恢复它已经删除的行。记录的锁仍由 xid 持有，直到事务结束
+    @Override
+    public boolean undelete(long xid, long uid) throws Exception {
+        Entry entry = null;
+        try{
+            entry = super.get(uid);
+        }catch (Exception e){
+            if(e == Error.NullEntryException){
+                return false;
+            }else{
+                throw e;
+            }
+        }
+        try{
+            if(entry.getXmax() != xid){
+                return false;
+            }
+            entry.setXmax(0);
+            return true;
+        }finally {
+            entry.release();
+        }
+    }
+
+    //顺序扫描所有数据以 prefix 开头的记录，只读取可能含有 owner 的记录的页，返回的只是候选 UID，可见性仍需通过 read 判断
+    @Override
+    public HeapScanner scan(long owner, byte[] prefix) {
+        return dm.scan(owner, (raw, start, end) -> Entry.isDataPrefixed(raw, start, end, prefix));
+    }
+
+    //只扫描页号在 [from, to] 中的页
+    @Override
+    public HeapScanner scan(long owner, byte[] prefix, int from, int to) {
+        return dm.scan(owner, (raw, start, end) -> Entry.isDataPrefixed(raw, start, end, prefix), from, to);
+    }
+
+    @Override
+    public int getPageNumber() {
+        return dm.getPageNumber();
+    }
+
     //begin() 开启一个事务，并初始化事务的结构，将其存放在 activeTransaction 中，用于检查和快照使用
     @Override
     public long begin(int level) {
@@ -200,6 +338,15 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         internAbort(xid,false);
     }
 
+    //事务的隔离级别是否为可重复读
+    @Override
+    public boolean isRepeatableRead(long xid) {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+        return t.level != 0;
+    }
+
     //abort 事务的方法则有两种，手动和自动。手动指的是调用 abort() 方法，
     // 而自动，则是在事务被检测出出现死锁时，会自动撤销回滚事务；或者出现版本跳跃时，也会自动回滚：
     private void internAbort(long xid, boolean b) {
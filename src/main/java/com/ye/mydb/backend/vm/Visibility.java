@@ -105,6 +105,19 @@ public class Visibility {
         }
     }
 
+    /**
+     * 唯一索引插入时，判断版本是否仍然占用它的键，与隔离级别无关：
+     * XMIN 未回滚，且没有被 Ti 自己或一个已提交的事务删除
+     * 创建或删除它的事务还在进行时，结果未定，也视为占用
+     */
+    public static boolean isLive(TransactionManager tm,Transaction t,Entry e){
+        long xmin = e.getXmin();
+        long xmax = e.getXmax();
+        if(tm.isAborted(xmin)) return false;
+        if(xmax == 0) return true;
+        return xmax != t.xid && !tm.isCommitted(xmax);
+    }
+
     //判断可见性
     public static boolean isVisible(TransactionManager tm,Transaction t,Entry e){
         if(t.level == 0){
@@ -1,23 +1,193 @@
 package com.ye.mydb.client;
 
 
+import com.ye.mydb.common.Error;
 import com.ye.mydb.transport.Package;
 import com.ye.mydb.transport.Packager;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
 public class Client {
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
     private RoundTripper rt;
 
     public Client(Packager packager) {
         this.rt = new RoundTripper(packager);
     }
 
+    //执行语句并返回完整结果，查询结果会被全部取回，每行以换行结尾
     public byte[] execute(byte[] stat) throws Exception {
-        Package pkg = new Package(stat, null);
-        Package resPkg = rt.roundTrip(pkg);
+        return execute(Package.query(stat, DEFAULT_FETCH_SIZE));
+    }
+
+    //执行预编译的语句，params 依次绑定到语句中的占位符
+    public byte[] execute(PreparedStatement ps, Object... params) throws Exception {
+        return execute(Package.execute(ps.getId(), DEFAULT_FETCH_SIZE, toStrings(params)));
+    }
+
+    private byte[] execute(Package reqPkg) throws Exception {
+        Package resPkg = rt.roundTrip(reqPkg);
         if(resPkg.getErr() != null) {
             throw resPkg.getErr();
         }
-        return resPkg.getData();
+        if(resPkg.getType() == Package.DATA) {
+            return resPkg.getData();
+        }
+        return drain(new RowIterator(rt, DEFAULT_FETCH_SIZE, resPkg));
+    }
+
+    /**
+     * 在服务端预编译语句，语句中的 ? 为参数占位符
+     * 之后每次执行只需发送语句编号和参数，服务端不再解析语句
+     */
+    public PreparedStatement prepare(byte[] stat) throws Exception {
+        Package resPkg = rt.roundTrip(Package.prepare(stat));
+        if(resPkg.getErr() != null) {
+            throw resPkg.getErr();
+        }
+        return new PreparedStatement(resPkg.getStatementId(), resPkg.getParamCount());
+    }
+
+    public void deallocate(PreparedStatement ps) throws Exception {
+        Package resPkg = rt.roundTrip(Package.deallocate(ps.getId()));
+        if(resPkg.getErr() != null) {
+            throw resPkg.getErr();
+        }
+    }
+
+    /**
+     * 批量导入：从 rows 中依次取出行，每 batchSize 行作为一个 LOAD 以流水线的方式发送，返回导入的行数
+     * 每行的值按字段顺序给出，可以是 Integer、Long 或 String
+     * 不在事务中时每一批单独提交，需要整体原子时先执行 begin，导入后再 commit
+     */
+    public long load(String tableName, Iterator<Object[]> rows, int batchSize) throws Exception {
+        Iterator<Package> batches = new Iterator<Package>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public Package next() {
+                List<Object[]> batch = new ArrayList<>(batchSize);
+                while(batch.size() < batchSize && rows.hasNext()) {
+                    batch.add(rows.next());
+                }
+                return Package.load(tableName, batch);
+            }
+        };
+        long[] count = new long[1];
+        Exception[] err = new Exception[1];
+        rt.pipeline(batches, resPkg -> {
+            if(resPkg.getErr() != null) {
+                if(err[0] == null) {
+                    err[0] = resPkg.getErr();
+                }
+            } else {
+                //响应为 "load N"
+                String res = new String(resPkg.getData());
+                count[0] += Long.parseLong(res.substring(res.indexOf(' ') + 1));
+            }
+        });
+        if(err[0] != null) {
+            throw err[0];
+        }
+        return count[0];
+    }
+
+    private String[] toStrings(Object[] params) {
+        String[] res = new String[params.length];
+        for(int i = 0; i < params.length; i ++) {
+            res[i] = String.valueOf(params[i]);
+        }
+        return res;
+    }
+
+    /**
+     * 以流水线的方式执行多条语句：全部发出后再依次读取结果，每条语句是一个独立的请求
+     * 查询结果尽量在一个响应中全部返回。所有结果都读取完后，若有语句出错则抛出第一个错误
+     * 服务端执行下一条语句时会关闭上一条的游标，因此除最后一条外，超过一帧上限的查询结果会作为错误返回
+     */
+    public List<byte[]> pipeline(List<byte[]> stats) throws Exception {
+        List<Package> pkgs = new ArrayList<>(stats.size());
+        for(byte[] stat : stats) {
+            pkgs.add(Package.query(stat, Integer.MAX_VALUE));
+        }
+        return toResults(rt.pipeline(pkgs));
+    }
+
+    /**
+     * 将多条语句放在一个请求中，由服务端依次执行，例如 begin、若干 insert 和 commit
+     * 某条语句出错时服务端不再执行之后的语句，并抛出该错误；出错前开启的事务仍需由调用者结束
+     */
+    public List<byte[]> executeBatch(List<byte[]> stats) throws Exception {
+        Package resPkg = rt.roundTrip(Package.batch(stats));
+        if(resPkg.getErr() != null) {
+            throw resPkg.getErr();
+        }
+        return toResults(resPkg.getResults());
+    }
+
+    private List<byte[]> toResults(List<Package> pkgs) throws Exception {
+        List<byte[]> results = new ArrayList<>(pkgs.size());
+        Exception err = null;
+        for(int i = 0; i < pkgs.size(); i ++) {
+            Package pkg = pkgs.get(i);
+            //结果没有一次返回完，且游标已被之后的语句关闭
+            boolean truncated = pkg.getType() == Package.ROWS && i < pkgs.size() - 1;
+            if(pkg.getErr() != null || truncated) {
+                if(err == null) {
+                    err = truncated ? Error.ResultTooLargeException : pkg.getErr();
+                }
+                results.add(null);
+            } else if(pkg.getType() == Package.DATA) {
+                results.add(pkg.getData());
+            } else {
+                results.add(drain(new RowIterator(rt, Integer.MAX_VALUE, pkg)));
+            }
+        }
+        if(err != null) {
+            throw err;
+        }
+        return results;
+    }
+
+    private byte[] drain(RowIterator rows) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while(true) {
+            Object[] row = rows.next();
+            if(row == null) break;
+            sb.append(RowIterator.printRow(row)).append("\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * 执行语句，并以迭代器的形式分批取回查询结果，每批 fetchSize 行
+     * 非查询语句的执行结果作为唯一一行中 result 列的值返回
+     */
+    public RowIterator query(byte[] stat, int fetchSize) throws Exception {
+        return query(Package.query(stat, fetchSize), fetchSize);
+    }
+
+    public RowIterator query(PreparedStatement ps, int fetchSize, Object... params) throws Exception {
+        return query(Package.execute(ps.getId(), fetchSize, toStrings(params)), fetchSize);
+    }
+
+    private RowIterator query(Package reqPkg, int fetchSize) throws Exception {
+        Package resPkg = rt.roundTrip(reqPkg);
+        if(resPkg.getErr() != null) {
+            throw resPkg.getErr();
+        }
+        if(resPkg.getType() == Package.DATA) {
+            Object[] row = new Object[]{new String(resPkg.getData())};
+            resPkg = Package.rows(new String[]{"result"}, Collections.singletonList(row), true);
+        }
+        return new RowIterator(rt, fetchSize, resPkg);
     }
 
     public void close() {
@@ -0,0 +1,20 @@
+package com.ye.mydb.client;
+
+//服务端预编译的语句，通过 Client.execute 或 Client.query 绑定参数执行
+public class PreparedStatement {
+    private int id;
+    private int paramCount;
+
+    PreparedStatement(int id, int paramCount) {
+        this.id = id;
+        this.paramCount = paramCount;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getParamCount() {
+        return paramCount;
+    }
+}
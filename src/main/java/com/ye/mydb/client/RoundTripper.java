@@ -4,7 +4,15 @@ package com.ye.mydb.client;
 import com.ye.mydb.transport.Package;
 import com.ye.mydb.transport.Packager;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
 public class RoundTripper {
+    //流水线中最多同时有这么多个请求未收到响应，避免双方都因发送缓冲区写满而阻塞
+    public static final int PIPELINE_WINDOW = 64;
+
     private Packager packager;
 
     public RoundTripper(Packager packager) {
@@ -16,6 +24,30 @@ public class RoundTripper {
         return packager.receive();
     }
 
+    //连续发送多个请求而不等待响应，按发送顺序返回每个请求的响应
+    public List<Package> pipeline(List<Package> pkgs) throws Exception {
+        List<Package> res = new ArrayList<>(pkgs.size());
+        pipeline(pkgs.iterator(), res::add);
+        return res;
+    }
+
+    //流式的流水线：请求在发送时才从 pkgs 中取出，每收到一个响应交给 onResponse
+    public void pipeline(Iterator<Package> pkgs, Consumer<Package> onResponse) throws Exception {
+        int inFlight = 0;
+        while(true) {
+            while(inFlight < PIPELINE_WINDOW && pkgs.hasNext()) {
+                packager.write(pkgs.next());
+                inFlight ++;
+            }
+            if(inFlight == 0) {
+                break;
+            }
+            packager.flush();
+            onResponse.accept(packager.receive());
+            inFlight --;
+        }
+    }
+
     public void close() throws Exception {
         packager.close();
     }
@@ -0,0 +1,75 @@
+package com.ye.mydb.client;
+
+import com.ye.mydb.transport.Package;
+
+import java.util.List;
+
+/**
+ * 查询结果的行迭代器
+ * 当前批次的行取完后，才向服务端 FETCH 下一批 fetchSize 行
+ */
+public class RowIterator {
+    private RoundTripper rt;
+    private int fetchSize;
+    private String[] columns;
+    private List<Object[]> rows;
+    private int pos;
+    private boolean last;
+
+    RowIterator(RoundTripper rt, int fetchSize, Package first) {
+        this.rt = rt;
+        this.fetchSize = fetchSize;
+        this.columns = first.getColumns();
+        accept(first);
+    }
+
+    public String[] getColumnNames() {
+        return columns;
+    }
+
+    //返回下一行各列的值（Integer、Long 或 String），没有更多行时返回 null
+    public Object[] next() throws Exception {
+        while(pos == rows.size()) {
+            if(last) {
+                return null;
+            }
+            accept(rt.roundTrip(Package.fetch(fetchSize)));
+        }
+        return rows.get(pos ++);
+    }
+
+    //提前结束迭代时，通知服务端关闭游标
+    public void close() throws Exception {
+        if(last) {
+            return;
+        }
+        last = true;
+        Package res = rt.roundTrip(Package.closeCursor());
+        if(res.getErr() != null) {
+            throw res.getErr();
+        }
+    }
+
+    private void accept(Package pkg) {
+        if(pkg.getErr() != null) {
+            last = true;
+            throw new RuntimeException(pkg.getErr().getMessage());
+        }
+        rows = pkg.getRows();
+        pos = 0;
+        last = pkg.getType() == Package.LAST_ROWS;
+    }
+
+    public static String printRow(Object[] row) {
+        StringBuilder sb = new StringBuilder("[");
+        for(int i = 0; i < row.length; i ++) {
+            sb.append(row[i]);
+            if(i == row.length-1) {
+                sb.append("]");
+            } else {
+                sb.append(", ");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -19,8 +19,12 @@ public class Shell {
                     break;
                 }
                 try {
-                    byte[] res = client.execute(statStr.getBytes());
-                    System.out.println(new String(res));
+                    RowIterator rows = client.query(statStr.getBytes(), Client.DEFAULT_FETCH_SIZE);
+                    while(true) {
+                        Object[] row = rows.next();
+                        if(row == null) break;
+                        System.out.println(RowIterator.printRow(row));
+                    }
                 } catch(Exception e) {
                     System.out.println(e.getMessage());
                 }
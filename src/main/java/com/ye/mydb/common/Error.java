@@ -30,6 +30,12 @@ public class Error {
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception DuplicateKeyException = new RuntimeException("Duplicate key!");
+    public static final Exception TooManyIndexFieldsException = new RuntimeException("Too many fields in index!");
+    public static final Exception InvalidAggregateException = new RuntimeException("Invalid aggregate!");
+    public static final Exception AmbiguousFieldException = new RuntimeException("Ambiguous field!");
+    public static final Exception UnsupportedJoinException = new RuntimeException("Unsupported join!");
+    public static final Exception IncompatibleFormatException = new RuntimeException("Incompatible database format!");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
@@ -37,10 +43,17 @@ public class Error {
 
     // transport
     public static final Exception InvalidPkgDataException = new RuntimeException("Invalid package data!");
+    public static final Exception ProtocolVersionException = new RuntimeException("Unsupported protocol version!");
+    public static final Exception PackageTooLargeException = new RuntimeException("Package too large!");
 
     // server
     public static final Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
     public static final Exception NoTransactionException = new RuntimeException("Not in transaction!");
+    public static final Exception NoCursorException = new RuntimeException("No open cursor!");
+    public static final Exception ParamCountException = new RuntimeException("Wrong number of parameters!");
+    public static final Exception StatementNotFoundException = new RuntimeException("Prepared statement not found!");
+    public static final Exception TooManyPreparedException = new RuntimeException("Too many prepared statements!");
+    public static final Exception ResultTooLargeException = new RuntimeException("Result too large for one package, fetch it with a cursor!");
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
@@ -1,35 +1,341 @@
 package com.ye.mydb.transport;
 
-import java.util.Arrays;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
-import com.google.common.primitives.Bytes;
 import com.ye.mydb.common.Error;
 
 
+/**
+ * 数据包编码格式：[Type][Body]
+ * DATA:  [0][Data]
+ * ERROR: [1][Message]
+ * QUERY: [2][FetchSize][Statement]
+ * FETCH: [3][FetchSize]
+ * CLOSE: [4]
+ * ROWS / LAST_ROWS: [5/6][ColumnCount][HasColumns]([Column1]...[ColumnN])[RowCount][Row1]...[RowM]
+ * 每行由 ColumnCount 个值组成，每个值为 [Tag][Value]：
+ * Tag 为 1 时是 4 字节 int32，为 2 时是 8 字节 int64，为 3 时是 [Length][UTF-8 bytes] 的字符串
+ * BATCH: [7][Count]([Length][Statement])...
+ * BATCH_RESULT: [8][Count]([Length][Package])...，每个 Package 为按本格式编码的单条语句结果
+ * PREPARE: [9][Statement]
+ * PREPARED: [10][StatementId][ParamCount]
+ * EXECUTE: [11][StatementId][FetchSize][Count]([Length][Param])...，参数为 UTF-8 字符串
+ * DEALLOCATE: [12][StatementId]
+ * LOAD: [13][TableName][ColumnCount][HasColumns][RowCount][Row1]...[RowM]，TableName 为 [Length][UTF-8 bytes]，其余与 ROWS 相同
+ */
 public class Encoder {
+    private static final byte TAG_INT32 = 1;
+    private static final byte TAG_INT64 = 2;
+    private static final byte TAG_STRING = 3;
 
-    public byte[] encode(Package pkg) {
-        if(pkg.getErr() != null) {
-            Exception err = pkg.getErr();
-            String msg = "Intern server error!";
-            if(err.getMessage() != null) {
-                msg = err.getMessage();
+    public byte[] encode(Package pkg) throws Exception {
+        switch(pkg.getType()) {
+            case Package.ERROR:
+                Exception err = pkg.getErr();
+                String msg = "Intern server error!";
+                if(err.getMessage() != null) {
+                    msg = err.getMessage();
+                }
+                return withType(Package.ERROR, msg.getBytes(StandardCharsets.UTF_8));
+            case Package.QUERY:
+                return ByteBuffer.allocate(5 + pkg.getData().length)
+                    .put(Package.QUERY).putInt(pkg.getFetchSize()).put(pkg.getData()).array();
+            case Package.FETCH:
+                return ByteBuffer.allocate(5).put(Package.FETCH).putInt(pkg.getFetchSize()).array();
+            case Package.CLOSE:
+                return new byte[]{Package.CLOSE};
+            case Package.ROWS:
+            case Package.LAST_ROWS:
+            case Package.LOAD:
+                return encodeRows(pkg);
+            case Package.PREPARE:
+                return withType(Package.PREPARE, pkg.getData());
+            case Package.PREPARED:
+                return ByteBuffer.allocate(9).put(Package.PREPARED)
+                    .putInt(pkg.getStatementId()).putInt(pkg.getParamCount()).array();
+            case Package.EXECUTE:
+                List<byte[]> params = new ArrayList<>(pkg.getParams().length);
+                for(String param : pkg.getParams()) {
+                    params.add(param.getBytes(StandardCharsets.UTF_8));
+                }
+                byte[] list = encodeList(Package.EXECUTE, params);
+                return ByteBuffer.allocate(8 + list.length).put(Package.EXECUTE)
+                    .putInt(pkg.getStatementId()).putInt(pkg.getFetchSize()).put(list, 1, list.length - 1).array();
+            case Package.DEALLOCATE:
+                return ByteBuffer.allocate(5).put(Package.DEALLOCATE).putInt(pkg.getStatementId()).array();
+            case Package.BATCH:
+                return encodeList(Package.BATCH, pkg.getStats());
+            case Package.BATCH_RESULT:
+                List<byte[]> results = new ArrayList<>(pkg.getResults().size());
+                for(Package res : pkg.getResults()) {
+                    results.add(encode(res));
+                }
+                return encodeList(Package.BATCH_RESULT, results);
+            default:
+                return withType(Package.DATA, pkg.getData());
+        }
+    }
+
+    private byte[] withType(byte type, byte[] data) {
+        if(data == null) {
+            data = new byte[0];
+        }
+        byte[] raw = new byte[1 + data.length];
+        raw[0] = type;
+        System.arraycopy(data, 0, raw, 1, data.length);
+        return raw;
+    }
+
+    private byte[] encodeRows(Package pkg) throws Exception {
+        List<Object[]> rows = pkg.getRows();
+        String[] columns = pkg.getColumns();
+        int columnCount = columns != null ? columns.length : rows.isEmpty() ? 0 : rows.get(0).length;
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64 + rows.size() * columnCount * 9);
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeByte(pkg.getType());
+        if(pkg.getType() == Package.LOAD) {
+            writeString(out, pkg.getTableName());
+        }
+        out.writeInt(columnCount);
+        out.writeBoolean(columns != null);
+        if(columns != null) {
+            for(String column : columns) {
+                writeString(out, column);
+            }
+        }
+        out.writeInt(rows.size());
+        for(Object[] row : rows) {
+            if(row.length != columnCount) {
+                throw Error.InvalidValuesException;
+            }
+            for(Object v : row) {
+                if(v instanceof Integer) {
+                    out.writeByte(TAG_INT32);
+                    out.writeInt((Integer)v);
+                } else if(v instanceof Long) {
+                    out.writeByte(TAG_INT64);
+                    out.writeLong((Long)v);
+                } else {
+                    out.writeByte(TAG_STRING);
+                    writeString(out, (String)v);
+                }
+            }
+        }
+        return buf.toByteArray();
+    }
+
+    //ROWS 编码后除行以外的字节数：类型、列数、列名和行数
+    public static int headerSize(String[] columns) {
+        int size = 10;
+        if(columns != null) {
+            for(String column : columns) {
+                size += 4 + utf8Length(column);
             }
-            return Bytes.concat(new byte[]{1}, msg.getBytes());
-        } else {
-            return Bytes.concat(new byte[]{0}, pkg.getData());
         }
+        return size;
+    }
+
+    //一行编码后的字节数
+    public static int rowSize(Object[] row) {
+        int size = 0;
+        for(Object v : row) {
+            if(v instanceof Integer) {
+                size += 5;
+            } else if(v instanceof Long) {
+                size += 9;
+            } else {
+                size += 5 + utf8Length((String)v);
+            }
+        }
+        return size;
+    }
+
+    private static int utf8Length(String str) {
+        int length = 0;
+        for(int i = 0; i < str.length(); i ++) {
+            char c = str.charAt(i);
+            if(c < 0x80) {
+                length += 1;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i ++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private byte[] encodeList(byte type, List<byte[]> items) throws IOException {
+        int size = 5;
+        for(byte[] item : items) {
+            size += 4 + item.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size).put(type).putInt(items.size());
+        for(byte[] item : items) {
+            buf.putInt(item.length).put(item);
+        }
+        return buf.array();
+    }
+
+    private void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] raw = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(raw.length);
+        out.write(raw);
     }
 
     public Package decode(byte[] data) throws Exception {
         if(data.length < 1) {
             throw Error.InvalidPkgDataException;
         }
-        if(data[0] == 0) {
-            return new Package(Arrays.copyOfRange(data, 1, data.length), null);
-        } else if(data[0] == 1) {
-            return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
-        } else {
+        ByteBuffer buf = ByteBuffer.wrap(data, 1, data.length - 1);
+        switch(data[0]) {
+            case Package.DATA:
+                return new Package(rest(buf), null);
+            case Package.ERROR:
+                return new Package(null, new RuntimeException(new String(rest(buf), StandardCharsets.UTF_8)));
+            case Package.QUERY:
+                checkRemaining(buf, 4);
+                int fetchSize = buf.getInt();
+                return Package.query(rest(buf), fetchSize);
+            case Package.FETCH:
+                checkRemaining(buf, 4);
+                return Package.fetch(buf.getInt());
+            case Package.CLOSE:
+                return Package.closeCursor();
+            case Package.ROWS:
+            case Package.LAST_ROWS:
+                return decodeRows(data[0], buf);
+            case Package.LOAD:
+                String tableName = readString(buf);
+                return Package.load(tableName, decodeRows(Package.LAST_ROWS, buf).getRows());
+            case Package.PREPARE:
+                return Package.prepare(rest(buf));
+            case Package.PREPARED:
+                checkRemaining(buf, 8);
+                return Package.prepared(buf.getInt(), buf.getInt());
+            case Package.EXECUTE:
+                checkRemaining(buf, 8);
+                int statementId = buf.getInt();
+                fetchSize = buf.getInt();
+                List<byte[]> raws = decodeList(buf);
+                String[] params = new String[raws.size()];
+                for(int i = 0; i < params.length; i ++) {
+                    params[i] = new String(raws.get(i), StandardCharsets.UTF_8);
+                }
+                return Package.execute(statementId, fetchSize, params);
+            case Package.DEALLOCATE:
+                checkRemaining(buf, 4);
+                return Package.deallocate(buf.getInt());
+            case Package.BATCH:
+                return Package.batch(decodeList(buf));
+            case Package.BATCH_RESULT:
+                raws = decodeList(buf);
+                List<Package> results = new ArrayList<>(raws.size());
+                for(byte[] raw : raws) {
+                    results.add(decode(raw));
+                }
+                return Package.batchResult(results);
+            default:
+                throw Error.InvalidPkgDataException;
+        }
+    }
+
+    private Package decodeRows(byte type, ByteBuffer buf) throws Exception {
+        checkRemaining(buf, 5);
+        int columnCount = buf.getInt();
+        if(columnCount < 0) {
+            throw Error.InvalidPkgDataException;
+        }
+        String[] columns = null;
+        if(buf.get() != 0) {
+            //每个列名至少占 4 字节的长度，先按剩余字节数检查列数，再分配数组
+            checkRemaining(buf, 4L * columnCount);
+            columns = new String[columnCount];
+            for(int i = 0; i < columnCount; i ++) {
+                columns[i] = readString(buf);
+            }
+        }
+        checkRemaining(buf, 4);
+        int rowCount = buf.getInt();
+        if(rowCount < 0 || (rowCount > 0 && columnCount == 0)) {
+            throw Error.InvalidPkgDataException;
+        }
+        //每个值至少占 5 字节，行数和列数都要与剩余字节数相符，避免很小的帧引发巨大的分配
+        if(rowCount > 0) {
+            checkRemaining(buf, columnCount);
+            checkRemaining(buf, 5L * rowCount * columnCount);
+        }
+        List<Object[]> rows = new ArrayList<>(rowCount);
+        for(int i = 0; i < rowCount; i ++) {
+            Object[] row = new Object[columnCount];
+            for(int j = 0; j < columnCount; j ++) {
+                checkRemaining(buf, 1);
+                switch(buf.get()) {
+                    case TAG_INT32:
+                        checkRemaining(buf, 4);
+                        row[j] = buf.getInt();
+                        break;
+                    case TAG_INT64:
+                        checkRemaining(buf, 8);
+                        row[j] = buf.getLong();
+                        break;
+                    case TAG_STRING:
+                        row[j] = readString(buf);
+                        break;
+                    default:
+                        throw Error.InvalidPkgDataException;
+                }
+            }
+            rows.add(row);
+        }
+        return Package.rows(columns, rows, type == Package.LAST_ROWS);
+    }
+
+    private List<byte[]> decodeList(ByteBuffer buf) throws Exception {
+        checkRemaining(buf, 4);
+        int count = buf.getInt();
+        if(count < 0) {
+            throw Error.InvalidPkgDataException;
+        }
+        List<byte[]> items = new ArrayList<>(Math.min(count, buf.remaining()));
+        for(int i = 0; i < count; i ++) {
+            checkRemaining(buf, 4);
+            int length = buf.getInt();
+            checkRemaining(buf, length);
+            byte[] item = new byte[length];
+            buf.get(item);
+            items.add(item);
+        }
+        return items;
+    }
+
+    private String readString(ByteBuffer buf) throws Exception {
+        checkRemaining(buf, 4);
+        int length = buf.getInt();
+        checkRemaining(buf, length);
+        String str = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return str;
+    }
+
+    private byte[] rest(ByteBuffer buf) {
+        byte[] raw = new byte[buf.remaining()];
+        buf.get(raw);
+        return raw;
+    }
+
+    private void checkRemaining(ByteBuffer buf, long n) throws Exception {
+        if(n < 0 || buf.remaining() < n) {
             throw Error.InvalidPkgDataException;
         }
     }
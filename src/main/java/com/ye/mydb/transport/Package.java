@@ -1,14 +1,135 @@
 package com.ye.mydb.transport;
 
+import java.util.List;
+
+/**
+ * 客户端与服务端之间传输的数据包
+ * DATA 为语句或完整的执行结果，ERROR 为错误信息
+ * 查询结果以游标的形式分批拉取：客户端发送 QUERY（带 fetchSize），服务端返回第一批 ROWS，
+ * 客户端再通过 FETCH 拉取下一批，直到收到 LAST_ROWS；中途不再需要时发送 CLOSE 关闭游标
+ * 服务端只在收到 FETCH 后才计算下一批，因此两端同时在内存中的最多只有一批数据
+ * 每一行是按列排列的值（Integer、Long 或 String），结果的第一批还带有列名
+ * BATCH 携带多条语句，服务端依次执行，在一个 BATCH_RESULT 中返回每条语句的结果：
+ * DATA、ERROR 或包含全部行的 LAST_ROWS。遇到第一个错误即停止，之后的语句不再执行
+ * 每个响应都不超过一帧的上限：ROWS 按字节数截断为较小的批次，BATCH 中放不下的查询结果作为错误返回
+ * PREPARE 在服务端预编译语句，返回 PREPARED（语句编号和参数个数）；
+ * EXECUTE 按编号和参数执行该语句，响应与 QUERY 相同；DEALLOCATE 释放预编译的语句
+ * LOAD 携带一批要导入某张表的行，不经过语句解析直接写入，大量数据可以分成多个 LOAD 以流水线的方式发送
+ */
 public class Package {
+    public static final byte DATA = 0;
+    public static final byte ERROR = 1;
+    public static final byte QUERY = 2;
+    public static final byte FETCH = 3;
+    public static final byte CLOSE = 4;
+    public static final byte ROWS = 5;
+    public static final byte LAST_ROWS = 6;
+    public static final byte BATCH = 7;
+    public static final byte BATCH_RESULT = 8;
+    public static final byte PREPARE = 9;
+    public static final byte PREPARED = 10;
+    public static final byte EXECUTE = 11;
+    public static final byte DEALLOCATE = 12;
+    public static final byte LOAD = 13;
+
+    byte type;
     byte[] data;
     Exception err;
+    int fetchSize;
+    String[] columns;
+    List<Object[]> rows;
+    List<byte[]> stats;
+    List<Package> results;
+    int statementId;
+    int paramCount;
+    String[] params;
+    String tableName;
 
     public Package(byte[] data, Exception err) {
+        this.type = err == null ? DATA : ERROR;
         this.data = data;
         this.err = err;
     }
 
+    Package(byte type) {
+        this.type = type;
+    }
+
+    public static Package query(byte[] stat, int fetchSize) {
+        Package pkg = new Package(QUERY);
+        pkg.data = stat;
+        pkg.fetchSize = fetchSize;
+        return pkg;
+    }
+
+    public static Package fetch(int fetchSize) {
+        Package pkg = new Package(FETCH);
+        pkg.fetchSize = fetchSize;
+        return pkg;
+    }
+
+    public static Package closeCursor() {
+        return new Package(CLOSE);
+    }
+
+    //columns 只在结果的第一批中给出，之后的批次为 null
+    public static Package rows(String[] columns, List<Object[]> rows, boolean last) {
+        Package pkg = new Package(last ? LAST_ROWS : ROWS);
+        pkg.columns = columns;
+        pkg.rows = rows;
+        return pkg;
+    }
+
+    public static Package batch(List<byte[]> stats) {
+        Package pkg = new Package(BATCH);
+        pkg.stats = stats;
+        return pkg;
+    }
+
+    public static Package batchResult(List<Package> results) {
+        Package pkg = new Package(BATCH_RESULT);
+        pkg.results = results;
+        return pkg;
+    }
+
+    public static Package prepare(byte[] stat) {
+        Package pkg = new Package(PREPARE);
+        pkg.data = stat;
+        return pkg;
+    }
+
+    public static Package prepared(int statementId, int paramCount) {
+        Package pkg = new Package(PREPARED);
+        pkg.statementId = statementId;
+        pkg.paramCount = paramCount;
+        return pkg;
+    }
+
+    public static Package execute(int statementId, int fetchSize, String[] params) {
+        Package pkg = new Package(EXECUTE);
+        pkg.statementId = statementId;
+        pkg.fetchSize = fetchSize;
+        pkg.params = params;
+        return pkg;
+    }
+
+    public static Package deallocate(int statementId) {
+        Package pkg = new Package(DEALLOCATE);
+        pkg.statementId = statementId;
+        return pkg;
+    }
+
+    public static Package load(String tableName, List<Object[]> rows) {
+        Package pkg = new Package(LOAD);
+        pkg.tableName = tableName;
+        pkg.rows = rows;
+        return pkg;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -16,4 +137,40 @@ public class Package {
     public Exception getErr() {
         return err;
     }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    public List<Object[]> getRows() {
+        return rows;
+    }
+
+    public List<byte[]> getStats() {
+        return stats;
+    }
+
+    public List<Package> getResults() {
+        return results;
+    }
+
+    public int getStatementId() {
+        return statementId;
+    }
+
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    public String[] getParams() {
+        return params;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
 }
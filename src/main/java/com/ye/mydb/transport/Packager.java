@@ -14,6 +14,18 @@ public class Packager {
         transpoter.send(data);
     }
 
+    public void write(Package pkg) throws Exception {
+        transpoter.write(encoder.encode(pkg));
+    }
+
+    public void flush() throws Exception {
+        transpoter.flush();
+    }
+
+    public boolean hasPendingInput() throws Exception {
+        return transpoter.hasPendingInput();
+    }
+
     public Package receive() throws Exception {
         byte[] data = transpoter.receive();
         return encoder.decode(data);
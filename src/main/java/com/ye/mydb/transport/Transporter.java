@@ -1,52 +1,96 @@
 package com.ye.mydb.transport;
 
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
+import com.ye.mydb.common.Error;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
 
 
+/**
+ * 二进制分帧传输
+ * 连接建立后先握手：客户端发送 [Magic][Version]，服务端支持该版本时回复 [Version]，否则回复 0 并断开
+ * 之后每个数据包为一帧：[Length][Data]，Length 为 4 字节，标识 Data 的字节数
+ * 一端可以连续发送多帧而不等待响应（流水线），对端按顺序处理并按顺序回复
+ */
 public class Transporter {
+    public static final int MAGIC = 0x4D594442;     //"MYDB"
+    public static final int VERSION = 1;
+    //一帧 Data 的最大字节数，超过时接收端拒绝并断开连接，因此发送端也不会发出更大的帧
+    public static final int MAX_FRAME_SIZE = 1 << 26;
+
     private Socket socket;
-    private BufferedReader reader;
-    private BufferedWriter writer;
+    private DataInputStream in;
+    private DataOutputStream out;
 
     public Transporter(Socket socket) throws IOException {
         this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    //客户端发起握手
+    public void handshake() throws Exception {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+        if(in.readInt() != VERSION) {
+            throw Error.ProtocolVersionException;
+        }
+    }
+
+    //服务端响应握手
+    public void acceptHandshake() throws Exception {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if(magic != MAGIC || version != VERSION) {
+            out.writeInt(0);
+            out.flush();
+            throw Error.ProtocolVersionException;
+        }
+        out.writeInt(VERSION);
+        out.flush();
     }
 
     public void send(byte[] data) throws Exception {
-        String raw = hexEncode(data);
-        writer.write(raw);
-        writer.flush();
+        write(data);
+        flush();
     }
 
-    public byte[] receive() throws Exception {
-        String line = reader.readLine();
-        if(line == null) {
-            close();
+    //只写入缓冲区，不立即发送，用于流水线中连续发送多个数据包
+    public void write(byte[] data) throws Exception {
+        if(data.length > MAX_FRAME_SIZE) {
+            throw Error.PackageTooLargeException;
         }
-        return hexDecode(line);
+        out.writeInt(data.length);
+        out.write(data);
     }
 
-    public void close() throws IOException {
-        writer.close();
-        reader.close();
-        socket.close();
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    //对端是否已经发来了尚未读取的数据
+    public boolean hasPendingInput() throws IOException {
+        return in.available() > 0;
     }
 
-    private String hexEncode(byte[] buf) {
-        return Hex.encodeHexString(buf)+"\n";
+    public byte[] receive() throws Exception {
+        int length = in.readInt();
+        if(length < 0 || length > MAX_FRAME_SIZE) {
+            throw Error.InvalidPkgDataException;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
     }
 
-    private byte[] hexDecode(String buf) throws DecoderException {
-        return Hex.decodeHex(buf.toCharArray());
+    public void close() throws IOException {
+        out.close();
+        in.close();
+        socket.close();
     }
 }
@@ -0,0 +1,148 @@
+package com.ye.mydb.backend.dm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ye.mydb.backend.common.SubArray;
+import com.ye.mydb.backend.dm.dataItem.DataItem;
+import com.ye.mydb.backend.dm.pageCache.PageCache;
+import com.ye.mydb.backend.tm.TransactionManager;
+
+public class DataManagerTest {
+    //缓存只有十几页，批量插入的页在崩溃前有的已被换出写回，有的只在内存中
+    private static final long MEM = PageCache.PAGE_SIZE * 16L;
+    private static final long OWNER = 42;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static List<byte[]> datas(int count, int size, int seed) {
+        List<byte[]> datas = new ArrayList<>(count);
+        for(int i = 0; i < count; i ++) {
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte)(seed + i));
+            datas.add(data);
+        }
+        return datas;
+    }
+
+    private static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            return null;
+        }
+        try {
+            SubArray sa = di.data();
+            return Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+        } finally {
+            di.release();
+        }
+    }
+
+    private static int pages(long[] uids) {
+        Set<Long> pages = new HashSet<>();
+        for(long uid : uids) {
+            pages.add(uid >>> 32);
+        }
+        return pages.size();
+    }
+
+    @Test
+    public void testBatchInsertAcrossPages() throws Exception {
+        String path = new File(tmp.getRoot(), "batch").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+        long xid = tm.begin();
+        List<byte[]> datas = datas(60, 1000, 0);
+        long[] uids = dm.insert(xid, OWNER, datas);
+        tm.commit(xid);
+        assertTrue(pages(uids) > 1);
+        for(int i = 0; i < uids.length; i ++) {
+            assertArrayEquals(datas.get(i), read(dm, uids[i]));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 不关闭数据库直接重新打开，模拟崩溃：已提交事务的批量插入被重做，仍在进行的事务的批量插入被撤销
+     * 之后的插入不会覆盖恢复出的数据，正常关闭再打开后数据仍然完整
+     */
+    @Test
+    public void testBatchInsertRecover() throws Exception {
+        String path = new File(tmp.getRoot(), "recover").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+
+        long committed = tm.begin();
+        List<byte[]> committedDatas = datas(60, 1000, 0);
+        long[] committedUids = dm.insert(committed, OWNER, committedDatas);
+        tm.commit(committed);
+
+        long active = tm.begin();
+        List<byte[]> activeDatas = datas(60, 1000, 100);
+        long[] activeUids = dm.insert(active, OWNER, activeDatas);
+        assertTrue(pages(committedUids) > 1);
+        assertTrue(pages(activeUids) > 1);
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm);
+        for(int i = 0; i < committedUids.length; i ++) {
+            assertArrayEquals(committedDatas.get(i), read(dm, committedUids[i]));
+        }
+        for(long uid : activeUids) {
+            assertNull(read(dm, uid));
+        }
+        assertTrue(tm.isAborted(active));
+
+        long xid = tm.begin();
+        List<byte[]> moreDatas = datas(30, 1000, 50);
+        long[] moreUids = dm.insert(xid, OWNER, moreDatas);
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm);
+        for(int i = 0; i < committedUids.length; i ++) {
+            assertArrayEquals(committedDatas.get(i), read(dm, committedUids[i]));
+        }
+        for(int i = 0; i < moreUids.length; i ++) {
+            assertArrayEquals(moreDatas.get(i), read(dm, moreUids[i]));
+        }
+        for(long uid : activeUids) {
+            assertNull(read(dm, uid));
+        }
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testBatchAndSingleInsertsShareOwnerPages() throws Exception {
+        String path = new File(tmp.getRoot(), "mixed").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+        long xid = tm.begin();
+        long single = dm.insert(xid, OWNER, new byte[]{1, 2, 3});
+        long[] uids = dm.insert(xid, OWNER, datas(5, 10, 7));
+        tm.commit(xid);
+        assertEquals(single >>> 32, uids[0] >>> 32);
+        assertNotNull(read(dm, single));
+        dm.close();
+        tm.close();
+    }
+}
@@ -0,0 +1,136 @@
+package com.ye.mydb.backend.dm.pageIndex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ye.mydb.backend.dm.page.PageX;
+import com.ye.mydb.backend.dm.pageCache.PageCache;
+
+public class PageIndexTest {
+    private static final long TABLE = 1001;
+    private static final long INDEX = 2002;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String path;
+
+    @Before
+    public void setUp() {
+        path = new File(tmp.getRoot(), "pi").getPath();
+    }
+
+    //取出 owner 所有可选的页，页号 -> 空闲空间
+    private static Map<Integer, Integer> drain(PageIndex pIndex, long owner) {
+        Map<Integer, Integer> pages = new HashMap<>();
+        PageInfo pi;
+        while((pi = pIndex.select(owner, 0)) != null) {
+            assertNull(pages.put(pi.pgno, pi.freeSpace));
+        }
+        return pages;
+    }
+
+    /**
+     * 页 2 为共享页，3-6 属于 TABLE，7-8 属于 INDEX，9 为共享页
+     * 页 4 已经被取出（记为没有空闲空间），页 5 的空闲空间不足阈值
+     */
+    private PageIndex build() {
+        PageIndex pIndex = new PageIndex();
+        pIndex.addExtent(PageIndex.SHARED, 2, 1, 3000);
+        pIndex.addExtent(TABLE, 3, 1, PageX.MAX_FREE_SPACE);
+        pIndex.addExtent(TABLE, 4, 3, PageX.MAX_FREE_SPACE);
+        pIndex.addExtent(INDEX, 7, 2, 5000);
+        pIndex.addExtent(PageIndex.SHARED, 9, 1, 1200);
+        assertEquals(4, drain(pIndex, TABLE).size());
+        pIndex.add(3, PageX.MAX_FREE_SPACE);
+        pIndex.add(5, 10);
+        pIndex.add(6, PageX.MAX_FREE_SPACE);
+        return pIndex;
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        PageIndex saved = build();
+        saved.save(path, 9);
+        assertTrue(new File(path + PageIndex.FSM_SUFFIX).exists());
+
+        PageIndex loaded = new PageIndex();
+        assertTrue(loaded.load(path, 9));
+        assertFalse(new File(path + PageIndex.FSM_SUFFIX).exists());
+
+        for(int pgno = 2; pgno <= 9; pgno ++) {
+            assertEquals(saved.owner(pgno), loaded.owner(pgno));
+        }
+        assertEquals(TABLE, loaded.owner(6));
+        assertEquals(INDEX, loaded.owner(8));
+        assertEquals(PageIndex.SHARED, loaded.owner(9));
+        assertEquals(saved.extentPages(TABLE), loaded.extentPages(TABLE));
+        assertEquals(saved.extentPages(INDEX), loaded.extentPages(INDEX));
+
+        for(long owner : new long[]{PageIndex.SHARED, TABLE, INDEX}) {
+            assertEquals(drain(saved, owner), drain(loaded, owner));
+        }
+    }
+
+    //保存时被取出或空闲空间不足阈值的页，读入后不可选
+    @Test
+    public void testTakenPagesAreNotSelectable() {
+        build().save(path, 9);
+        PageIndex loaded = new PageIndex();
+        assertTrue(loaded.load(path, 9));
+        Map<Integer, Integer> table = drain(loaded, TABLE);
+        assertEquals(2, table.size());
+        assertEquals(PageX.MAX_FREE_SPACE, (int)table.get(3));
+        assertEquals(PageX.MAX_FREE_SPACE, (int)table.get(6));
+        PageInfo pi = loaded.select(INDEX, 4000);
+        assertNotNull(pi);
+        assertEquals(5000, pi.freeSpace);
+    }
+
+    @Test
+    public void testLoadRejectsOtherPageNumber() {
+        build().save(path, 9);
+        PageIndex loaded = new PageIndex();
+        assertFalse(loaded.load(path, 10));
+        //文件已经过期，读取后删除
+        assertFalse(new File(path + PageIndex.FSM_SUFFIX).exists());
+        assertEquals(PageIndex.SHARED, loaded.owner(3));
+    }
+
+    @Test
+    public void testLoadWithoutFile() {
+        assertFalse(new PageIndex().load(path, 9));
+    }
+
+    @Test
+    public void testLoadRejectsTruncatedFile() throws Exception {
+        build().save(path, 9);
+        File f = new File(path + PageIndex.FSM_SUFFIX);
+        byte[] raw = Files.readAllBytes(f.toPath());
+        Files.write(f.toPath(), Arrays.copyOf(raw, raw.length - 3));
+        assertFalse(new PageIndex().load(path, 9));
+    }
+
+    //保存时写到一半留下的临时文件在读取时删除
+    @Test
+    public void testLoadRemovesTempFile() throws Exception {
+        File tmpFile = new File(path + PageIndex.FSM_TMP_SUFFIX);
+        Files.write(tmpFile.toPath(), new byte[PageCache.PAGE_SIZE]);
+        assertFalse(new PageIndex().load(path, 9));
+        assertFalse(tmpFile.exists());
+    }
+}
@@ -0,0 +1,223 @@
+package com.ye.mydb.backend.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ye.mydb.backend.dm.DataManager;
+import com.ye.mydb.backend.tm.TransactionManager;
+import com.ye.mydb.common.Error;
+
+public class BPlusTreeTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+
+    @Before
+    public void setUp() {
+        String path = new File(tmp.getRoot(), "bt").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 23, tm);
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    //先读取一次统计信息，之后的插入增量维护，条目数和不同 key 的个数是精确值
+    private BPlusTree create(int keyWidth) throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, keyWidth), dm);
+        assertEquals(0, tree.getEntries());
+        return tree;
+    }
+
+    //按顺序读出游标中的 UID，检查依次为 first, first+1, ...，返回个数
+    private static int checkSequence(RangeCursor cursor, long first) throws Exception {
+        int n = 0;
+        long uid;
+        while((uid = cursor.next()) != 0) {
+            assertEquals(first + n, uid);
+            n ++;
+        }
+        return n;
+    }
+
+    @Test
+    public void testInsertAllSplitsLeaves() throws Exception {
+        BPlusTree tree = create(1);
+        int n = 5000;
+        long[] keys = new long[n];
+        long[] uids = new long[n];
+        for(int i = 0; i < n; i ++) {
+            keys[i] = i * 2L;
+            uids[i] = i + 1;
+        }
+        tree.insertAll(keys, uids);
+
+        assertEquals(n, checkSequence(tree.searchAll(), 1));
+        assertEquals(50, checkSequence(tree.searchRange(200, 299), 101));
+        assertEquals(0, tree.search(201).next());
+        assertEquals(n, tree.getEntries());
+        assertEquals(n, tree.getDistinct());
+    }
+
+    //批量插入的键落在单条插入已有的键之间
+    @Test
+    public void testInsertAllInterleavesWithInsert() throws Exception {
+        BPlusTree tree = create(1);
+        int n = 2000;
+        for(int i = 1; i < n; i += 2) {
+            tree.insert(i, i + 1);
+        }
+        long[] keys = new long[n / 2];
+        long[] uids = new long[n / 2];
+        for(int i = 0; i < n / 2; i ++) {
+            keys[i] = i * 2L;
+            uids[i] = i * 2L + 1;
+        }
+        tree.insertAll(keys, uids);
+
+        assertEquals(n, checkSequence(tree.searchAll(), 1));
+        assertEquals(n, tree.getEntries());
+    }
+
+    //多列的键按字典序排列，第一列相同的条目按第二列排列
+    @Test
+    public void testInsertAllCompositeKeys() throws Exception {
+        BPlusTree tree = create(2);
+        int n = 3000;
+        long[][] keys = new long[n][];
+        long[] uids = new long[n];
+        for(int i = 0; i < n; i ++) {
+            keys[i] = new long[]{i / 10, i % 10};
+            uids[i] = i + 1;
+        }
+        tree.insertAll(keys, uids);
+
+        assertEquals(n, checkSequence(tree.searchAll(), 1));
+        assertEquals(10, checkSequence(tree.searchRange(new long[]{42, Long.MIN_VALUE}, new long[]{42, Long.MAX_VALUE}), 421));
+        RangeCursor cursor = tree.searchRange(new long[]{7, 3}, new long[]{7, 3}).withKeys();
+        assertEquals(74, cursor.next());
+        assertEquals(7, cursor.key(0));
+        assertEquals(3, cursor.key(1));
+        assertEquals(0, cursor.next());
+        assertEquals(n, tree.getDistinct());
+    }
+
+    //第一个 long 相同即为同一个键，已有条目 uid 在 live 中时才占用该键
+    @Test
+    public void testInsertUnique() throws Exception {
+        BPlusTree tree = create(2);
+        Set<Long> live = new HashSet<>();
+        BPlusTree.UniqueCheck check = live::contains;
+        tree.insertUnique(new long[]{5, 1}, 1, 10, check);
+        live.add(10L);
+        tree.insertUnique(new long[]{6, 1}, 1, 11, check);
+        live.add(11L);
+
+        Exception e = assertThrows(Exception.class, () -> tree.insertUnique(new long[]{5, 2}, 1, 12, check));
+        assertSame(Error.DuplicateKeyException, e);
+
+        //已有条目不再占用该键时可以插入
+        live.remove(10L);
+        tree.insertUnique(new long[]{5, 3}, 1, 13, check);
+        RangeCursor cursor = tree.searchRange(new long[]{5, Long.MIN_VALUE}, new long[]{5, Long.MAX_VALUE});
+        assertEquals(10, cursor.next());
+        assertEquals(13, cursor.next());
+        assertEquals(0, cursor.next());
+    }
+
+    //键相同的条目分布在多个叶子中时，向右检查所有前缀相同的条目
+    @Test
+    public void testInsertUniqueChecksAcrossLeaves() throws Exception {
+        BPlusTree tree = create(2);
+        int n = 500;
+        long[][] keys = new long[n][];
+        long[] uids = new long[n];
+        for(int i = 0; i < n; i ++) {
+            keys[i] = new long[]{7, i};
+            uids[i] = i + 1;
+        }
+        tree.insertAll(keys, uids);
+        Exception e = assertThrows(Exception.class,
+            () -> tree.insertUnique(new long[]{7, 1000}, 1, 9999, uid -> uid == n));
+        assertSame(Error.DuplicateKeyException, e);
+        tree.insertUnique(new long[]{8, 0}, 1, 9999, uid -> true);
+    }
+
+    /**
+     * 多个线程同时插入相同的键，每个键恰好有一次插入成功，其余都因键重复被拒绝
+     * 每个线程还各自插入互不相同的键，这些插入都应成功
+     */
+    @Test
+    public void testConcurrentInsertUniqueSameKey() throws Exception {
+        BPlusTree tree = create(2);
+        int threads = 8, keys = 300;
+        AtomicIntegerArray wins = new AtomicIntegerArray(keys);
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicLong nextUid = new AtomicLong(1);
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        CyclicBarrier start = new CyclicBarrier(threads);
+        Thread[] ts = new Thread[threads];
+        for(int t = 0; t < threads; t ++) {
+            int id = t;
+            ts[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    for(int k = 0; k < keys; k ++) {
+                        try {
+                            tree.insertUnique(new long[]{k, id}, 1, nextUid.getAndIncrement(), uid -> true);
+                            wins.incrementAndGet(k);
+                        } catch(Exception e) {
+                            if(e != Error.DuplicateKeyException) {
+                                throw e;
+                            }
+                            rejected.incrementAndGet();
+                        }
+                        tree.insertUnique(new long[]{1000000 + k * threads + id, 0}, 1, nextUid.getAndIncrement(), uid -> true);
+                    }
+                } catch(Throwable e) {
+                    errors.add(e);
+                }
+            });
+            ts[t].start();
+        }
+        for(Thread th : ts) {
+            th.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        for(int k = 0; k < keys; k ++) {
+            assertEquals(1, wins.get(k));
+        }
+        assertEquals(keys * (threads - 1), rejected.get());
+
+        int entries = 0;
+        RangeCursor cursor = tree.searchAll();
+        while(cursor.next() != 0) {
+            entries ++;
+        }
+        assertEquals(keys + keys * threads, entries);
+        assertEquals(entries, tree.getEntries());
+    }
+}
@@ -0,0 +1,79 @@
+package com.ye.mydb.backend.tbm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ye.mydb.backend.common.SubArray;
+import com.ye.mydb.backend.utils.Parser;
+import com.ye.mydb.common.Error;
+
+public class RowCodecTest {
+    private static final long TABLE_UID = 0x123456789L;
+
+    private static RowCodec codec(String... types) {
+        List<Field> fields = new ArrayList<>();
+        for(int i = 0; i < types.length; i ++) {
+            fields.add(new Field(null, "f" + i, types[i], 0));
+        }
+        return new RowCodec(Parser.long2Byte(TABLE_UID), fields);
+    }
+
+    //行数据放在一个更大的数组中间，和页面上的视图一样
+    private static SubArray embed(byte[] raw) {
+        byte[] page = new byte[raw.length + 20];
+        System.arraycopy(raw, 0, page, 7, raw.length);
+        return new SubArray(page, 7, 7 + raw.length);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        RowCodec codec = codec("int32", "string", "int64", "string", "int32");
+        Object[] row = {-7, "héllo, 世界 🌍", Long.MIN_VALUE, "", Integer.MAX_VALUE};
+        byte[] raw = codec.encode(row);
+
+        assertEquals(TABLE_UID, Parser.getLong(raw, 0));
+        SubArray sa = embed(raw);
+        assertArrayEquals(row, codec.decode(sa));
+        for(int i = 0; i < row.length; i ++) {
+            assertEquals(row[i], codec.decodeField(sa, i));
+        }
+        assertArrayEquals(new Object[]{Integer.MAX_VALUE, "héllo, 世界 🌍"}, codec.decode(sa, new int[]{4, 1}));
+    }
+
+    //字符串的长度是 UTF-8 的字节数，多字节字符之后的字段位置正确
+    @Test
+    public void testStringLengthIsUtf8Bytes() throws Exception {
+        RowCodec codec = codec("string", "int32");
+        String s = "数据库";
+        byte[] raw = codec.encode(new Object[]{s, 5});
+
+        int length = s.getBytes(StandardCharsets.UTF_8).length;
+        assertEquals(9, length);
+        assertEquals(length, Parser.getInt(raw, 8));
+        assertEquals(8 + 4 + length + 4, raw.length);
+        assertEquals(5, codec.decodeField(embed(raw), 1));
+    }
+
+    @Test
+    public void testFixedFieldsOnly() throws Exception {
+        RowCodec codec = codec("int64", "int32");
+        Object[] row = {42L, -1};
+        byte[] raw = codec.encode(row);
+        assertEquals(8 + 8 + 4, raw.length);
+        assertArrayEquals(row, codec.decode(embed(raw)));
+    }
+
+    @Test
+    public void testWrongFieldCount() {
+        RowCodec codec = codec("int32", "string");
+        Exception e = assertThrows(Exception.class, () -> codec.encode(new Object[]{1}));
+        assertEquals(Error.InvalidValuesException, e);
+    }
+}
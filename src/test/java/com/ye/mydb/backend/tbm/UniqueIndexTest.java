@@ -0,0 +1,190 @@
+package com.ye.mydb.backend.tbm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ye.mydb.backend.dm.DataManager;
+import com.ye.mydb.backend.server.Executor;
+import com.ye.mydb.backend.server.PlanCache;
+import com.ye.mydb.backend.tm.TransactionManager;
+import com.ye.mydb.backend.vm.VersionManager;
+import com.ye.mydb.backend.vm.VersionManagerImpl;
+import com.ye.mydb.common.Error;
+
+public class UniqueIndexTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private TableManager tbm;
+    private PlanCache plans;
+    private Executor exe;
+
+    @Before
+    public void setUp() throws Exception {
+        String path = new File(tmp.getRoot(), "unique").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, 1 << 23, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        tbm = TableManager.create(path, vm, dm);
+        plans = new PlanCache(tbm, 16);
+        exe = new Executor(tbm, plans);
+        exec("create table t id int32, name string, score int32 (index unique id score)");
+        exec("insert into t values (1, a, 10), (2, b, 20), (3, c, 30)");
+    }
+
+    @After
+    public void tearDown() {
+        exe.close();
+        dm.close();
+        tm.close();
+    }
+
+    private String exec(String sql) throws Exception {
+        return exec(exe, sql);
+    }
+
+    //查询语句只打开游标，返回 null
+    private static String exec(Executor exe, String sql) throws Exception {
+        byte[] res = exe.execute(sql.getBytes(StandardCharsets.UTF_8));
+        return res == null ? null : new String(res, StandardCharsets.UTF_8);
+    }
+
+    private void assertDuplicate(String sql) {
+        Exception e = assertThrows(Exception.class, () -> exec(sql));
+        assertSame(Error.DuplicateKeyException, e);
+    }
+
+    //按 id 排列的所有行
+    private List<Object[]> rows() throws Exception {
+        exec("select * from t order by id");
+        return exe.fetch(1000, 1 << 20);
+    }
+
+    private long count() throws Exception {
+        exec("select count(*) from t");
+        return ((Number)exe.fetch(1, 1 << 20).get(0)[0]).longValue();
+    }
+
+    private long statsRows() throws Exception {
+        Matcher m = Pattern.compile("t: rows (\\d+)").matcher(exec("show stats"));
+        assertTrue(m.find());
+        return Long.parseLong(m.group(1));
+    }
+
+    /**
+     * 事务中的语句因键重复被拒绝后，只撤销这条语句：事务中之前和之后的语句照常执行并能提交，
+     * 行数和统计信息与没有执行被拒绝的语句时相同
+     */
+    @Test
+    public void testRejectedStatementKeepsTransactionUsable() throws Exception {
+        assertEquals(3, statsRows());
+        exec("begin");
+        exec("insert into t values 4 d 40");
+        assertDuplicate("insert into t values 1 x 11");
+        assertDuplicate("insert into t values (5, e, 50), (6, f, 60), (2, g, 21)");
+        //前两行已经更新，第三行与已有的 id 重复，整条语句被撤销
+        assertDuplicate("update t set id = 3 where id >= 1");
+        assertEquals(4, count());
+        assertEquals(4, statsRows());
+        exec("insert into t values 5 e 50");
+        exec("update t set score = 31 where id = 3");
+        assertEquals("commit", exec("commit"));
+
+        List<Object[]> rows = rows();
+        assertEquals(5, rows.size());
+        assertArrayEquals(new Object[]{1, "a", 10}, rows.get(0));
+        assertArrayEquals(new Object[]{2, "b", 20}, rows.get(1));
+        assertArrayEquals(new Object[]{3, "c", 31}, rows.get(2));
+        assertArrayEquals(new Object[]{4, "d", 40}, rows.get(3));
+        assertArrayEquals(new Object[]{5, "e", 50}, rows.get(4));
+        assertEquals(5, count());
+        assertEquals(5, statsRows());
+        //被拒绝的语句留下的索引条目不再占用它们的键
+        exec("insert into t values 6 f 60");
+        assertEquals(6, count());
+    }
+
+    //不在事务中时语句在临时事务中执行，被拒绝后不留下任何修改
+    @Test
+    public void testRejectedAutocommitStatement() throws Exception {
+        assertDuplicate("insert into t values (7, g, 70), (1, x, 11)");
+        assertDuplicate("update t set id = 2 where id = 1");
+        assertEquals(3, count());
+        assertEquals(3, rows().size());
+        exec("insert into t values 7 g 70");
+        assertEquals(4, count());
+    }
+
+    //多个事务同时插入相同的键，恰好一个成功，其余都被拒绝，被拒绝的事务仍能提交
+    @Test
+    public void testConcurrentInsertsOfSameKey() throws Exception {
+        int sessions = 8;
+        List<Executor> exes = new ArrayList<>();
+        for(int i = 0; i < sessions; i ++) {
+            Executor e = new Executor(tbm, plans);
+            exec(e, "begin");
+            exes.add(e);
+        }
+        AtomicInteger inserted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        CyclicBarrier start = new CyclicBarrier(sessions);
+        Thread[] ts = new Thread[sessions];
+        for(int i = 0; i < sessions; i ++) {
+            Executor e = exes.get(i);
+            int id = i;
+            ts[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    try {
+                        exec(e, "insert into t values 100 n" + id + " 0");
+                        inserted.incrementAndGet();
+                    } catch(Exception ex) {
+                        if(ex != Error.DuplicateKeyException) {
+                            throw ex;
+                        }
+                        rejected.incrementAndGet();
+                    }
+                    exec(e, "insert into t values " + (200 + id) + " m 0");
+                    exec(e, "commit");
+                } catch(Throwable ex) {
+                    errors.add(ex);
+                }
+            });
+            ts[i].start();
+        }
+        for(Thread th : ts) {
+            th.join();
+        }
+        for(Executor e : exes) {
+            e.close();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(1, inserted.get());
+        assertEquals(sessions - 1, rejected.get());
+        assertEquals(3 + 1 + sessions, count());
+        exec("select * from t where id = 100");
+        assertEquals(1, exe.fetch(10, 1 << 20).size());
+    }
+}
@@ -0,0 +1,168 @@
+package com.ye.mydb.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.ye.mydb.common.Error;
+
+public class EncoderTest {
+    private Encoder encoder = new Encoder();
+
+    private Package roundTrip(Package pkg) throws Exception {
+        return encoder.decode(encoder.encode(pkg));
+    }
+
+    private void assertRejected(byte[] raw) {
+        Exception e = assertThrows(Exception.class, () -> encoder.decode(raw));
+        assertSame(Error.InvalidPkgDataException, e);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDataAndError() throws Exception {
+        Package data = roundTrip(new Package(bytes("insert"), null));
+        assertEquals(Package.DATA, data.getType());
+        assertArrayEquals(bytes("insert"), data.getData());
+
+        Package err = roundTrip(new Package(null, new RuntimeException("Duplicate key!")));
+        assertEquals(Package.ERROR, err.getType());
+        assertEquals("Duplicate key!", err.getErr().getMessage());
+    }
+
+    @Test
+    public void testCommands() throws Exception {
+        Package query = roundTrip(Package.query(bytes("select * from t"), 100));
+        assertEquals(Package.QUERY, query.getType());
+        assertEquals(100, query.getFetchSize());
+        assertArrayEquals(bytes("select * from t"), query.getData());
+
+        assertEquals(7, roundTrip(Package.fetch(7)).getFetchSize());
+        assertEquals(Package.CLOSE, roundTrip(Package.closeCursor()).getType());
+        assertArrayEquals(bytes("select ?"), roundTrip(Package.prepare(bytes("select ?"))).getData());
+
+        Package prepared = roundTrip(Package.prepared(3, 2));
+        assertEquals(3, prepared.getStatementId());
+        assertEquals(2, prepared.getParamCount());
+
+        Package execute = roundTrip(Package.execute(3, 50, new String[]{"1", "名字", ""}));
+        assertEquals(Package.EXECUTE, execute.getType());
+        assertEquals(3, execute.getStatementId());
+        assertEquals(50, execute.getFetchSize());
+        assertArrayEquals(new String[]{"1", "名字", ""}, execute.getParams());
+
+        assertEquals(9, roundTrip(Package.deallocate(9)).getStatementId());
+    }
+
+    @Test
+    public void testRows() throws Exception {
+        String[] columns = {"id", "name", "score"};
+        List<Object[]> rows = Arrays.asList(
+            new Object[]{1, "ä", Long.MAX_VALUE},
+            new Object[]{-2, "字符串", 0L});
+        Package res = roundTrip(Package.rows(columns, rows, false));
+        assertEquals(Package.ROWS, res.getType());
+        assertArrayEquals(columns, res.getColumns());
+        assertEquals(2, res.getRows().size());
+        for(int i = 0; i < rows.size(); i ++) {
+            assertArrayEquals(rows.get(i), res.getRows().get(i));
+        }
+
+        //后续的批次不带列名
+        Package last = roundTrip(Package.rows(null, rows.subList(0, 1), true));
+        assertEquals(Package.LAST_ROWS, last.getType());
+        assertNull(last.getColumns());
+        assertArrayEquals(rows.get(0), last.getRows().get(0));
+
+        Package empty = roundTrip(Package.rows(columns, Arrays.<Object[]>asList(), true));
+        assertArrayEquals(columns, empty.getColumns());
+        assertTrue(empty.getRows().isEmpty());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        List<Object[]> rows = Arrays.asList(new Object[]{1, "a"}, new Object[]{2, "é"});
+        Package res = roundTrip(Package.load("学生", rows));
+        assertEquals(Package.LOAD, res.getType());
+        assertEquals("学生", res.getTableName());
+        assertEquals(2, res.getRows().size());
+        assertArrayEquals(rows.get(1), res.getRows().get(1));
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        Package batch = roundTrip(Package.batch(Arrays.asList(bytes("begin"), bytes(""), bytes("commit"))));
+        assertEquals(Package.BATCH, batch.getType());
+        assertEquals(3, batch.getStats().size());
+        assertArrayEquals(bytes("commit"), batch.getStats().get(2));
+
+        Package result = roundTrip(Package.batchResult(Arrays.asList(
+            new Package(bytes("begin"), null),
+            new Package(null, new RuntimeException("boom")),
+            Package.rows(new String[]{"n"}, Arrays.<Object[]>asList(new Object[]{5}), true))));
+        List<Package> results = result.getResults();
+        assertEquals(3, results.size());
+        assertArrayEquals(bytes("begin"), results.get(0).getData());
+        assertEquals("boom", results.get(1).getErr().getMessage());
+        assertEquals(5, results.get(2).getRows().get(0)[0]);
+    }
+
+    @Test
+    public void testEncodeRejectsRaggedRows() {
+        Package pkg = Package.rows(new String[]{"a", "b"}, Arrays.<Object[]>asList(new Object[]{1}), true);
+        Exception e = assertThrows(Exception.class, () -> encoder.encode(pkg));
+        assertSame(Error.InvalidValuesException, e);
+    }
+
+    @Test
+    public void testRejectsMalformedFrames() throws Exception {
+        assertRejected(new byte[0]);
+        assertRejected(new byte[]{99});
+        assertRejected(new byte[]{Package.QUERY, 0, 0});
+        assertRejected(new byte[]{Package.FETCH, 1});
+        assertRejected(new byte[]{Package.PREPARED, 0, 0, 0, 1});
+        assertRejected(new byte[]{Package.DEALLOCATE});
+
+        byte[] rows = encoder.encode(Package.rows(new String[]{"s"}, Arrays.<Object[]>asList(new Object[]{"abc"}), true));
+        //截断在字符串中间
+        assertRejected(Arrays.copyOf(rows, rows.length - 1));
+        //未知的值类型
+        byte[] badTag = rows.clone();
+        badTag[rows.length - 8] = 9;
+        assertRejected(badTag);
+
+        //很小的帧声明了巨大的行数、列数或列表长度，不能先按声明的大小分配
+        assertRejected(ByteBuffer.allocate(10).put(Package.ROWS).putInt(1000).put((byte)0).putInt(Integer.MAX_VALUE).array());
+        assertRejected(ByteBuffer.allocate(6).put(Package.ROWS).putInt(Integer.MAX_VALUE).put((byte)1).array());
+        assertRejected(ByteBuffer.allocate(10).put(Package.ROWS).putInt(-1).put((byte)0).putInt(0).array());
+        assertRejected(ByteBuffer.allocate(10).put(Package.ROWS).putInt(0).put((byte)0).putInt(3).array());
+        assertRejected(ByteBuffer.allocate(5).put(Package.BATCH).putInt(Integer.MAX_VALUE).array());
+        assertRejected(ByteBuffer.allocate(9).put(Package.BATCH).putInt(1).putInt(-4).array());
+        assertRejected(ByteBuffer.allocate(5).put(Package.LOAD).putInt(100).array());
+
+        //BATCH_RESULT 中嵌套的数据包同样要检查
+        byte[] nested = ByteBuffer.allocate(11).put(Package.BATCH_RESULT).putInt(1).putInt(2).put(Package.FETCH).put((byte)0).array();
+        assertRejected(nested);
+    }
+
+    @Test
+    public void testRowSizeMatchesEncoding() throws Exception {
+        String[] columns = {"a", "名"};
+        Object[] row = {1L, "数据"};
+        byte[] raw = encoder.encode(Package.rows(columns, Arrays.<Object[]>asList(row), true));
+        assertEquals(raw.length, Encoder.headerSize(columns) + Encoder.rowSize(row));
+    }
+}
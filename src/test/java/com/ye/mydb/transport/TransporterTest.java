@@ -0,0 +1,109 @@
+package com.ye.mydb.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ye.mydb.common.Error;
+
+public class TransporterTest {
+    private ServerSocket server;
+    private Socket client;
+    private Socket accepted;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        accepted = server.accept();
+        client.setSoTimeout(10000);
+        accepted.setSoTimeout(10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        accepted.close();
+        server.close();
+    }
+
+    //握手需要双方同时进行，客户端一侧在另一个线程中执行
+    private static Thread handshake(Transporter t) {
+        Thread th = new Thread(() -> {
+            try {
+                t.handshake();
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        th.start();
+        return th;
+    }
+
+    @Test
+    public void testPipelinedFrames() throws Exception {
+        Transporter c = new Transporter(client);
+        Transporter s = new Transporter(accepted);
+        Thread th = handshake(c);
+        s.acceptHandshake();
+        th.join();
+
+        Encoder encoder = new Encoder();
+        byte[][] frames = {
+            encoder.encode(Package.query("select * from t".getBytes(StandardCharsets.UTF_8), 10)),
+            new byte[0],
+            encoder.encode(Package.fetch(10)),
+            new byte[100000],
+        };
+        for(byte[] frame : frames) {
+            c.write(frame);
+        }
+        c.flush();
+        for(byte[] frame : frames) {
+            assertArrayEquals(frame, s.receive());
+        }
+        assertEquals(10, encoder.decode(frames[2]).getFetchSize());
+    }
+
+    @Test
+    public void testRejectsWrongMagic() throws Exception {
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        out.writeInt(0x12345678);
+        out.writeInt(Transporter.VERSION);
+        out.flush();
+        Exception e = assertThrows(Exception.class, () -> new Transporter(accepted).acceptHandshake());
+        assertSame(Error.ProtocolVersionException, e);
+        assertEquals(0, new DataInputStream(client.getInputStream()).readInt());
+    }
+
+    @Test
+    public void testRejectsNegativeLength() throws Exception {
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        out.writeInt(-1);
+        out.flush();
+        Exception e = assertThrows(Exception.class, () -> new Transporter(accepted).receive());
+        assertSame(Error.InvalidPkgDataException, e);
+    }
+
+    //超过上限的长度在分配之前拒绝
+    @Test
+    public void testRejectsOversizedLength() throws Exception {
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        out.writeInt(Transporter.MAX_FRAME_SIZE + 1);
+        out.flush();
+        Exception e = assertThrows(Exception.class, () -> new Transporter(accepted).receive());
+        assertSame(Error.InvalidPkgDataException, e);
+    }
+}